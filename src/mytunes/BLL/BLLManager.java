@@ -1,12 +1,18 @@
 package mytunes.BLL;
 
 import java.net.URI;
+import java.nio.file.Path;
+import java.util.Collection;
 import java.util.List;
-import java.util.logging.Level;
-import java.util.logging.Logger;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Consumer;
 import javafx.beans.property.BooleanProperty;
 import javafx.beans.property.StringProperty;
 import javafx.util.Duration;
+import mytunes.be.FolderChanges;
+import mytunes.be.ImportProgress;
+import mytunes.be.LibraryChanges;
 import mytunes.be.PlayList;
 import mytunes.be.UserMedia;
 import mytunes.dal.DAException;
@@ -21,9 +27,14 @@ public class BLLManager {
     private PlayList selectedPlayList; //The currently selected play list
     private UserMedia selectedMedia; //The currently selected media
     private DALManager dalManger = new DALManager();
-    private MediaObjectManager mediaObjectManager = new MediaObjectManager(dalManger); 
-    private PlayListManager playListManager = new PlayListManager(dalManger);
-    private Player player = new Player();
+    private PathResolver pathResolver = new PathResolver();     //Translates the stored paths to the paths on this computer
+    private WriteBehindQueue writeQueue = new WriteBehindQueue(dalManger);  //The changes are written to the database in the background
+    private MediaObjectManager mediaObjectManager = new MediaObjectManager(dalManger, writeQueue); 
+    private PlayListManager playListManager = new PlayListManager(dalManger, writeQueue);
+    private LibraryScanner libraryScanner = new LibraryScanner(dalManger, pathResolver);
+    private FolderWatcher folderWatcher = new FolderWatcher(dalManger, pathResolver);    //Keeps the library in sync with the watched folders
+    private LoudnessAnalysis loudnessAnalysis = new LoudnessAnalysis(dalManger, pathResolver);    //Measures the loudness of the new songs in the background
+    private Player player = new Player(pathResolver);
 
 //******************************************************************************************************************************************************************//
 //Load data
@@ -37,6 +48,17 @@ public class BLLManager {
         return mediaObjectManager.getMedia();
     }
 
+    /**
+     * Load the information of the stored media from the DB one page at a time
+     * 
+     * @param pageSize The maximum number of songs in one page
+     * @param pageHandler Called with every page of songs, as soon as it has been read
+     * @throws BLLException If an error happens in the MediaObjectManager
+     */
+    public void loadMedia(int pageSize, Consumer<List<UserMedia>> pageHandler) throws BLLException {
+        mediaObjectManager.getMedia(pageSize, pageHandler);
+    }
+
     /**
      * Attempt to retrieve the play list stores in the DB
      * 
@@ -47,32 +69,190 @@ public class BLLManager {
         return playListManager.loadPlayLists();
     }
 
+//******************************************************************************************************************************************************************//
+//Save data
     /**
-     * Attempt to get the categories from the DB
+     * Save a new song to the DB
      * 
-     * @return A list of the categories of the songs stored in the database
-     * @throws BLLException If an error happens in the MediaObjectManager
+     * @param newMedia This object will be saved to the database 
+     * @throws BLLException If the song is null
+     */
+    public void addNewMedia(UserMedia newMedia) throws BLLException {
+        if (newMedia == null) {
+            throw new BLLException("No media selected!");
+        }
+        if (newMedia.getPath() != null) {   //Store the path in the form every computer of the library knows
+            newMedia.setPath(pathResolver.toStored(newMedia.getPath()));
+        }
+        mediaObjectManager.addNew(newMedia);
+    }
+
+    /**
+     * Import every audio file found in a folder and its sub folders. The tags are read in parallel, and the songs are saved in batches.
+     * Copies of songs already in the library are skipped. Blocks until every file has been handled, interrupting the calling thread cancels the import,
+     * keeping the songs saved so far
+     * 
+     * @param folder The folder to import
+     * @param knownPaths The paths of the songs already in the library, these files are skipped
+     * @param batchHandler Called from the writer thread with every batch of saved songs
+     * @param movedHandler Called from the writer thread with the songs read from moved files, carrying the id of the song they belong to
+     * @param progressHandler Called regularly from the calling thread with the state of the import
+     * @return The number of imported songs
+     * @throws BLLException If the folder cannot be read, or the songs cannot be saved
+     */
+    public int importFolder(Path folder, Set<String> knownPaths, Consumer<List<UserMedia>> batchHandler, Consumer<List<UserMedia>> movedHandler,
+            Consumer<ImportProgress> progressHandler) throws BLLException {
+        if (folder == null) {
+            throw new BLLException("No folder selected!");
+        }
+        return libraryScanner.scan(folder, knownPaths, batchHandler, movedHandler, progressHandler);
+    }
+
+    /**
+     * Check if an import is saving a batch of songs right now, which are in the database but might not have reached the batch handler yet
+     * @return True while a batch is being saved
      */
-    public List<String> getCategories() throws BLLException {
-        return mediaObjectManager.getCategories();
+    public boolean isImportWriting() {
+        return libraryScanner.isWriting();
     }
 
 //******************************************************************************************************************************************************************//
-//Save data
+//Library roots
     /**
-     * Save a new song to the DB
+     * Map the beginning of the stored paths to a folder on this computer, for example when the library was imported on another computer.
+     * The mapping is remembered between runs
      * 
-     * @param newMedia This object will be saved to the database 
-     * @throws BLLException If an error happens in the MediaObjectManager
+     * @param storedPrefix The beginning of the paths as they are stored in the database
+     * @param localPrefix The same folder on this computer
+     * @throws BLLException If one of the prefixes is empty
      */
-    public void addNewMedia(UserMedia newMedia) throws BLLException {
-        try {
-            mediaObjectManager.addNew(newMedia);
+    public void setRootMapping(String storedPrefix, String localPrefix) throws BLLException {
+        if (storedPrefix == null || storedPrefix.isEmpty() || localPrefix == null || localPrefix.isEmpty()) {
+            throw new BLLException("Both folders have to be given!");
         }
-        catch (BLLException ex) {
-            Logger.getLogger(BLLManager.class.getName()).log(Level.SEVERE, null, ex);
-            throw new BLLException(ex);
+        pathResolver.setMapping(storedPrefix, localPrefix);
+    }
+
+    /**
+     * Remove a root mapping
+     * 
+     * @param storedPrefix The stored prefix of the mapping
+     */
+    public void removeRootMapping(String storedPrefix) {
+        pathResolver.removeMapping(storedPrefix);
+    }
+
+    /**
+     * Get the root mappings
+     * 
+     * @return The local folders by the stored prefixes they replace
+     */
+    public Map<String, String> getRootMappings() {
+        return pathResolver.getMappings();
+    }
+
+    /**
+     * Find the songs whose files cannot be found on this computer. Every folder is checked once, and the result is remembered
+     * 
+     * @param media The songs to check
+     * @param recheck True to forget the remembered folders first, for example after a share has been connected
+     * @return The songs whose file does not exist on this computer
+     */
+    public List<UserMedia> getUnresolvedMedia(Collection<UserMedia> media, boolean recheck) {
+        if (recheck) {
+            pathResolver.clearCache();
+        }
+        return pathResolver.findUnresolved(media);
+    }
+
+    /**
+     * Get the name of the file from a stored path, which might use the separator of another system
+     * 
+     * @param path The stored path
+     * @return The name of the file, without its folders
+     */
+    public String getFileName(String path) {
+        return PathResolver.fileName(path);
+    }
+
+//******************************************************************************************************************************************************************//
+//Folder watching
+    /**
+     * Start watching the stored library folders for new, modified and deleted files
+     * 
+     * @param changeHandler Called from a background thread with the changes, after the folders have been quiet for a moment
+     * @throws BLLException If the folders cannot be watched
+     */
+    public void watchFolders(Consumer<FolderChanges> changeHandler) throws BLLException {
+        folderWatcher.start(changeHandler);
+    }
+
+    /**
+     * Add a folder to the watched folders. The folder is remembered between runs
+     * 
+     * @param folder The folder to watch, together with its sub folders
+     * @throws BLLException If no folder was given
+     */
+    public void addWatchedFolder(Path folder) throws BLLException {
+        if (folder == null) {
+            throw new BLLException("No folder selected!");
+        }
+        folderWatcher.addRoot(folder);
+    }
+
+    /**
+     * Stop watching a folder. The songs already imported from it stay in the library
+     * 
+     * @param folder The folder that is no longer watched
+     * @throws BLLException If no folder was given
+     */
+    public void removeWatchedFolder(Path folder) throws BLLException {
+        if (folder == null) {
+            throw new BLLException("No folder selected!");
+        }
+        folderWatcher.removeRoot(folder);
+    }
+
+    /**
+     * Get the watched folders
+     * 
+     * @return The folders that are watched for changes
+     */
+    public List<Path> getWatchedFolders() {
+        return folderWatcher.getRoots();
+    }
+
+//******************************************************************************************************************************************************************//
+//Loudness analysis
+    /**
+     * Start measuring the loudness of the songs that have not been analysed yet, in the background.
+     * The player turns the loud songs down using the results. Call it after the library has been loaded, and again after new songs have been added.
+     * The analysis starts once the changes queued so far have reached the database, so the new songs are included
+     */
+    public void analyseLoudness() {
+        writeQueue.afterPendingWrites(loudnessAnalysis::start);
+    }
+
+    /**
+     * Set the share of the cores the loudness analysis can use. The value is remembered between runs
+     * 
+     * @param share A number between 0 (exclusive) and 1
+     * @throws BLLException If the share is out of range
+     */
+    public void setAnalysisCoreShare(double share) throws BLLException {
+        if (!(share > 0 && share <= 1)) {
+            throw new BLLException("The share of the cores has to be between 0 and 1!");
         }
+        loudnessAnalysis.setCoreShare(share);
+    }
+
+    /**
+     * Get the share of the cores the loudness analysis can use
+     * 
+     * @return A number between 0 (exclusive) and 1
+     */
+    public double getAnalysisCoreShare() {
+        return loudnessAnalysis.getCoreShare();
     }
 
     /**
@@ -117,6 +297,9 @@ public class BLLManager {
         if (selectedMedia == null) {
             throw new BLLException("No media selected!");
         }
+        if (selectedMedia.getPath() != null) {
+            selectedMedia.setPath(pathResolver.toStored(selectedMedia.getPath()));
+        }
         mediaObjectManager.updateMedia(selectedMedia);
     }
 
@@ -133,6 +316,20 @@ public class BLLManager {
         playListManager.updatePlayList(selectedPlayList);
     }
 
+    /**
+     * Save the order of the play list after songs have been moved in it
+     * 
+     * @param selectedPlayList The play list that has been reordered
+     * @param movedMedia The songs whose position has changed
+     * @throws BLLException If an error happens in the PlayListManager
+     */
+    public void updatePlayListOrder(PlayList selectedPlayList, List<UserMedia> movedMedia) throws BLLException {
+        if (selectedPlayList == null) {
+            throw new BLLException("No playlist selected");
+        }
+        playListManager.updateOrder(selectedPlayList, movedMedia);
+    }
+
 //******************************************************************************************************************************************************************//
 //Delete data
     
@@ -164,8 +361,8 @@ public class BLLManager {
     }
 
     /**
-     * Attempt to remove a play list. If the play list contains media objects, it
-     * removes them first
+     * Attempt to remove a play list. The songs in the play list are removed 
+     * together with it in the DAL, and then from the play list itself
      *
      * @param selected This play list will be removed from the database
      * @throws BLLException If an error happens in the PlayListManager
@@ -174,13 +371,8 @@ public class BLLManager {
         if (selected == null) {
             throw new BLLException("No playlist selected!");
         }
-        if (!selected.isEmpty()) {  
-            for (UserMedia media : selected.getMediaList()) {   //Remove the song found in the play list firs
-                removeMediaFromPlayList(media, selected);
-            }
-            selected.clearMediaList();
-        }
         playListManager.removePlayList(selected);
+        selected.clearMediaList();
     }
 
 //******************************************************************************************************************************************************************//
@@ -330,6 +522,138 @@ public class BLLManager {
         }
     }
 
+    /**
+     * Get the current sync token of the library, used to read the changes made after the library has been loaded
+     * @return The sync token
+     * @throws BLLException If an error occurs in the DAL
+     */
+    public long getSyncToken() throws BLLException {
+        try {
+            return dalManger.getSyncToken();
+        }
+        catch (DAException ex) {
+            throw new BLLException(ex);
+        }
+    }
+
+    /**
+     * Read the changes made to the library by any client since the given sync token
+     * @param token The sync token of the previous read
+     * @return The changes, and the next sync token
+     * @throws BLLException If an error occurs in the DAL
+     */
+    public LibraryChanges getLibraryChanges(long token) throws BLLException {
+        try {
+            return dalManger.getChanges(token);
+        }
+        catch (DAException ex) {
+            throw new BLLException(ex);
+        }
+    }
+
+    /**
+     * Get the number of changes that have not been written to the database yet
+     * @return The number of pending changes
+     */
+    public int getWriteBacklogSize() {
+        return writeQueue.getBacklogSize();
+    }
+
+    /**
+     * Check if a song has changes that have not been written to the database yet. The stored data of such a song is older than the one in memory
+     * @param media The song
+     * @return True if a change of the song is waiting to be written
+     */
+    public boolean hasPendingWrites(UserMedia media) {
+        return writeQueue.isPending(media);
+    }
+
+    /**
+     * Check if a play list, or its list of songs, has changes that have not been written to the database yet
+     * @param playlist The play list
+     * @return True if a change of the play list is waiting to be written
+     */
+    public boolean hasPendingWrites(PlayList playlist) {
+        return writeQueue.isPending(playlist);
+    }
+
+    /**
+     * Check if a song read from the database was saved by this program, and the song in memory has not got its id yet
+     * @param id The id of the stored song
+     * @return True if the song is already in memory
+     */
+    public boolean isSavingMedia(int id) {
+        return writeQueue.isPublishingMedia(id);
+    }
+
+    /**
+     * Check if a play list read from the database was saved by this program, and the play list in memory has not got its id yet
+     * @param id The id of the stored play list
+     * @return True if the play list is already in memory
+     */
+    public boolean isSavingPlayList(int id) {
+        return writeQueue.isPublishingPlayList(id);
+    }
+
+    /**
+     * Drop the unwritten changes of a song deleted by another client
+     * @param media The deleted song
+     */
+    public void dropPendingWrites(UserMedia media) {
+        writeQueue.forget(media);
+    }
+
+    /**
+     * Drop the unwritten changes of a play list deleted by another client
+     * @param playlist The deleted play list
+     */
+    public void dropPendingWrites(PlayList playlist) {
+        writeQueue.forget(playlist);
+    }
+
+    /**
+     * Set the handler of the changes that could not be written to the database after several attempts. They are kept and retried
+     * @param failureHandler Called from the writer thread with the error
+     */
+    public void setWriteFailureHandler(Consumer<BLLException> failureHandler) {
+        writeQueue.setFailureHandler(failureHandler);
+    }
+
+    /**
+     * Get how long the oldest unwritten change has been waiting
+     * @return The age of the oldest pending change in milliseconds, 0 if every change has been written
+     */
+    public long getWriteLagMillis() {
+        return writeQueue.getFlushLagMillis();
+    }
+
+    /**
+     * Get the number of files whose meta data was found in the tag cache
+     * @return The number of cache hits
+     */
+    public long getTagCacheHits() {
+        return dalManger.getMetaDataCacheHits();
+    }
+
+    /**
+     * Get the number of files whose meta data had to be read from the file
+     * @return The number of cache misses
+     */
+    public long getTagCacheMisses() {
+        return dalManger.getMetaDataCacheMisses();
+    }
+
+    /**
+     * Write the pending changes to the database, and stop the background writer. Called when the program exits
+     * @param timeoutMillis The maximum time to wait for the pending changes
+     */
+    public void close(long timeoutMillis) {
+        folderWatcher.close();
+        loudnessAnalysis.close();
+        writeQueue.close(timeoutMillis);
+        dalManger.close();
+    }
+
     /**
      * Switch to the next song in the play list
      * @throws BLLException If an error occurs in the Player
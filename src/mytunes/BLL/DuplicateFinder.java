@@ -0,0 +1,207 @@
+package mytunes.BLL;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import mytunes.be.UserMedia;
+import mytunes.dal.DAException;
+import mytunes.dal.DALManager;
+
+/**
+ * Recognises the files of an import that are already in the library, by the hash of their audio data (the file without its tags).
+ * Files with a different audio size cannot be the same, so a file is only hashed if a song in the library, or another file of the same import,
+ * has the same audio size. Most files have a unique size, and are never read completely.
+ * The hashes are stored in the database, so a song is hashed at most once. A song is only the same as a file if their hashes are equal,
+ * a song whose file is gone and was never hashed cannot be recognised.
+ * A copy of a song whose file no longer exists is a moved file, the existing song is kept and pointed to the new path
+ * @author sebok
+ */
+class DuplicateFinder {
+
+    private static final int PAGE_SIZE = 500;   //The most songs read at once when the missing audio sizes are measured
+
+    private final DALManager dalManager;
+    private final PathResolver pathResolver;
+    private final Map<Long, List<UserMedia>> imported = new HashMap<>();   //The files kept so far in this import, by audio size
+    private final Set<Integer> movedIds = ConcurrentHashMap.newKeySet();    //The songs of the library already moved to a file of this import
+
+    /**
+     * What a read file is to the library
+     */
+    enum Match {
+        NEW, DUPLICATE, MOVED
+    }
+
+    /**
+     * Create a new finder for one import
+     * @param dalManager Used to find the songs with the same audio size, and to hash the files
+     * @param pathResolver Finds the files of the songs on this computer
+     */
+    DuplicateFinder(DALManager dalManager, PathResolver pathResolver) {
+        this.dalManager = dalManager;
+        this.pathResolver = pathResolver;
+    }
+
+    /**
+     * Measure the audio size of the songs saved by older versions of the program, so they can be found by the duplicate check.
+     * Songs whose file is not on this computer keep no size. Stops early if the calling thread is interrupted
+     * @throws DAException If the songs cannot be read from or saved to the database
+     */
+    void backfillAudioSizes() throws DAException {
+        int lastId = 0;
+        List<UserMedia> page;
+        do {
+            page = dalManager.getMediaWithoutAudioSize(lastId, PAGE_SIZE);
+            Map<Integer, Long> sizes = new HashMap<>();
+            for (UserMedia media : page) {
+                lastId = media.getId();
+                File file = localFile(media);
+                if (file == null || !file.isFile()) {
+                    continue;
+                }
+                try {
+                    sizes.put(media.getId(), dalManager.getAudioSize(file.getPath()));
+                }
+                catch (DAException ex) {
+                    Logger.getLogger(DuplicateFinder.class.getName()).log(Level.FINE, "Cannot measure " + media.getPath(), ex);
+                }
+            }
+            dalManager.saveAudioSizes(sizes);
+        } while (page.size() == PAGE_SIZE && !Thread.currentThread().isInterrupted());
+    }
+
+    /**
+     * Check if a read file is a copy of a song in the library or of an earlier file of the import.
+     * The files are hashed here when needed, so it should be called by the threads reading the files. Can be called from several threads at the same time
+     * @param song The song read from the file. The song of a moved file gets the id of the song already in the library
+     * @return NEW if the file has to be saved, DUPLICATE if it is a copy, MOVED if it is the moved file of a song in the library
+     * @throws DAException If the songs with the same size cannot be read from the database
+     */
+    Match check(UserMedia song) throws DAException {
+        if (song.getAudioSize() <= 0) {
+            return Match.NEW;
+        }
+        List<UserMedia> candidates = dalManager.getMediaByAudioSize(Collections.singleton(song.getAudioSize()));
+        if (!candidates.isEmpty()) {
+            Map<Integer, String> computed = new HashMap<>();    //The new hashes of the songs already in the library
+            UserMedia original = findOriginal(song, candidates, computed);
+            dalManager.saveContentHashes(computed);
+            if (original != null) {
+                File file = localFile(original);
+                if ((file == null || !file.exists()) && movedIds.add(original.getId())) {   //A second copy of the moved file is a duplicate
+                    song.setId(original.getId());
+                    return Match.MOVED;
+                }
+                return Match.DUPLICATE;
+            }
+        }
+        return isImported(song) ? Match.DUPLICATE : Match.NEW;
+    }
+
+    /**
+     * Find the song in the library that has the same audio data as the new file.
+     * The hashes of the songs that have not been hashed yet are computed, and collected to be stored
+     * @return The song with the same content, or null if there is none
+     */
+    private UserMedia findOriginal(UserMedia song, List<UserMedia> candidates, Map<Integer, String> computed) {
+        if (!hash(song)) {
+            return null;
+        }
+        for (UserMedia candidate : candidates) {
+            if (candidate.getContentHash() == null && hash(candidate)) {
+                computed.put(candidate.getId(), candidate.getContentHash());
+            }
+            if (song.getContentHash().equals(candidate.getContentHash())) {
+                return candidate;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Check if an earlier file of this import has the same content, and remember the file if not.
+     * The files are hashed without holding the lock, so the other threads are not kept waiting while a file is read
+     * @return True if the file is a copy of an earlier file
+     */
+    private boolean isImported(UserMedia song) {
+        List<UserMedia> unhashed = new ArrayList<>();
+        synchronized (this) {
+            List<UserMedia> sameSize = imported.computeIfAbsent(song.getAudioSize(), s -> new ArrayList<>());
+            if (sameSize.isEmpty()) {
+                sameSize.add(song);
+                return false;
+            }
+            for (UserMedia earlier : sameSize) {
+                if (earlier.getContentHash() == null) {
+                    unhashed.add(earlier);
+                }
+            }
+        }
+        Map<UserMedia, String> hashes = new HashMap<>();    //The earlier files are changed under the lock only
+        for (UserMedia earlier : unhashed) {
+            String hash = hashOf(earlier);
+            if (hash != null) {
+                hashes.put(earlier, hash);
+            }
+        }
+        boolean hashed = hash(song);
+        synchronized (this) {
+            List<UserMedia> sameSize = imported.get(song.getAudioSize());
+            for (UserMedia earlier : sameSize) {
+                if (earlier.getContentHash() == null && hashes.containsKey(earlier)) {
+                    earlier.setContentHash(hashes.get(earlier));
+                }
+                if (hashed && song.getContentHash().equals(earlier.getContentHash())) {
+                    return true;
+                }
+            }
+            sameSize.add(song);
+            return false;
+        }
+    }
+
+    /**
+     * Hash the file of the song, if it has not been hashed yet
+     * @return True if the song has a content hash
+     */
+    private boolean hash(UserMedia media) {
+        if (media.getContentHash() == null) {
+            media.setContentHash(hashOf(media));
+        }
+        return media.getContentHash() != null;
+    }
+
+    /**
+     * Hash the file of the song, without changing the song
+     * @return The content hash, or null if the file cannot be read
+     */
+    private String hashOf(UserMedia media) {
+        File file = localFile(media);
+        if (file == null || !file.isFile()) {
+            return null;
+        }
+        try {
+            return dalManager.getContentHash(file.getPath());
+        }
+        catch (DAException ex) {
+            Logger.getLogger(DuplicateFinder.class.getName()).log(Level.FINE, "Cannot hash " + media.getPath(), ex);
+            return null;
+        }
+    }
+
+    /**
+     * Get the file of the song on this computer
+     * @return The file, or null if its folder does not exist here
+     */
+    private File localFile(UserMedia media) {
+        String path = pathResolver.resolve(media.getPath());
+        return path == null ? null : new File(path);
+    }
+}
@@ -0,0 +1,329 @@
+package mytunes.BLL;
+
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.prefs.Preferences;
+import mytunes.be.FolderChanges;
+import mytunes.be.UserMedia;
+import mytunes.dal.DALManager;
+
+/**
+ * Watches the library folders for new, modified and deleted files using a WatchService.
+ * The events are collected until the folders have been quiet for a while, repeated events of the same file are merged,
+ * and then only the affected files are read. The result is passed on as one FolderChanges object.
+ * The watched folders are stored in the user preferences
+ * @author sebok
+ */
+class FolderWatcher {
+
+    private static final long QUIET_MILLIS = 1000;      //The changes are processed once no event has arrived for this long
+    private static final long MAX_DELAY_MILLIS = 10000;     //But not later than this after the first event, even if files keep changing
+    private static final String ROOTS_KEY = "watchedFolders";
+
+    private enum Change {
+        CREATED, MODIFIED, DELETED
+    }
+
+    private final DALManager dalManager;
+    private final PathResolver pathResolver;
+    private final Preferences preferences = Preferences.userNodeForPackage(FolderWatcher.class);
+    private final Set<Path> roots = new LinkedHashSet<>();
+    private final Map<WatchKey, Path> watchedDirectories = new ConcurrentHashMap<>();
+    private final Map<Path, Change> pending = new LinkedHashMap<>();
+    private long firstEvent;
+    private long lastEvent;
+    private boolean flushScheduled;
+
+    private WatchService watchService;
+    private Consumer<FolderChanges> changeHandler;
+    private final ScheduledExecutorService processor = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "Folder changes");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /**
+     * Create a new watcher. The stored folders are not watched until start is called
+     * @param dalManager Used to read the tags of the changed files
+     * @param pathResolver Translates the paths of the changed files to the paths stored in the library
+     */
+    FolderWatcher(DALManager dalManager, PathResolver pathResolver) {
+        this.dalManager = dalManager;
+        this.pathResolver = pathResolver;
+        for (String root : preferences.get(ROOTS_KEY, "").split("\n")) {
+            if (!root.isEmpty()) {
+                roots.add(Paths.get(root));
+            }
+        }
+    }
+
+    /**
+     * Start watching the stored folders
+     * @param changeHandler Called on a background thread with the changes of the files
+     * @throws BLLException If the file system cannot be watched
+     */
+    synchronized void start(Consumer<FolderChanges> changeHandler) throws BLLException {
+        if (watchService != null) {
+            return;
+        }
+        this.changeHandler = changeHandler;
+        try {
+            watchService = FileSystems.getDefault().newWatchService();
+        }
+        catch (IOException ex) {
+            throw new BLLException(ex);
+        }
+        for (Path root : roots) {
+            register(root);
+        }
+        Thread thread = new Thread(this::watch, "Folder watcher");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Add a folder to the watched folders, and remember it
+     * @param root The folder to watch, together with its sub folders
+     */
+    synchronized void addRoot(Path root) {
+        root = root.toAbsolutePath();
+        for (Path watched : roots) {
+            if (root.startsWith(watched)) {
+                return;     //Already watched
+            }
+        }
+        roots.add(root);
+        saveRoots();
+        if (watchService != null) {
+            register(root);
+        }
+    }
+
+    /**
+     * Stop watching a folder. The songs in it stay in the library
+     * @param root The folder that is no longer watched
+     */
+    synchronized void removeRoot(Path root) {
+        Path absolute = root.toAbsolutePath();
+        if (roots.remove(absolute)) {
+            saveRoots();
+            for (Map.Entry<WatchKey, Path> entry : watchedDirectories.entrySet()) {
+                if (entry.getValue().startsWith(absolute)) {
+                    entry.getKey().cancel();
+                    watchedDirectories.remove(entry.getKey());
+                }
+            }
+        }
+    }
+
+    /**
+     * Get the watched folders
+     * @return A copy of the list of watched folders
+     */
+    synchronized List<Path> getRoots() {
+        return new ArrayList<>(roots);
+    }
+
+    /**
+     * Stop watching the folders
+     */
+    synchronized void close() {
+        processor.shutdownNow();
+        if (watchService != null) {
+            try {
+                watchService.close();
+            }
+            catch (IOException ex) {
+                //Closing anyway
+            }
+        }
+    }
+
+//******************************************************************************************************************************************************************//
+//Watching
+    /**
+     * Take the events of the watch service until it is closed
+     */
+    private void watch() {
+        try {
+            while (true) {
+                WatchKey key = watchService.take();
+                Path directory = watchedDirectories.get(key);
+                for (WatchEvent<?> event : key.pollEvents()) {
+                    if (directory == null) {
+                        continue;
+                    }
+                    if (event.kind() == StandardWatchEventKinds.OVERFLOW) {     //Events were lost, read the whole folder again
+                        changedTree(directory);
+                        continue;
+                    }
+                    Path path = directory.resolve((Path) event.context());
+                    if (event.kind() == StandardWatchEventKinds.ENTRY_DELETE) {
+                        addEvent(path, Change.DELETED);
+                    }
+                    else if (Files.isDirectory(path)) {
+                        if (event.kind() == StandardWatchEventKinds.ENTRY_CREATE) {     //A new or moved folder, with files already in it
+                            register(path);
+                            changedTree(path);
+                        }
+                    }
+                    else if (LibraryScanner.isAudioFile(path)) {
+                        addEvent(path, event.kind() == StandardWatchEventKinds.ENTRY_CREATE ? Change.CREATED : Change.MODIFIED);
+                    }
+                }
+                if (!key.reset()) {
+                    watchedDirectories.remove(key);
+                }
+            }
+        }
+        catch (InterruptedException | ClosedWatchServiceException ex) {
+            //The watcher has been closed
+        }
+    }
+
+    /**
+     * Register a folder and its sub folders with the watch service
+     */
+    private void register(Path root) {
+        try {
+            Files.walkFileTree(root, new SimpleFileVisitor<Path>() {
+                @Override
+                public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException {
+                    WatchKey key = dir.register(watchService, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_DELETE, StandardWatchEventKinds.ENTRY_MODIFY);
+                    watchedDirectories.put(key, dir);
+                    return FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult visitFileFailed(Path file, IOException ex) {
+                    return FileVisitResult.CONTINUE;
+                }
+            });
+        }
+        catch (IOException ex) {
+            Logger.getLogger(FolderWatcher.class.getName()).log(Level.WARNING, "Cannot watch " + root, ex);
+        }
+    }
+
+    /**
+     * Mark every audio file under the folder as changed
+     */
+    private void changedTree(Path root) {
+        try {
+            Files.walkFileTree(root, new SimpleFileVisitor<Path>() {
+                @Override
+                public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+                    if (attrs.isRegularFile() && LibraryScanner.isAudioFile(file)) {
+                        addEvent(file, Change.CREATED);
+                    }
+                    return FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult visitFileFailed(Path file, IOException ex) {
+                    return FileVisitResult.CONTINUE;
+                }
+            });
+        }
+        catch (IOException ex) {
+            Logger.getLogger(FolderWatcher.class.getName()).log(Level.WARNING, "Cannot read " + root, ex);
+        }
+    }
+
+    /**
+     * Merge an event into the pending changes. A file that was created and deleted again is forgotten,
+     * a file deleted and created again counts as modified, and a new file stays new however often it is written
+     */
+    private synchronized void addEvent(Path path, Change change) {
+        Change previous = pending.get(path);
+        if (previous == Change.CREATED && change == Change.DELETED) {
+            pending.remove(path);
+        }
+        else if (previous == Change.DELETED && change == Change.CREATED) {
+            pending.put(path, Change.MODIFIED);
+        }
+        else if (previous != Change.CREATED) {
+            pending.put(path, change);
+        }
+        long now = System.currentTimeMillis();
+        if (!flushScheduled) {
+            flushScheduled = true;
+            firstEvent = now;
+            processor.schedule(this::flush, QUIET_MILLIS, TimeUnit.MILLISECONDS);
+        }
+        lastEvent = now;
+    }
+
+    /**
+     * Read the changed files and pass the changes on, once the folders have been quiet long enough
+     */
+    private void flush() {
+        Map<Path, Change> changes;
+        synchronized (this) {
+            long now = System.currentTimeMillis();
+            if (now - lastEvent < QUIET_MILLIS && now - firstEvent < MAX_DELAY_MILLIS) {
+                processor.schedule(this::flush, QUIET_MILLIS - (now - lastEvent), TimeUnit.MILLISECONDS);
+                return;
+            }
+            changes = new LinkedHashMap<>(pending);
+            pending.clear();
+            flushScheduled = false;
+        }
+
+        FolderChanges folderChanges = new FolderChanges();
+        for (Map.Entry<Path, Change> entry : changes.entrySet()) {
+            Path path = entry.getKey();
+            if (entry.getValue() == Change.DELETED) {
+                folderChanges.getDeletedPaths().add(pathResolver.toStored(path.toString()));
+                continue;
+            }
+            try {
+                UserMedia media = dalManager.getMetaData(path.toUri());
+                media.setPath(pathResolver.toStored(path.toString()));
+                if (media.getTitle() == null || media.getTitle().isEmpty()) {
+                    media.setTitle(path.getFileName().toString());
+                }
+                folderChanges.getMedia().add(media);
+            }
+            catch (Exception ex) {  //Probably still being written, it will change again
+                Logger.getLogger(FolderWatcher.class.getName()).log(Level.FINE, "Skipping " + path, ex);
+            }
+        }
+        if (!folderChanges.isEmpty()) {
+            dalManager.saveMetaDataCache();
+            changeHandler.accept(folderChanges);
+        }
+    }
+
+    private void saveRoots() {
+        StringBuilder value = new StringBuilder();
+        for (Path root : roots) {
+            value.append(root).append('\n');
+        }
+        preferences.put(ROOTS_KEY, value.toString());
+    }
+}
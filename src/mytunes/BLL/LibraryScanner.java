@@ -0,0 +1,378 @@
+package mytunes.BLL;
+
+import java.io.IOException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import mytunes.be.ImportProgress;
+import mytunes.be.UserMedia;
+import mytunes.dal.DAException;
+import mytunes.dal.DALManager;
+
+/**
+ * Imports every audio file found in a folder and its sub folders, as a pipeline of three stages:
+ * one thread walks the folder, one thread per core reads the tags of the found files, and one thread saves the songs to the database in batches.
+ * The stages are connected by bounded queues, so a fast disk cannot fill the memory while the database is slow: the readers and then the walk
+ * simply wait until there is room again. Every batch is committed on its own, so a cancelled import keeps the songs saved so far.
+ * Copies of songs already in the library are recognised by their content and skipped by the readers, which also hash the files,
+ * so the writer only saves the new songs and reports the moved ones, without touching the files
+ * @author sebok
+ */
+class LibraryScanner {
+
+    private static final String[] EXTENSIONS = {".mp3", ".wav", ".ogg", ".flac", ".m4a", ".aac", ".aif", ".aiff"};
+    private static final int PATH_QUEUE_SIZE = 1024;    //Found files waiting to be read, cheap to hold
+    private static final int MEDIA_QUEUE_SIZE = 256;    //Read songs waiting to be saved. They are plain rows, the bound is a little more than one batch so the readers wait for the database instead of reading far ahead
+    private static final int BATCH_SIZE = 200;  //The most songs saved in one transaction
+    private static final long POLL_MILLIS = 100;    //How often a waiting stage checks if the import has been cancelled
+    private static final long REPORT_MILLIS = 250;  //How often the progress is reported
+
+    private static final Path END_OF_PATHS = Paths.get("");     //Tells a reader that the walk has finished
+    private static final UserMedia END_OF_MEDIA = new UserMedia();     //Tells the writer that every reader has finished
+
+    private final DALManager dalManager;
+    private final PathResolver pathResolver;
+    private final AtomicInteger writingBatches = new AtomicInteger();   //The batches saved but not handed to the batch handler yet
+
+    /**
+     * Create a new scanner
+     * @param dalManager Used to read the tags of the files and to save the songs
+     * @param pathResolver Translates the local paths of the files to the paths stored in the library
+     */
+    LibraryScanner(DALManager dalManager, PathResolver pathResolver) {
+        this.dalManager = dalManager;
+        this.pathResolver = pathResolver;
+    }
+
+    /**
+     * Import the audio files under the folder. Blocks until every file has been handled, so it should be called on a background thread.
+     * If the calling thread is interrupted, the import stops after the batch being saved, and the songs saved so far are kept
+     * @param root The folder to import
+     * @param knownPaths The stored paths of the songs already in the library, these files are skipped
+     * @param batchHandler Called with every batch of songs once it has been saved, on the writer thread
+     * @param movedHandler Called with the songs read from files that are moved songs of the library, carrying the id of the existing song.
+     * They are not saved, the existing songs have to be updated instead
+     * @param progressHandler Called regularly with the state of the import on the calling thread, and once more at the end
+     * @return The number of imported songs
+     * @throws BLLException If the folder cannot be walked or the songs cannot be saved
+     */
+    int scan(Path root, Set<String> knownPaths, Consumer<List<UserMedia>> batchHandler, Consumer<List<UserMedia>> movedHandler,
+            Consumer<ImportProgress> progressHandler) throws BLLException {
+        Run run = new Run(root, knownPaths, batchHandler, movedHandler);
+        try {
+            run.duplicates.backfillAudioSizes();  //The songs saved without an audio size would never be found as duplicates
+        }
+        catch (DAException ex) {
+            Logger.getLogger(LibraryScanner.class.getName()).log(Level.WARNING, "Audio sizes cannot be measured", ex);
+        }
+        run.start();
+        boolean interrupted = false;
+        long lastReport = System.nanoTime();
+        int lastProcessed = 0;
+        double filesPerSecond = 0;
+        while (run.writer.isAlive()) {
+            try {
+                run.writer.join(REPORT_MILLIS);
+            }
+            catch (InterruptedException ex) {   //Cancelled, let the stages finish the current batch
+                interrupted = true;
+                run.cancelled = true;
+            }
+            long now = System.nanoTime();
+            int processed = run.processed();
+            double recent = (processed - lastProcessed) / ((now - lastReport) / 1e9);
+            filesPerSecond = filesPerSecond == 0 ? recent : (filesPerSecond + recent) / 2;  //Smoothed, so the number does not jump around
+            lastReport = now;
+            lastProcessed = processed;
+            progressHandler.accept(run.progress(filesPerSecond));
+        }
+        dalManager.saveMetaDataCache();     //The next scan of the folder can skip the unchanged files
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        if (run.error != null) {
+            throw new BLLException(run.error);
+        }
+        return run.saved.get();
+    }
+
+    /**
+     * Check if an import is saving a batch of songs right now. The songs of the batch are in the database, but might not have reached the batch handler yet
+     * @return True from the start of a batch write until the batch has been handed to the batch handler
+     */
+    boolean isWriting() {
+        return writingBatches.get() > 0;
+    }
+
+    /**
+     * Check if the file is an audio file, by its extension
+     * @param file The file to check
+     * @return True if the file has one of the supported extensions
+     */
+    static boolean isAudioFile(Path file) {
+        String name = file.getFileName().toString().toLowerCase(Locale.ROOT);
+        for (String extension : EXTENSIONS) {
+            if (name.endsWith(extension)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * The queues, threads and counters of one import
+     */
+    private class Run {
+
+        private final Path root;
+        private final Set<String> knownPaths;
+        private final Consumer<List<UserMedia>> batchHandler;
+        private final Consumer<List<UserMedia>> movedHandler;
+        private final DuplicateFinder duplicates = new DuplicateFinder(dalManager, pathResolver);
+
+        private final BlockingQueue<Path> paths = new ArrayBlockingQueue<>(PATH_QUEUE_SIZE);
+        private final BlockingQueue<UserMedia> media = new ArrayBlockingQueue<>(MEDIA_QUEUE_SIZE);
+        private final Queue<UserMedia> moved = new ConcurrentLinkedQueue<>();    //Read moved files waiting to be reported by the writer
+        private final int readerCount = Runtime.getRuntime().availableProcessors();
+        private final AtomicInteger runningReaders = new AtomicInteger(readerCount);
+
+        private final AtomicInteger discovered = new AtomicInteger();
+        private final AtomicInteger saved = new AtomicInteger();
+        private final AtomicInteger skipped = new AtomicInteger();
+        private final AtomicInteger failed = new AtomicInteger();
+        private volatile boolean discoveryFinished;
+        private volatile boolean cancelled;
+        private volatile Exception error;
+
+        private final Thread writer = new Thread(this::write, "Import writer");
+
+        Run(Path root, Set<String> knownPaths, Consumer<List<UserMedia>> batchHandler, Consumer<List<UserMedia>> movedHandler) {
+            this.root = root;
+            this.knownPaths = knownPaths;
+            this.batchHandler = batchHandler;
+            this.movedHandler = movedHandler;
+        }
+
+        /**
+         * Start the threads of every stage
+         */
+        void start() {
+            startDaemon(new Thread(this::walk, "Import walker"));
+            for (int i = 0; i < readerCount; i++) {
+                startDaemon(new Thread(this::read, "Tag reader " + i));
+            }
+            startDaemon(writer);
+        }
+
+        private void startDaemon(Thread thread) {
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        int processed() {
+            return saved.get() + skipped.get() + failed.get();
+        }
+
+        ImportProgress progress(double filesPerSecond) {
+            return new ImportProgress(discovered.get(), discoveryFinished, saved.get(), skipped.get(), failed.get(), paths.size(), media.size(), filesPerSecond);
+        }
+
+        /**
+         * Stop every stage because of an error
+         */
+        void fail(Exception ex) {
+            if (error == null) {
+                error = ex;
+            }
+            cancelled = true;
+        }
+
+        /**
+         * Put an item into a queue, waiting while it is full
+         * @return False if the import has been cancelled
+         */
+        private <T> boolean put(BlockingQueue<T> queue, T item) {
+            try {
+                while (!cancelled) {
+                    if (queue.offer(item, POLL_MILLIS, TimeUnit.MILLISECONDS)) {
+                        return true;
+                    }
+                }
+                return false;
+            }
+            catch (InterruptedException ex) {
+                cancelled = true;
+                return false;
+            }
+        }
+
+        /**
+         * Take an item from a queue, waiting while it is empty
+         * @return The item, or null if the import has been cancelled
+         */
+        private <T> T take(BlockingQueue<T> queue) {
+            try {
+                while (!cancelled) {
+                    T item = queue.poll(POLL_MILLIS, TimeUnit.MILLISECONDS);
+                    if (item != null) {
+                        return item;
+                    }
+                }
+                return null;
+            }
+            catch (InterruptedException ex) {
+                cancelled = true;
+                return null;
+            }
+        }
+
+        /**
+         * Hand the moved files read so far to the moved handler
+         */
+        private void reportMoved() {
+            List<UserMedia> found = new ArrayList<>();
+            UserMedia song;
+            while ((song = moved.poll()) != null) {
+                found.add(song);
+            }
+            if (!found.isEmpty()) {
+                movedHandler.accept(found);
+            }
+        }
+
+//******************************************************************************************************************************************************************//
+//Stages
+        /**
+         * First stage: walk the folder, and queue the audio files that are not in the library yet
+         */
+        private void walk() {
+            try {
+                Files.walkFileTree(root, new SimpleFileVisitor<Path>() {
+                    @Override
+                    public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+                        if (attrs.isRegularFile() && isAudioFile(file) && !knownPaths.contains(pathResolver.toStored(file.toAbsolutePath().toString()))) {
+                            discovered.incrementAndGet();
+                            if (!put(paths, file)) {
+                                return FileVisitResult.TERMINATE;
+                            }
+                        }
+                        return FileVisitResult.CONTINUE;
+                    }
+
+                    @Override
+                    public FileVisitResult visitFileFailed(Path file, IOException ex) {
+                        return FileVisitResult.CONTINUE;    //Skip the folders and files that cannot be opened
+                    }
+                });
+            }
+            catch (IOException ex) {
+                fail(ex);
+            }
+            finally {
+                discoveryFinished = true;
+                for (int i = 0; i < readerCount; i++) {
+                    if (!put(paths, END_OF_PATHS)) {
+                        break;
+                    }
+                }
+            }
+        }
+
+        /**
+         * Second stage: read the tags of the queued files, and leave out the duplicates. Files that cannot be read are skipped
+         */
+        private void read() {
+            try {
+                Path file;
+                while ((file = take(paths)) != null && file != END_OF_PATHS) {
+                    try {
+                        UserMedia song = dalManager.getMetaData(file.toUri());
+                        song.setPath(pathResolver.toStored(file.toAbsolutePath().toString()));
+                        if (song.getTitle() == null || song.getTitle().isEmpty()) {   //Untagged files are named after the file
+                            song.setTitle(file.getFileName().toString());
+                        }
+                        DuplicateFinder.Match match = DuplicateFinder.Match.NEW;
+                        try {
+                            match = duplicates.check(song);
+                        }
+                        catch (DAException ex) {    //Better to import a copy than to lose the file
+                            Logger.getLogger(LibraryScanner.class.getName()).log(Level.WARNING, "Duplicates cannot be checked", ex);
+                        }
+                        if (match == DuplicateFinder.Match.DUPLICATE) {
+                            skipped.incrementAndGet();
+                            continue;
+                        }
+                        if (match == DuplicateFinder.Match.MOVED) {
+                            moved.add(song);
+                            skipped.incrementAndGet();
+                            continue;
+                        }
+                        if (!put(media, song)) {
+                            return;
+                        }
+                    }
+                    catch (Exception ex) {
+                        failed.incrementAndGet();
+                        Logger.getLogger(LibraryScanner.class.getName()).log(Level.FINE, "Skipping " + file, ex);
+                    }
+                }
+            }
+            finally {
+                if (runningReaders.decrementAndGet() == 0) {
+                    put(media, END_OF_MEDIA);
+                }
+            }
+        }
+
+        /**
+         * Last stage: report the moved files, and save the read songs in batches. Each batch is committed before it is reported
+         */
+        private void write() {
+            List<UserMedia> batch = new ArrayList<>(BATCH_SIZE);
+            boolean finished = false;
+            while (!finished) {
+                UserMedia first = take(media);
+                if (first == null) {
+                    return;     //Cancelled, the songs saved so far stay in the library
+                }
+                batch.clear();
+                batch.add(first);
+                media.drainTo(batch, BATCH_SIZE - 1);
+                finished = batch.remove(END_OF_MEDIA);
+                reportMoved();
+                if (batch.isEmpty()) {
+                    continue;
+                }
+                writingBatches.incrementAndGet();
+                try {
+                    dalManager.saveMedia(batch);
+                    saved.addAndGet(batch.size());
+                    batchHandler.accept(new ArrayList<>(batch));
+                }
+                catch (DAException ex) {
+                    fail(ex);
+                    return;
+                }
+                finally {
+                    writingBatches.decrementAndGet();
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,196 @@
+package mytunes.BLL;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.prefs.Preferences;
+import mytunes.be.UserMedia;
+import mytunes.dal.DAException;
+import mytunes.dal.DALManager;
+
+/**
+ * Measures the loudness of the songs in the background, so the player can even out the volume of the songs.
+ * Every song is decoded once, on a small pool of low priority threads using only a share of the cores.
+ * The songs are read from the database page by page, and the results of every page are stored before the next one is started,
+ * so an analysis that was stopped continues with the songs that are still missing the next time. The share of the cores is stored in the user preferences.
+ * Only the formats of the installed Java Sound decoders can be decoded (WAV, AIFF and AU by default). The songs in other formats (MP3, FLAC, Ogg)
+ * are marked with the version of the decoders that could not read them, and skipped until a decoder is installed or their audio data changes
+ * @author sebok
+ */
+class LoudnessAnalysis {
+
+    private static final String CORE_SHARE_KEY = "analysisCoreShare";
+    private static final double DEFAULT_CORE_SHARE = 0.25;
+    private static final int PAGE_SIZE = 100;   //The songs analysed before the results are stored
+
+    private final DALManager dalManager;
+    private final PathResolver pathResolver;
+    private final Preferences preferences = Preferences.userNodeForPackage(LoudnessAnalysis.class);
+    private final ExecutorService coordinator = Executors.newSingleThreadExecutor(r -> {
+        Thread thread = new Thread(r, "Loudness analysis");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private boolean requested;  //The songs have to be checked (again)
+    private boolean running;
+    private volatile boolean closed;
+
+    /**
+     * Create a new analysis. Nothing is analysed until start is called
+     * @param dalManager Used to find, decode and update the songs that have not been analysed yet
+     * @param pathResolver Finds the files of the songs on this computer
+     */
+    LoudnessAnalysis(DALManager dalManager, PathResolver pathResolver) {
+        this.dalManager = dalManager;
+        this.pathResolver = pathResolver;
+    }
+
+    /**
+     * Analyse the songs that have not been analysed yet, in the background.
+     * Can be called whenever new songs have been added: if an analysis is running, the songs are checked again once it has finished
+     */
+    synchronized void start() {
+        if (closed) {
+            return;
+        }
+        requested = true;
+        if (!running) {
+            running = true;
+            coordinator.execute(this::run);
+        }
+    }
+
+    /**
+     * Get the share of the cores used by the analysis
+     * @return A number between 0 (exclusive) and 1
+     */
+    double getCoreShare() {
+        return preferences.getDouble(CORE_SHARE_KEY, DEFAULT_CORE_SHARE);
+    }
+
+    /**
+     * Set the share of the cores used by the analysis, and remember it. Takes effect when the next analysis starts
+     * @param share A number between 0 (exclusive) and 1, at least one core is always used
+     */
+    void setCoreShare(double share) {
+        preferences.putDouble(CORE_SHARE_KEY, share);
+    }
+
+    /**
+     * Stop the analysis. The songs analysed so far keep their results
+     */
+    void close() {
+        closed = true;
+        coordinator.shutdownNow();
+    }
+
+    /**
+     * Analyse the songs until no new request has arrived
+     */
+    private void run() {
+        int threads = Math.max(1, (int) Math.round(Runtime.getRuntime().availableProcessors() * getCoreShare()));
+        AtomicInteger counter = new AtomicInteger();
+        ExecutorService workers = Executors.newFixedThreadPool(threads, r -> {
+            Thread thread = new Thread(r, "Loudness analyser " + counter.getAndIncrement());
+            thread.setDaemon(true);
+            thread.setPriority(Thread.MIN_PRIORITY);    //Playback and the user interface come first
+            return thread;
+        });
+        try {
+            while (takeRequest()) {
+                try {
+                    analyseAll(workers);
+                }
+                catch (DAException ex) {
+                    Logger.getLogger(LoudnessAnalysis.class.getName()).log(Level.WARNING, "The loudness of the songs cannot be stored", ex);
+                }
+            }
+        }
+        finally {
+            workers.shutdownNow();
+        }
+    }
+
+    /**
+     * Clear the request flag
+     * @return False if there is nothing more to do, the analysis has stopped then
+     */
+    private synchronized boolean takeRequest() {
+        if (!requested || closed) {
+            running = false;
+            return false;
+        }
+        requested = false;
+        return true;
+    }
+
+    /**
+     * Analyse every song that has not been analysed yet, one page at a time
+     */
+    private void analyseAll(ExecutorService workers) throws DAException {
+        int lastId = Integer.MIN_VALUE;
+        List<UserMedia> page;
+        do {
+            page = dalManager.getUnanalysedMedia(lastId, PAGE_SIZE);
+            if (page.isEmpty()) {
+                return;
+            }
+            lastId = page.get(page.size() - 1).getId();     //Songs that cannot be analysed now are skipped until the next analysis
+
+            List<Future<UserMedia>> results = new ArrayList<>();
+            Queue<Integer> undecodable = new ConcurrentLinkedQueue<>();
+            for (UserMedia media : page) {
+                results.add(workers.submit(() -> analyse(media, undecodable)));
+            }
+            List<UserMedia> analysed = new ArrayList<>();
+            for (Future<UserMedia> result : results) {
+                try {
+                    UserMedia media = result.get();
+                    if (media != null) {
+                        analysed.add(media);
+                    }
+                }
+                catch (InterruptedException ex) {   //Closed, the results of this page are lost
+                    return;
+                }
+                catch (ExecutionException ex) {
+                    Logger.getLogger(LoudnessAnalysis.class.getName()).log(Level.FINE, "A song cannot be analysed", ex.getCause());
+                }
+            }
+            dalManager.saveLoudness(analysed);
+            dalManager.markUndecodable(undecodable);
+        } while (page.size() == PAGE_SIZE && !closed);
+    }
+
+    /**
+     * Decode the file of the song, and measure its loudness
+     * @param undecodable The id of the song is added to it if the format of its file cannot be decoded
+     * @return The analysed song, or null if its file cannot be read or decoded on this computer
+     */
+    private UserMedia analyse(UserMedia media, Queue<Integer> undecodable) {
+        String path = pathResolver.resolve(media.getPath());
+        if (closed || path == null || !new File(path).isFile()) {   //Tried again once the file is found
+            return null;
+        }
+        try {
+            if (!dalManager.analyseLoudness(path, media)) {
+                undecodable.add(media.getId());
+                return null;
+            }
+            return media;
+        }
+        catch (DAException ex) {
+            Logger.getLogger(LoudnessAnalysis.class.getName()).log(Level.FINE, "Cannot analyse " + media.getPath(), ex);
+            return null;
+        }
+    }
+}
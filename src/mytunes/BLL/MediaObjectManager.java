@@ -1,7 +1,7 @@
 package mytunes.BLL;
 
-import java.util.ArrayList;
 import java.util.List;
+import java.util.function.Consumer;
 import mytunes.be.UserMedia;
 import mytunes.dal.DAException;
 import mytunes.dal.DALManager;
@@ -12,15 +12,17 @@ import mytunes.dal.DALManager;
  */
 public class MediaObjectManager {
 
-    private List<String> categories;
     private DALManager dalManager;
+    private WriteBehindQueue writeQueue;
 
     /**
      * Creates a new MediaObjectManager instance and sets the internal DALManager object using the parameter
      * @param dm The DALManagar that will be used to access the database
+     * @param writeQueue The changes are written to the database through this queue
      */
-    public MediaObjectManager(DALManager dm) {
+    MediaObjectManager(DALManager dm, WriteBehindQueue writeQueue) {
         this.dalManager = dm;
+        this.writeQueue = writeQueue;
     }
 
     /**
@@ -31,74 +33,52 @@ public class MediaObjectManager {
      */
     List<UserMedia> getMedia() throws BLLException {
         try {
-            List<UserMedia> uMediaList = dalManager.getAllMedia();
-            categories = new ArrayList<>();
-            for (UserMedia userMedia : uMediaList) //Filter out the categories
-            {
-                if (!categories.contains(userMedia.getCategory())) {
-                    categories.add(userMedia.getCategory());
-                }
-            }
-            return uMediaList;
+            return dalManager.getAllMedia();
         } catch (DAException ex) {
             throw new BLLException(ex);
         }
     }
 
     /**
-     * Get the categories
-     *
-     * @return List A list of categories, collected during the retrieval of songs
-     * @throws mytunes.BLL.BLLException If the categories list has not been filled yet
+     * Load the data found in the database one page at a time
      *
+     * @param pageSize The maximum number of songs in one page
+     * @param pageHandler Called with every page of songs
+     * @throws mytunes.BLL.BLLException If an error occurs during loading
      */
-    public List<String> getCategories() throws BLLException {
-        if (categories == null) {
-            throw new BLLException("No data has been red in!");
+    void getMedia(int pageSize, Consumer<List<UserMedia>> pageHandler) throws BLLException {
+        try {
+            dalManager.getAllMedia(pageSize, pageHandler);
+        } catch (DAException ex) {
+            throw new BLLException(ex);
         }
-        return this.categories;
     }
 
     /**
-     * Save the data of the selected media to the DB
+     * Save the data of the selected media to the DB. The song is written in the background, its id is set once it has been saved
      *
      * @param selectedSong The song which will be saved to the database
-     * @throws mytunes.BLL.BLLException If an error occurs during saving
      */
-    void addNew(UserMedia selectedSong) throws BLLException {
-        try {
-            dalManager.saveMedia(selectedSong);
-        } catch (DAException ex) {
-            throw new BLLException(ex);
-        }
+    void addNew(UserMedia selectedSong) {
+        writeQueue.saveMedia(selectedSong);
     }
 
     /**
-     * Attempt to remove the selected object from the DB
+     * Attempt to remove the selected object from the DB. The song is deleted in the background
      *
      * @param selected The song that will be deleted from the database
-     * @throws mytunes.BLL.BLLException If an error occurs during deletion
      */
-    void remove(UserMedia selected) throws BLLException {
-        try {
-            dalManager.deleteMedia(selected);
-        } catch (DAException ex) {
-            throw new BLLException(ex);
-        }
+    void remove(UserMedia selected) {
+        writeQueue.deleteMedia(selected);
     }
 
     /**
-     * Update an existing media object
+     * Update an existing media object. Repeated updates are written to the database only once
      *
      * @param selectedMedia The song which will be updated in the database
-     * @throws mytunes.BLL.BLLException If an error occurs during update
      */
-    void updateMedia(UserMedia selectedMedia) throws BLLException {
-        try {
-            dalManager.editMedia(selectedMedia);
-        } catch (DAException ex) {
-            throw new BLLException(ex);
-        }
+    void updateMedia(UserMedia selectedMedia) {
+        writeQueue.editMedia(selectedMedia);
     }
 
 }
@@ -0,0 +1,204 @@
+package mytunes.BLL;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.prefs.Preferences;
+import mytunes.be.UserMedia;
+
+/**
+ * Translates the paths stored in the database to paths on this computer.
+ * The library can be shared by several computers, which see the same music folder under different names (for example a network share),
+ * so a stored prefix can be mapped to a local prefix. The mappings are stored in the user preferences. Windows paths are matched ignoring the case.
+ * Whether a folder exists is only checked once and then remembered, so if a whole share is missing, it costs one check instead of one for every song
+ * @author sebok
+ */
+class PathResolver {
+
+    private static final String MAPPINGS_KEY = "rootMappings";
+
+    private final Preferences preferences = Preferences.userNodeForPackage(PathResolver.class);
+    private final Map<String, String> mappings = new LinkedHashMap<>();     //Stored prefix -> local prefix
+    private final Map<String, Boolean> directories = new ConcurrentHashMap<>();    //Whether a local folder exists
+
+    /**
+     * Create a new resolver using the stored mappings
+     */
+    PathResolver() {
+        for (String line : preferences.get(MAPPINGS_KEY, "").split("\n")) {
+            int tab = line.indexOf('\t');
+            if (tab > 0) {
+                mappings.put(line.substring(0, tab), line.substring(tab + 1));
+            }
+        }
+    }
+
+    /**
+     * Get the path of the file on this computer
+     * @param storedPath The path stored in the database
+     * @return The local path, or null if the file does not exist on this computer
+     */
+    String resolve(String storedPath) {
+        if (storedPath == null) {
+            return null;
+        }
+        String local;
+        synchronized (this) {
+            local = translate(storedPath, mappings, File.separatorChar);
+        }
+        File file = new File(local);
+        File folder = file.getParentFile();
+        return (folder == null || folderExists(folder)) && file.isFile() ? local : null;    //The folder first, a missing share costs no check per song
+    }
+
+    /**
+     * Get the name of the file from a stored path, which might use the separator of another system
+     * @param path The stored path
+     * @return The name of the file, without its folders
+     */
+    static String fileName(String path) {
+        return path.substring(Math.max(path.lastIndexOf('/'), path.lastIndexOf('\\')) + 1);
+    }
+
+    /**
+     * Get the path of a local file as it is stored in the database, so every computer stores the same path for the same file
+     * @param localPath The path of the file on this computer
+     * @return The path to store
+     */
+    synchronized String toStored(String localPath) {
+        Map<String, String> reversed = new LinkedHashMap<>();
+        for (Map.Entry<String, String> mapping : mappings.entrySet()) {
+            reversed.put(mapping.getValue(), mapping.getKey());
+        }
+        String prefix = longestPrefix(localPath, reversed);
+        if (prefix == null) {
+            return localPath;
+        }
+        String stored = reversed.get(prefix);
+        return translate(localPath, reversed, stored.indexOf('\\') >= 0 ? '\\' : '/');
+    }
+
+    /**
+     * Find the songs whose files cannot be found on this computer
+     * @param media The songs to check
+     * @return The songs that cannot be resolved
+     */
+    List<UserMedia> findUnresolved(Collection<UserMedia> media) {
+        List<UserMedia> unresolved = new ArrayList<>();
+        for (UserMedia song : media) {
+            if (resolve(song.getPath()) == null) {
+                unresolved.add(song);
+            }
+        }
+        return unresolved;
+    }
+
+    /**
+     * Map a stored prefix to a local one, and remember it
+     * @param storedPrefix The beginning of the paths in the database, for example the music folder of another computer
+     * @param localPrefix The same folder on this computer
+     */
+    synchronized void setMapping(String storedPrefix, String localPrefix) {
+        mappings.put(storedPrefix, localPrefix);
+        saveMappings();
+    }
+
+    /**
+     * Remove a mapping
+     * @param storedPrefix The stored prefix of the mapping
+     */
+    synchronized void removeMapping(String storedPrefix) {
+        if (mappings.remove(storedPrefix) != null) {
+            saveMappings();
+        }
+    }
+
+    /**
+     * Get the mappings
+     * @return A copy of the mappings, from the stored prefixes to the local ones
+     */
+    synchronized Map<String, String> getMappings() {
+        return new LinkedHashMap<>(mappings);
+    }
+
+    /**
+     * Forget which folders exist, for example after a share has been connected
+     */
+    void clearCache() {
+        directories.clear();
+    }
+
+    /**
+     * Check if a folder exists. The folders above it are checked first, and every result is remembered,
+     * so the files under a missing folder do not touch the file system at all
+     */
+    private boolean folderExists(File folder) {
+        Boolean known = directories.get(folder.getPath());
+        if (known != null) {
+            return known;
+        }
+        File parent = folder.getParentFile();
+        boolean exists = (parent == null || folderExists(parent)) && folder.isDirectory();
+        directories.put(folder.getPath(), exists);
+        return exists;
+    }
+
+    /**
+     * Replace the longest matching prefix of the path, and use the given separator in the rest of it
+     */
+    private static String translate(String path, Map<String, String> prefixes, char separator) {
+        String prefix = longestPrefix(path, prefixes);
+        if (prefix == null) {
+            return path;
+        }
+        String rest = path.substring(prefix.length()).replace('\\', separator).replace('/', separator);
+        String target = prefixes.get(prefix);
+        if (!rest.isEmpty()) {  //Exactly one separator between the prefix and the rest
+            boolean restSeparated = rest.charAt(0) == separator;
+            boolean targetSeparated = target.endsWith("/") || target.endsWith("\\");
+            if (restSeparated && targetSeparated) {
+                rest = rest.substring(1);
+            }
+            else if (!restSeparated && !targetSeparated) {
+                rest = separator + rest;
+            }
+        }
+        return target + rest;
+    }
+
+    /**
+     * Find the longest prefix that matches the path at a folder boundary
+     */
+    private static String longestPrefix(String path, Map<String, String> prefixes) {
+        String longest = null;
+        for (String prefix : prefixes.keySet()) {
+            if (path.regionMatches(isWindowsPath(prefix), 0, prefix, 0, prefix.length()) && (path.length() == prefix.length() || prefix.endsWith("/") || prefix.endsWith("\\")
+                    || path.charAt(prefix.length()) == '/' || path.charAt(prefix.length()) == '\\')) {
+                if (longest == null || prefix.length() > longest.length()) {
+                    longest = prefix;
+                }
+            }
+        }
+        return longest;
+    }
+
+    /**
+     * Check if the path belongs to Windows, whose file names do not depend on the case: it starts with a drive letter or uses backslashes
+     */
+    private static boolean isWindowsPath(String path) {
+        return path.indexOf('\\') >= 0 || (path.length() >= 2 && path.charAt(1) == ':');
+    }
+
+    private void saveMappings() {
+        StringBuilder value = new StringBuilder();
+        for (Map.Entry<String, String> mapping : mappings.entrySet()) {
+            value.append(mapping.getKey()).append('\t').append(mapping.getValue()).append('\n');
+        }
+        preferences.put(MAPPINGS_KEY, value.toString());
+        directories.clear();
+    }
+}
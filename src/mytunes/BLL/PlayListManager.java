@@ -7,20 +7,24 @@ import mytunes.dal.DAException;
 import mytunes.dal.DALManager;
 
 /**
- * Handles operations such as saving and retrieving PlayList objects from the database
+ * Handles operations such as saving and retrieving PlayList objects from the database.
+ * The changes are written to the database in the background, by the WriteBehindQueue
  *
  * @author sebok
  */
 public class PlayListManager {
 
     private DALManager dalManager;
+    private WriteBehindQueue writeQueue;
 
     /**
      * Creates a new PlayListManagee instance and sets the internal DALManager object using the parameter
      * @param dm The DALManagar that will be used to access the database
+     * @param writeQueue The changes are written to the database through this queue
      */
-    public PlayListManager(DALManager dm) {
+    PlayListManager(DALManager dm, WriteBehindQueue writeQueue) {
         this.dalManager = dm;
+        this.writeQueue = writeQueue;
     }
 
     /**
@@ -42,45 +46,27 @@ public class PlayListManager {
      * Attempt to save a new play list into the DB 
      * 
      * @param newPlayList The play list that will be saved to the database 
-     * @throws BLLException If an error occurs during edit
      */
-    void saveNewPlayList(PlayList newPlayList) throws BLLException {
-        try {
-            dalManager.savePlayList(newPlayList);
-        }
-        catch (DAException ex) {
-            throw new BLLException(ex);
-        }
+    void saveNewPlayList(PlayList newPlayList) {
+        writeQueue.savePlayList(newPlayList);
     }
     
     /**
      * Attempt to update existing play list in the database
      * 
      * @param selectedPlayList The play list that will be updated in the database
-     * @throws BLLException If an error occurs during update
      */
-    void updatePlayList(PlayList selectedPlayList) throws BLLException {
-        try {
-            dalManager.editList(selectedPlayList);
-        }
-        catch (DAException ex) {
-            throw new BLLException(ex);
-        }
+    void updatePlayList(PlayList selectedPlayList) {
+        writeQueue.editPlayList(selectedPlayList);
     }
 
     /**
      * Remove the selected play list from the DB
      * 
      * @param selected The play list that will be deleted from the database
-     * @throws BLLException If an error occurs during deletion
      */
-    void removePlayList(PlayList selected) throws BLLException {
-        try {
-            dalManager.deletePlayList(selected);
-        }
-        catch (DAException ex) {
-            throw new BLLException(ex);
-        }
+    void removePlayList(PlayList selected) {
+        writeQueue.deletePlayList(selected);
     }
 
     /**
@@ -88,15 +74,19 @@ public class PlayListManager {
      * 
      * @param selectedMedia The song that will be added from the selected play list
      * @param selectedPlayList The play list to which the selected song will be added
-     * @throws BLLException If an error occurs during addition
      */
-    void addMediaToPlayList(UserMedia selectedMedia, PlayList selectedPlayList) throws BLLException {
-        try {
-            dalManager.addMediaToList(selectedPlayList, selectedMedia);
-        }
-        catch (DAException ex) {
-            throw new BLLException(ex);
-        }
+    void addMediaToPlayList(UserMedia selectedMedia, PlayList selectedPlayList) {
+        writeQueue.addToPlayList(selectedPlayList, selectedMedia);
+    }
+
+    /**
+     * Save the new positions of the songs that have been moved in the play list
+     * 
+     * @param selectedPlayList The play list that has been reordered
+     * @param movedMedia The songs whose position has changed
+     */
+    void updateOrder(PlayList selectedPlayList, List<UserMedia> movedMedia) {
+        writeQueue.updateOrder(selectedPlayList, movedMedia);
     }
 
     /**
@@ -104,14 +94,8 @@ public class PlayListManager {
      * 
      * @param selectedMedia The song that will be removed from the selected play list
      * @param selectedPlayList The play list from which the selected song will be removed
-     * @throws BLLException If an error occurs during deletion
      */
-    void removeSongFromPlayList(UserMedia selectedMedia, PlayList selectedPlayList) throws BLLException {
-        try {
-            dalManager.deleteMediaFromList(selectedPlayList, selectedMedia);
-        }
-        catch (DAException ex) {
-            throw new BLLException(ex);
-        }
+    void removeSongFromPlayList(UserMedia selectedMedia, PlayList selectedPlayList) {
+        writeQueue.removeFromPlayList(selectedPlayList, selectedMedia);
     }
 }
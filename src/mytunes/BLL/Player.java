@@ -14,11 +14,15 @@ import mytunes.be.UserMedia;
  * @author sebok
  */
 class Player {
+    private static final double REFERENCE_LOUDNESS = -18;   //LUFS, the loudness the analysed songs are turned down to
+    
     private MediaPlayer player;
     private PlayList list;
     private final BooleanProperty isPlaying = new SimpleBooleanProperty();
     private final StringProperty currentlyPlayingString = new SimpleStringProperty();
     private UserMedia currentMedia;
+    private PathResolver pathResolver;  //Finds the files of the songs on this computer
+    private double volume = 1;  //The volume set by the user, before the gain of the song
     
     /**
      * Create a new Player instance using a Media object
@@ -33,6 +37,14 @@ class Player {
      */
     public Player() {
     }
+
+    /**
+     * Create a new Player that plays the files at the paths given by the resolver
+     * @param pathResolver Translates the stored paths of the songs to paths on this computer
+     */
+    Player(PathResolver pathResolver) {
+        this.pathResolver = pathResolver;
+    }
     
     
     /**
@@ -54,15 +66,29 @@ class Player {
     }
 
     /**
-     * Sets the volume of the player
-     * @param value 
+     * Sets the volume of the player. The volume of the songs whose loudness is known is adjusted by their gain
+     * @param value The volume between 0 and 1
      */
     public void setVolume(double value) {
+        volume = value;
         if (player != null) {
-            player.setVolume(value);
+            player.setVolume(volume * gain(currentMedia));
         }
     }
 
+    /**
+     * Get the gain that brings the song to the reference loudness.
+     * The MediaPlayer cannot amplify, so only the songs louder than the reference are changed (turned down)
+     * @param media The song
+     * @return The factor of the volume, between 0 and 1
+     */
+    static double gain(UserMedia media) {
+        if (media == null || media.getLoudness() == null) {
+            return 1;
+        }
+        return Math.min(1, Math.pow(10, (REFERENCE_LOUDNESS - media.getLoudness()) / 20));
+    }
+
     /**
      * Attempts to play the selected song.
      * @throws BLLException If the song cannot be played, an exception is thrown
@@ -94,8 +120,9 @@ class Player {
      */
     public void setMedia(UserMedia media) throws BLLException {
         try {
-            player = new MediaPlayer(media.getMedia());
+            player = new MediaPlayer(getMedia(media));
             currentMedia = media;
+            player.setVolume(volume * gain(media));
         }
         catch (NullPointerException ex) {
             throw new BLLException("You are trying to play a not existing media! Maybe the path of this song is not located on this computer?");
@@ -117,8 +144,9 @@ class Player {
     public void setMedia(PlayList selectedPlayList) throws BLLException
     {
         list = selectedPlayList;
-        player = new MediaPlayer(list.getCurrentlyPlaying().getMedia());
+        player = new MediaPlayer(getMedia(list.getCurrentlyPlaying()));
         currentMedia = list.getCurrentlyPlaying();
+        player.setVolume(volume * gain(currentMedia));
         
         player.setOnEndOfMedia(() ->        //After one song has ended, play the next one
         {
@@ -169,6 +197,18 @@ class Player {
         player.play();
     }
     
+    /**
+     * Get the Media object of the song, from its file on this computer
+     * @param media The song
+     * @return The Media object, or null if the file cannot be found
+     */
+    private Media getMedia(UserMedia media) {
+        if (pathResolver == null) {
+            return media.getMedia();
+        }
+        return media.getMedia(pathResolver.resolve(media.getPath()));
+    }
+
     /**
      * Updates the currentlyPlaying StringProperty, to contain information of the currently playing song
      * @param media The StringProperty will be set using the values of this object
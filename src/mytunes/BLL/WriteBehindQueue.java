@@ -0,0 +1,779 @@
+package mytunes.BLL;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javafx.application.Platform;
+import mytunes.be.PlayList;
+import mytunes.be.UserMedia;
+import mytunes.dal.DAException;
+import mytunes.dal.DALManager;
+
+/**
+ * Collects the changes of the library, and writes them to the database on a background thread.
+ * The changes are expected to be applied to the objects in memory already. The queue is called on the JavaFX thread, and it copies the values
+ * to write right away, so the writer thread never reads the objects shown by the program. Repeated edits of the same object replace the copy
+ * of the pending write, so they are written once. The ids generated by the database are handed back to the objects on the JavaFX thread,
+ * the writes queued before that get the id from the queue.
+ * Consecutive changes of the same kind are written together in one batch. The changes are written in the order they were made:
+ * if a write fails, it is retried later, and the writes after it (for example the songs added to a play list that could not be saved) wait for it.
+ * A write that fails MAX_ATTEMPTS times is reported and set aside as a dead letter, so the writes after it can go through. It is not dropped:
+ * it is tried once more after the next successful write (the database was only unavailable), and again whenever its object is changed.
+ * @author sebok
+ */
+class WriteBehindQueue {
+
+    private static final long FLUSH_DELAY_MILLIS = 200;     //Wait this long after a change, so more changes can be written together
+    private static final long MAX_RETRY_DELAY_MILLIS = 60000;
+    private static final int MAX_ATTEMPTS = 5;      //A write that failed this many times is reported, and set aside
+    private static final int MAX_BATCH = 1000;
+
+    /**
+     * The kinds of changes that can be written
+     */
+    private enum Kind {
+        SAVE_MEDIA, EDIT_MEDIA, DELETE_MEDIA, SAVE_LIST, EDIT_LIST, DELETE_LIST, ADD_TO_LIST, REMOVE_FROM_LIST, ORDER
+    }
+
+    /**
+     * A change waiting to be written. The song and the play list identify the change, the values to write are copies taken when the change was queued
+     */
+    private static class PendingWrite {
+
+        private final Kind kind;
+        private final UserMedia media;
+        private final PlayList list;
+        private UserMedia mediaValues;  //The copy of the song, replaced when the song is edited again before it is written
+        private PlayList listValues;    //The copy of the id and title of the play list
+        private final Map<UserMedia, Long> positions = new LinkedHashMap<>();  //The positions of the songs to save (ADD_TO_LIST and ORDER)
+        private final Map<UserMedia, UserMedia> members = new IdentityHashMap<>();    //The copies of the songs in positions
+        private final long enqueuedAt = System.currentTimeMillis();
+        private int attempts;
+        private boolean cancelled;
+        private boolean parked;     //Set aside after failing MAX_ATTEMPTS times, it is not in the queue
+        private boolean retriedOnce;    //Tried again after a successful write since it was set aside
+
+        PendingWrite(Kind kind, UserMedia media, PlayList list) {
+            this.kind = kind;
+            this.media = media;
+            this.list = list;
+            if (media != null) {
+                mediaValues = copyOf(media);
+            }
+            if (list != null) {
+                listValues = new PlayList(list.getId(), list.getTitle());
+            }
+        }
+
+        /**
+         * Copy the current position of a song in the play list
+         * @param member A song of the play list
+         */
+        void putPosition(UserMedia member) {
+            positions.put(member, list.getPosition(member));
+            members.put(member, copyOf(member));
+        }
+
+        void removePosition(UserMedia member) {
+            positions.remove(member);
+            members.remove(member);
+        }
+    }
+
+    private final DALManager dalManager;
+    private final Deque<PendingWrite> pending = new ArrayDeque<>();
+    private final Map<Object, List<PendingWrite>> byTarget = new IdentityHashMap<>();  //The pending writes of every song and play list
+    private final List<PendingWrite> inFlight = new ArrayList<>();
+    private int pendingCount;
+    private int failures;
+    private final Map<Object, Integer> savedIds = new IdentityHashMap<>();     //The ids of the songs and play lists saved by the queue, until their objects have them. Only used by the writer thread
+    private final List<Object> published = new ArrayList<>();  //The saved songs and play lists that have got their ids, removed from savedIds once no write needs them
+    private final Set<Integer> publishingMedia = new HashSet<>();  //The ids of the saved songs that have not been handed to the songs yet
+    private final Set<Integer> publishingLists = new HashSet<>();
+    private volatile Consumer<BLLException> failureHandler;
+    private final List<Runnable> afterWrites = new ArrayList<>();  //Run once the queue is empty
+    private final List<PendingWrite> deadLetters = new ArrayList<>();  //The writes that failed MAX_ATTEMPTS times, still indexed and counted as pending
+
+    private final ScheduledExecutorService writer = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "Library writer");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private ScheduledFuture<?> scheduledFlush;
+
+    /**
+     * Create a new queue writing to the given DALManager
+     * @param dalManager The changes are written to the database using this object
+     */
+    WriteBehindQueue(DALManager dalManager) {
+        this.dalManager = dalManager;
+    }
+
+//******************************************************************************************************************************************************************//
+//Queueing changes
+    /**
+     * Queue a new song to be saved. The id of the song is set once it has been written
+     * @param media The new song
+     */
+    synchronized void saveMedia(UserMedia media) {
+        add(new PendingWrite(Kind.SAVE_MEDIA, media, null));
+    }
+
+    /**
+     * Queue an edited song to be updated. If the song is already waiting to be saved or updated, that write gets the new values instead
+     * @param media The edited song
+     */
+    synchronized void editMedia(UserMedia media) {
+        for (PendingWrite write : pendingOf(media)) {
+            if (write.kind == Kind.SAVE_MEDIA || write.kind == Kind.EDIT_MEDIA) {
+                write.mediaValues = copyOf(media);
+                revive(write);
+                return;
+            }
+        }
+        add(new PendingWrite(Kind.EDIT_MEDIA, media, null));
+    }
+
+    /**
+     * Queue a song to be deleted. If the song has not been saved yet, its pending changes are dropped instead
+     * @param media The deleted song
+     */
+    synchronized void deleteMedia(UserMedia media) {
+        if (hasPending(media, Kind.SAVE_MEDIA)) {
+            cancel(media);
+            return;
+        }
+        cancel(media, Kind.EDIT_MEDIA);
+        add(new PendingWrite(Kind.DELETE_MEDIA, media, null));
+    }
+
+    /**
+     * Queue a new play list to be saved
+     * @param list The new play list
+     */
+    synchronized void savePlayList(PlayList list) {
+        add(new PendingWrite(Kind.SAVE_LIST, null, list));
+    }
+
+    /**
+     * Queue an edited play list to be updated. If the play list is already waiting to be saved or updated, that write gets the new title instead
+     * @param list The edited play list
+     */
+    synchronized void editPlayList(PlayList list) {
+        for (PendingWrite write : pendingOf(list)) {
+            if (write.kind == Kind.SAVE_LIST || write.kind == Kind.EDIT_LIST) {
+                write.listValues.setTitle(list.getTitle());
+                revive(write);
+                return;
+            }
+        }
+        add(new PendingWrite(Kind.EDIT_LIST, null, list));
+    }
+
+    /**
+     * Queue a play list to be deleted, together with its songs. The pending changes of its songs are dropped,
+     * and if the play list has not been saved yet, nothing is written at all
+     * @param list The deleted play list
+     */
+    synchronized void deletePlayList(PlayList list) {
+        if (hasPending(list, Kind.SAVE_LIST)) {
+            cancel(list);
+            return;
+        }
+        cancel(list, Kind.EDIT_LIST, Kind.ADD_TO_LIST, Kind.REMOVE_FROM_LIST, Kind.ORDER);
+        add(new PendingWrite(Kind.DELETE_LIST, null, list));
+    }
+
+    /**
+     * Queue a song to be added to a play list. The song has to be in the play list already
+     * @param list The play list
+     * @param media The song added to the play list
+     */
+    synchronized void addToPlayList(PlayList list, UserMedia media) {
+        PendingWrite write = new PendingWrite(Kind.ADD_TO_LIST, media, list);
+        write.putPosition(media);
+        add(write);
+    }
+
+    /**
+     * Queue a song to be removed from a play list. If the song has not been added to the play list in the database yet, that is dropped instead.
+     * The position of the song is not saved any more
+     * @param list The play list
+     * @param media The song removed from the play list
+     */
+    synchronized void removeFromPlayList(PlayList list, UserMedia media) {
+        for (PendingWrite write : pendingOf(list)) {
+            if (write.kind == Kind.ORDER) {
+                write.removePosition(media);
+            }
+        }
+        for (PendingWrite write : pendingOf(media)) {
+            if (write.kind == Kind.ADD_TO_LIST && write.list == list) {
+                cancel(write);
+                return;
+            }
+        }
+        add(new PendingWrite(Kind.REMOVE_FROM_LIST, media, list));
+    }
+
+    /**
+     * Queue the positions of moved songs to be saved. The songs are merged into the pending reordering of the same play list
+     * @param list The reordered play list
+     * @param moved The songs whose position has changed
+     */
+    synchronized void updateOrder(PlayList list, List<UserMedia> moved) {
+        PendingWrite order = null;
+        for (PendingWrite write : pendingOf(list)) {
+            if (write.kind == Kind.ORDER) {
+                order = write;
+            }
+        }
+        if (order == null) {
+            order = new PendingWrite(Kind.ORDER, null, list);
+            add(order);
+        }
+        revive(order);
+        for (UserMedia media : moved) {
+            order.putPosition(media);
+        }
+    }
+
+    /**
+     * Set the handler of the writes that keep failing. It is called from the writer thread whenever a write is set aside after failing MAX_ATTEMPTS times.
+     * The write is not dropped, it is tried again after the next successful write, or when its object is changed
+     * @param failureHandler Called with the error of the failed write
+     */
+    void setFailureHandler(Consumer<BLLException> failureHandler) {
+        this.failureHandler = failureHandler;
+    }
+
+    /**
+     * Run an action once every change queued so far has been written. If nothing is waiting, it runs right away on the calling thread,
+     * otherwise on the writer thread once the queue is empty
+     * @param action The action to run, it should return quickly
+     */
+    void afterPendingWrites(Runnable action) {
+        synchronized (this) {
+            if (pendingCount > deadLetters.size() || !inFlight.isEmpty()) {   //The dead letters are not waited for
+                afterWrites.add(action);
+                return;
+            }
+        }
+        action.run();
+    }
+
+    /**
+     * Drop the pending changes of a song or play list deleted by another client. A change being written right now is not retried if it fails
+     * @param target The deleted song or play list
+     */
+    synchronized void forget(Object target) {
+        cancel(target);
+        if (target instanceof UserMedia) {  //It is not in the play lists any more
+            for (PendingWrite write : pending) {
+                if (write.kind == Kind.ORDER && !write.cancelled) {
+                    write.removePosition((UserMedia) target);
+                }
+            }
+        }
+        for (PendingWrite write : inFlight) {
+            if (write.media == target || write.list == target) {
+                write.cancelled = true;
+            }
+        }
+    }
+
+//******************************************************************************************************************************************************************//
+//Statistics
+    /**
+     * Check if a song or play list has changes that have not been written yet
+     * @param target The song or play list
+     * @return True if a change of the object is pending or being written
+     */
+    synchronized boolean isPending(Object target) {
+        if (byTarget.containsKey(target)) {
+            return true;
+        }
+        for (PendingWrite write : inFlight) {
+            if (write.media == target || write.list == target) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Check if an id was generated for a song saved by the queue, and the song has not got it yet
+     * @param id The id of a song
+     * @return True if the song with this id is already in the program, under no id
+     */
+    synchronized boolean isPublishingMedia(int id) {
+        return publishingMedia.contains(id);
+    }
+
+    /**
+     * Check if an id was generated for a play list saved by the queue, and the play list has not got it yet
+     * @param id The id of a play list
+     * @return True if the play list with this id is already in the program, under no id
+     */
+    synchronized boolean isPublishingPlayList(int id) {
+        return publishingLists.contains(id);
+    }
+
+    /**
+     * Get the number of changes that have not been written yet
+     * @return The number of pending changes, including the ones being written right now and the ones set aside
+     */
+    synchronized int getBacklogSize() {
+        return pendingCount + inFlight.size();
+    }
+
+    /**
+     * Get how long the oldest unwritten change has been waiting
+     * @return The age of the oldest pending change in milliseconds, or 0 if everything has been written
+     */
+    synchronized long getFlushLagMillis() {
+        long oldest = Long.MAX_VALUE;
+        for (PendingWrite write : inFlight) {
+            oldest = Math.min(oldest, write.enqueuedAt);
+        }
+        for (PendingWrite write : pending) {
+            if (!write.cancelled) {
+                oldest = Math.min(oldest, write.enqueuedAt);
+                break;      //The rest of the queue is newer
+            }
+        }
+        return oldest == Long.MAX_VALUE ? 0 : System.currentTimeMillis() - oldest;
+    }
+
+    /**
+     * Write every pending change, and stop the background thread
+     * @param timeoutMillis The maximum time to wait for the writes
+     */
+    void close(long timeoutMillis) {
+        writer.execute(this::flush);
+        writer.shutdown();
+        try {
+            writer.awaitTermination(timeoutMillis, TimeUnit.MILLISECONDS);
+        }
+        catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+        synchronized (this) {
+            for (PendingWrite write : deadLetters) {
+                Logger.getLogger(WriteBehindQueue.class.getName()).log(Level.SEVERE, "A library change could not be saved before exit: {0}", write.kind);
+            }
+        }
+    }
+
+//******************************************************************************************************************************************************************//
+//Writing
+    /**
+     * Write the pending changes, a batch at a time, until the queue is empty or a write fails
+     */
+    private void flush() {
+        List<PendingWrite> batch;
+        while (!(batch = takeBatch()).isEmpty()) {
+            try {
+                write(batch);
+                synchronized (this) {
+                    inFlight.clear();
+                    failures = 0;
+                    retryDeadLetters();     //The database accepts changes again
+                }
+            }
+            catch (DAException | RuntimeException ex) {
+                Logger.getLogger(WriteBehindQueue.class.getName()).log(Level.WARNING, "Writing the library changes failed, retrying later", ex);
+                retryLater(batch, ex);
+                return;
+            }
+            publishIds(batch);  //After the batch is done, so it is not written again if this fails
+        }
+        List<Runnable> actions;
+        synchronized (this) {
+            actions = new ArrayList<>(afterWrites);
+            afterWrites.clear();
+        }
+        for (Runnable action : actions) {
+            action.run();
+        }
+    }
+
+    /**
+     * Take the next changes that can be written together: consecutive changes of the same kind (and the same play list)
+     * @return The changes to write, or an empty list if the queue is empty
+     */
+    private synchronized List<PendingWrite> takeBatch() {
+        scheduledFlush = null;
+        List<PendingWrite> batch = new ArrayList<>();
+        while (!pending.isEmpty() && batch.size() < MAX_BATCH) {
+            PendingWrite next = pending.peekFirst();
+            if (!next.cancelled) {
+                if (!batch.isEmpty() && !canBatch(batch.get(0), next)) {
+                    break;
+                }
+                batch.add(next);
+                unindex(next);
+                pendingCount--;
+            }
+            pending.pollFirst();
+        }
+        inFlight.addAll(batch);
+        if (batch.isEmpty()) {
+            releaseIds();
+        }
+        return batch;
+    }
+
+    /**
+     * Forget the ids of the saved objects that have got them. Called when the queue is empty: every write queued before an object got its id
+     * has been written by then, and the later ones copied the id. Only the dead letters might still need it
+     */
+    private void releaseIds() {
+        for (Iterator<Object> it = published.iterator(); it.hasNext();) {
+            Object target = it.next();
+            if (!isNeededByDeadLetter(target)) {
+                savedIds.remove(target);
+                it.remove();
+            }
+        }
+    }
+
+    /**
+     * Check if a dead letter refers to a song or play list
+     * @param target The song or play list
+     * @return True if a dead letter writes the object, or the position of the song
+     */
+    private boolean isNeededByDeadLetter(Object target) {
+        for (PendingWrite write : deadLetters) {
+            if (write.media == target || write.list == target || write.members.containsKey(target)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Check if two changes can be written in the same batch
+     * @return True if the DAL has a bulk operation for both changes together
+     */
+    private boolean canBatch(PendingWrite first, PendingWrite next) {
+        if (first.kind != next.kind) {
+            return false;
+        }
+        switch (first.kind) {
+            case SAVE_MEDIA:
+            case EDIT_MEDIA:
+                return true;
+            case ADD_TO_LIST:
+                return first.list == next.list;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * Write a batch of changes to the database
+     * @param batch Changes of the same kind, as returned by takeBatch
+     * @throws DAException If the DAL cannot write the changes
+     */
+    private void write(List<PendingWrite> batch) throws DAException {
+        PendingWrite first = batch.get(0);
+        for (PendingWrite write : batch) {  //The objects saved since the change was queued have an id by now
+            resolveId(write.media, write.mediaValues);
+            resolveId(write.list, write.listValues);
+            for (Map.Entry<UserMedia, UserMedia> member : write.members.entrySet()) {
+                resolveId(member.getKey(), member.getValue());
+            }
+        }
+        switch (first.kind) {
+            case SAVE_MEDIA:
+                dalManager.saveMedia(mediaOf(batch));
+                for (PendingWrite write : batch) {
+                    savedIds.put(write.media, write.mediaValues.getId());
+                    dalManager.putLoadedMedia(write.mediaValues.getId(), write.media);
+                }
+                break;
+            case EDIT_MEDIA:
+                dalManager.editMedia(mediaOf(batch));
+                break;
+            case DELETE_MEDIA:
+                dalManager.deleteMedia(first.mediaValues);
+                savedIds.remove(first.media);
+                break;
+            case SAVE_LIST:
+                dalManager.savePlayList(first.listValues);
+                savedIds.put(first.list, first.listValues.getId());
+                break;
+            case EDIT_LIST:
+                dalManager.editList(first.listValues);
+                break;
+            case DELETE_LIST:
+                dalManager.deletePlayList(first.listValues);
+                savedIds.remove(first.list);
+                break;
+            case ADD_TO_LIST:
+            case ORDER:
+                PlayList values = new PlayList(first.listValues.getId(), first.listValues.getTitle());  //Only carries the positions to write
+                List<UserMedia> members = new ArrayList<>();
+                for (PendingWrite write : batch) {
+                    for (Map.Entry<UserMedia, Long> position : write.positions.entrySet()) {
+                        UserMedia member = write.members.get(position.getKey());
+                        values.addMedia(member, position.getValue());
+                        members.add(member);
+                    }
+                }
+                if (first.kind == Kind.ADD_TO_LIST) {
+                    dalManager.addMediaToList(values, members);
+                }
+                else {
+                    dalManager.updatePositions(values, members);
+                }
+                break;
+            case REMOVE_FROM_LIST:
+                dalManager.deleteMediaFromList(first.listValues, first.mediaValues);
+                break;
+        }
+    }
+
+    /**
+     * Put a failed batch back to the front of the queue, and try again later, so the writes after it stay in order.
+     * The wait doubles after every failure. A write that failed MAX_ATTEMPTS times is set aside as a dead letter instead,
+     * so it does not hold up the writes after it, and it is reported to the failure handler
+     * @param batch The batch that could not be written
+     * @param ex The error of the last attempt
+     */
+    private void retryLater(List<PendingWrite> batch, Exception ex) {
+        boolean report = false;
+        synchronized (this) {
+            inFlight.clear();
+            failures++;
+            for (int i = batch.size() - 1; i >= 0; i--) {
+                PendingWrite write = batch.get(i);
+                if (write.cancelled) {  //Its object has been deleted by another client
+                    continue;
+                }
+                index(write);
+                pendingCount++;
+                if (++write.attempts >= MAX_ATTEMPTS) {
+                    write.parked = true;
+                    deadLetters.add(write);
+                    report = true;
+                }
+                else {
+                    pending.addFirst(write);
+                }
+            }
+            long delay = Math.min(MAX_RETRY_DELAY_MILLIS, 1000L << Math.min(failures, 16));
+            scheduleFlush(delay);
+        }
+        Consumer<BLLException> handler = failureHandler;
+        if (report) {
+            Logger.getLogger(WriteBehindQueue.class.getName()).log(Level.SEVERE, "A library change failed {0} times, it is set aside: {1}", new Object[]{MAX_ATTEMPTS, batch.get(0).kind});
+            if (handler != null) {
+                handler.accept(new BLLException("Some changes could not be saved to the database, they are tried again once the database accepts changes: " + ex.getMessage()));
+            }
+        }
+    }
+
+    /**
+     * Put the dead letters back to the end of the queue for one more attempt, each of them once after it was set aside.
+     * Called after a successful write, so the writes that only failed because the database was unavailable are saved
+     */
+    private void retryDeadLetters() {
+        for (PendingWrite write : new ArrayList<>(deadLetters)) {
+            if (!write.retriedOnce) {
+                write.retriedOnce = true;
+                revive(write);
+            }
+        }
+    }
+
+    /**
+     * Put a dead letter back to the end of the queue with one attempt left. Nothing is done if the write is in the queue
+     * @param write A pending write
+     */
+    private void revive(PendingWrite write) {
+        if (!write.parked) {
+            return;
+        }
+        deadLetters.remove(write);
+        write.parked = false;
+        write.attempts = MAX_ATTEMPTS - 1;
+        pending.addLast(write);
+        scheduleFlush(FLUSH_DELAY_MILLIS);
+    }
+
+//******************************************************************************************************************************************************************//
+//Helper methods
+    private void add(PendingWrite write) {
+        pending.addLast(write);
+        index(write);
+        pendingCount++;
+        scheduleFlush(FLUSH_DELAY_MILLIS);
+    }
+
+    private void scheduleFlush(long delayMillis) {
+        if (scheduledFlush == null && !writer.isShutdown()) {
+            scheduledFlush = writer.schedule(this::flush, delayMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private void index(PendingWrite write) {
+        if (write.media != null) {
+            byTarget.computeIfAbsent(write.media, k -> new ArrayList<>()).add(write);
+        }
+        if (write.list != null) {
+            byTarget.computeIfAbsent(write.list, k -> new ArrayList<>()).add(write);
+        }
+    }
+
+    private void unindex(PendingWrite write) {
+        for (Object target : new Object[]{write.media, write.list}) {
+            List<PendingWrite> writes = target == null ? null : byTarget.get(target);
+            if (writes != null) {
+                writes.remove(write);
+                if (writes.isEmpty()) {
+                    byTarget.remove(target);
+                }
+            }
+        }
+    }
+
+    private List<PendingWrite> pendingOf(Object target) {
+        List<PendingWrite> writes = byTarget.get(target);
+        return writes == null ? new ArrayList<>() : new ArrayList<>(writes);
+    }
+
+    private boolean hasPending(Object target, Kind... kinds) {
+        for (PendingWrite write : pendingOf(target)) {
+            for (Kind kind : kinds) {
+                if (write.kind == kind) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Cancel the pending changes of a song or play list
+     * @param target The song or play list
+     * @param kinds The kinds of changes to cancel, every change is cancelled if none is given
+     */
+    private void cancel(Object target, Kind... kinds) {
+        for (PendingWrite write : pendingOf(target)) {
+            boolean matches = kinds.length == 0;
+            for (Kind kind : kinds) {
+                matches |= write.kind == kind;
+            }
+            if (matches) {
+                cancel(write);
+            }
+        }
+    }
+
+    private void cancel(PendingWrite write) {
+        write.cancelled = true;     //It is skipped when the queue reaches it
+        unindex(write);
+        pendingCount--;
+        if (write.parked) {
+            deadLetters.remove(write);
+        }
+    }
+
+    private static List<UserMedia> mediaOf(List<PendingWrite> batch) {
+        List<UserMedia> mediaList = new ArrayList<>(batch.size());
+        for (PendingWrite write : batch) {
+            mediaList.add(write.mediaValues);
+        }
+        return mediaList;
+    }
+
+    /**
+     * Copy the values of a song that are written to the database. Called on the JavaFX thread, when the change is queued
+     * @param media The song
+     * @return A new object with the same values, not shared with the program
+     */
+    private static UserMedia copyOf(UserMedia media) {
+        UserMedia copy = new UserMedia(media.getId(), media.getTitle(), media.getArtist(), media.getCategory(), media.getPath(), media.getTime());
+        copy.setAudioSize(media.getAudioSize());
+        copy.setContentHash(media.getContentHash());
+        copy.setLoudness(media.getLoudness());
+        copy.setPeak(media.getPeak());
+        return copy;
+    }
+
+    /**
+     * Give the copy the id of its object, if the object was saved by the queue after the copy was made
+     * @param target The song or play list
+     * @param values The copy of its values
+     */
+    private void resolveId(Object target, Object values) {
+        Integer id = target == null ? null : savedIds.get(target);
+        if (id == null) {
+            return;
+        }
+        if (values instanceof UserMedia && ((UserMedia) values).getId() == 0) {
+            ((UserMedia) values).setId(id);
+        }
+        else if (values instanceof PlayList && ((PlayList) values).getId() == 0) {
+            ((PlayList) values).setId(id);
+        }
+    }
+
+    /**
+     * Hand the ids generated for the saved songs and play lists of a batch to their objects on the JavaFX thread
+     * @param batch A written batch
+     */
+    private void publishIds(List<PendingWrite> batch) {
+        try {
+            for (PendingWrite write : batch) {
+                if (write.kind == Kind.SAVE_MEDIA) {
+                    int id = write.mediaValues.getId();
+                    synchronized (this) {
+                        publishingMedia.add(id);
+                    }
+                    Platform.runLater(() -> {
+                        write.media.setId(id);
+                        synchronized (this) {
+                            publishingMedia.remove(id);
+                            published.add(write.media);
+                            scheduleFlush(FLUSH_DELAY_MILLIS);  //Releases the id even if nothing else is written
+                        }
+                    });
+                }
+                else if (write.kind == Kind.SAVE_LIST) {
+                    int id = write.listValues.getId();
+                    synchronized (this) {
+                        publishingLists.add(id);
+                    }
+                    Platform.runLater(() -> {
+                        write.list.setId(id);
+                        synchronized (this) {
+                            publishingLists.remove(id);
+                            published.add(write.list);
+                            scheduleFlush(FLUSH_DELAY_MILLIS);  //Releases the id even if nothing else is written
+                        }
+                    });
+                }
+            }
+        }
+        catch (IllegalStateException ex) {     //The JavaFX runtime has exited, the changes are written on exit
+            Logger.getLogger(WriteBehindQueue.class.getName()).log(Level.FINE, "The ids of the saved objects were not handed back", ex);
+        }
+    }
+}
@@ -10,6 +10,7 @@ import javafx.fxml.FXMLLoader;
 import javafx.scene.Parent;
 import javafx.scene.Scene;
 import javafx.stage.Stage;
+import mytunes.gui.Model.MediaPlayerModel;
 
 /**
  *
@@ -28,6 +29,11 @@ public class MyTunes extends Application {
         stage.show();
     }
 
+    @Override
+    public void stop() throws Exception {
+        MediaPlayerModel.getInstance().close();   //Write the changes that are still waiting in the queue
+    }
+
     /**
      * @param args the command line arguments
      */
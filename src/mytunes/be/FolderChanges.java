@@ -0,0 +1,41 @@
+package mytunes.be;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * The files that have changed in the watched folders since the last update.
+ * A moved file shows up as a deleted path and a new file with the same name
+ * @author sebok
+ */
+public class FolderChanges {
+
+    private final List<UserMedia> media = new ArrayList<>();    //The tags of the new and modified files, with their paths set
+    private final Set<String> deletedPaths = new HashSet<>();   //Deleted files and folders
+
+    /**
+     * Get the new and modified files
+     * @return The tags read from the files
+     */
+    public List<UserMedia> getMedia() {
+        return media;
+    }
+
+    /**
+     * Get the paths that have been deleted. A path can be a folder, in that case every song under it is gone
+     * @return The deleted paths
+     */
+    public Set<String> getDeletedPaths() {
+        return deletedPaths;
+    }
+
+    /**
+     * Check if anything has changed
+     * @return True if there are no changes
+     */
+    public boolean isEmpty() {
+        return media.isEmpty() && deletedPaths.isEmpty();
+    }
+}
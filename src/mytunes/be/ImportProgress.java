@@ -0,0 +1,114 @@
+package mytunes.be;
+
+/**
+ * The state of a running folder import: how many files have been found and handled, how fast, and how full the queues between the stages are
+ * @author sebok
+ */
+public class ImportProgress {
+
+    private final int discovered;
+    private final boolean discoveryFinished;
+    private final int saved;
+    private final int skipped;
+    private final int failed;
+    private final int pathQueueSize;
+    private final int mediaQueueSize;
+    private final double filesPerSecond;
+
+    /**
+     * Create a new snapshot of the state of an import
+     * @param discovered The number of audio files found so far
+     * @param discoveryFinished True if the whole folder has been walked
+     * @param saved The number of songs saved to the database
+     * @param skipped The number of files that are duplicates or moved songs of the library
+     * @param failed The number of files that could not be read
+     * @param pathQueueSize The number of found files waiting to be read
+     * @param mediaQueueSize The number of read songs waiting to be saved
+     * @param filesPerSecond The number of files handled per second recently
+     */
+    public ImportProgress(int discovered, boolean discoveryFinished, int saved, int skipped, int failed, int pathQueueSize, int mediaQueueSize, double filesPerSecond) {
+        this.discovered = discovered;
+        this.discoveryFinished = discoveryFinished;
+        this.saved = saved;
+        this.skipped = skipped;
+        this.failed = failed;
+        this.pathQueueSize = pathQueueSize;
+        this.mediaQueueSize = mediaQueueSize;
+        this.filesPerSecond = filesPerSecond;
+    }
+
+    /**
+     * Get the number of audio files found so far
+     * @return The number of found files
+     */
+    public int getDiscovered() {
+        return discovered;
+    }
+
+    /**
+     * Get the number of files that have gone through every stage
+     * @return The number of saved, skipped and failed files
+     */
+    public int getProcessed() {
+        return saved + skipped + failed;
+    }
+
+    /**
+     * Get the number of songs saved to the database
+     * @return The number of saved songs
+     */
+    public int getSaved() {
+        return saved;
+    }
+
+    /**
+     * Get the number of files that were not saved, because they are copies or moved songs of the library
+     * @return The number of skipped files
+     */
+    public int getSkipped() {
+        return skipped;
+    }
+
+    /**
+     * Get the number of files that could not be read
+     * @return The number of failed files
+     */
+    public int getFailed() {
+        return failed;
+    }
+
+    /**
+     * Get the number of found files waiting for their tags to be read
+     * @return The size of the queue between the folder walk and the tag readers
+     */
+    public int getPathQueueSize() {
+        return pathQueueSize;
+    }
+
+    /**
+     * Get the number of read songs waiting to be saved
+     * @return The size of the queue between the tag readers and the database writer
+     */
+    public int getMediaQueueSize() {
+        return mediaQueueSize;
+    }
+
+    /**
+     * Get the number of files handled per second recently
+     * @return The throughput of the import
+     */
+    public double getFilesPerSecond() {
+        return filesPerSecond;
+    }
+
+    /**
+     * Get the part of the import that is done
+     * @return A number between 0 and 1, or -1 while the folder is still being walked and the number of files is not known
+     */
+    public double getProgress() {
+        if (!discoveryFinished) {
+            return -1;
+        }
+        return discovered == 0 ? 1 : (double) getProcessed() / discovered;
+    }
+}
@@ -0,0 +1,88 @@
+package mytunes.be;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The changes of the library since a sync token, as read from the database.
+ * Songs and play lists are new objects holding the stored data, they have to be merged into the already loaded ones by their id
+ * @author Dominik
+ */
+public class LibraryChanges {
+
+    private final long token;
+    private final List<UserMedia> media = new ArrayList<>();   //The changed or new songs
+    private final Set<Integer> deletedMediaIds = new HashSet<>();
+    private final List<PlayList> playLists = new ArrayList<>();    //The changed or new play lists, without their songs
+    private final Set<Integer> deletedPlayListIds = new HashSet<>();
+    private final Map<Integer, LinkedHashMap<Integer, Long>> members = new HashMap<>();  //The songs of the changed play lists: song id and position, in order
+
+    /**
+     * Create an empty set of changes
+     * @param token The sync token to use when the next changes are read
+     */
+    public LibraryChanges(long token) {
+        this.token = token;
+    }
+
+    /**
+     * Get the sync token of these changes
+     * @return The token to use when the next changes are read
+     */
+    public long getToken() {
+        return token;
+    }
+
+    /**
+     * Get the songs that have been added or changed
+     * @return The stored data of the songs
+     */
+    public List<UserMedia> getMedia() {
+        return media;
+    }
+
+    /**
+     * Get the ids of the deleted songs
+     * @return The ids of the songs that are no longer in the database
+     */
+    public Set<Integer> getDeletedMediaIds() {
+        return deletedMediaIds;
+    }
+
+    /**
+     * Get the play lists that have been added or renamed
+     * @return The stored data of the play lists, their list of songs is empty
+     */
+    public List<PlayList> getPlayLists() {
+        return playLists;
+    }
+
+    /**
+     * Get the ids of the deleted play lists
+     * @return The ids of the play lists that are no longer in the database
+     */
+    public Set<Integer> getDeletedPlayListIds() {
+        return deletedPlayListIds;
+    }
+
+    /**
+     * Get the songs of the play lists whose content or order has changed
+     * @return The id and position of every song, in order, by the id of the play list
+     */
+    public Map<Integer, LinkedHashMap<Integer, Long>> getMembers() {
+        return members;
+    }
+
+    /**
+     * Check if anything has changed
+     * @return True if there are no changes
+     */
+    public boolean isEmpty() {
+        return media.isEmpty() && deletedMediaIds.isEmpty() && playLists.isEmpty() && deletedPlayListIds.isEmpty() && members.isEmpty();
+    }
+}
@@ -1,6 +1,12 @@
 package mytunes.be;
 
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.TimeUnit;
 import javafx.beans.property.IntegerProperty;
 import javafx.beans.property.SimpleIntegerProperty;
@@ -16,7 +22,10 @@ import javafx.collections.ObservableList;
  */
 public class PlayList {
 
+    private static final long POSITION_GAP = 1 << 20;   //The distance between the positions of neighbouring songs, leaves room to move songs in between
+
     private ObservableList<UserMedia> mediaList = FXCollections.observableArrayList();  //The collection of songs
+    private final Map<UserMedia, Long> positions = new ConcurrentHashMap<>();   //The stored position of each song, the songs are ordered by it. New songs have no id until they are saved, so the instance is the key
     
     private final IntegerProperty id = new SimpleIntegerProperty();
     private final StringProperty title = new SimpleStringProperty();
@@ -138,16 +147,73 @@ public class PlayList {
 
 
     /**
-     * Add a song to the play list
+     * Add a song to the end of the play list
      * @param selectedMedia the song that will be added to the play list
      */
     public void addMedia(UserMedia selectedMedia) 
+    {
+        long position = mediaList.isEmpty() ? POSITION_GAP : getPosition(mediaList.get(mediaList.size() - 1)) + POSITION_GAP;
+        addMedia(selectedMedia, position);
+    }
+
+    /**
+     * Add a song to the end of the play list, using an already stored position (for example, when loading the play list from the database)
+     * @param selectedMedia the song that will be added to the play list
+     * @param position The stored position of the song. Songs have to be added in the order of their positions
+     */
+    public void addMedia(UserMedia selectedMedia, long position) 
     {
         mediaList.add(selectedMedia);
+        positions.put(selectedMedia, position);
         totalTimeInSeconds += selectedMedia.getTime();
         updateStringTime();
     }
 
+    /**
+     * Replace the songs of the play list, for example when another client has changed it in the database.
+     * Nothing happens if the songs and their positions are the same
+     * @param ordered The songs and their positions, in order
+     */
+    public void replaceMedia(LinkedHashMap<UserMedia, Long> ordered)
+    {
+        if (positions.equals(ordered) && mediaList.equals(new ArrayList<>(ordered.keySet())))
+        {
+            return;
+        }
+        positions.clear();
+        positions.putAll(ordered);
+        mediaList.setAll(ordered.keySet());
+        if (currentlyPlayingIndex >= mediaList.size())
+        {
+            currentlyPlayingIndex = 0;
+        }
+        updateTotalTime();
+    }
+
+    /**
+     * Add up the length of the songs again, for example when the length of a song in the play list has changed
+     */
+    public void updateTotalTime()
+    {
+        totalTimeInSeconds = 0;
+        for (UserMedia media : mediaList)
+        {
+            totalTimeInSeconds += media.getTime();
+        }
+        updateStringTime();
+    }
+
+    /**
+     * Get the stored position of a song in this play list. 
+     * Positions are not consecutive numbers, but they follow the order of the songs
+     * @param media A song in this play list
+     * @return The position of the song
+     */
+    public long getPosition(UserMedia media)
+    {
+        return positions.get(media);
+    }
+
     /**
      * Remove a song from the play list
      * @param mediaToDelete The song that will be removed
@@ -157,15 +223,16 @@ public class PlayList {
         
         while(i.hasNext())  //Iterate through the media list
         {
-            if (i.next().getId() == mediaToDelete.getId()) //If the media is in the list remove it
+            UserMedia media = i.next();
+            if (media == mediaToDelete) //If the media is in the list remove it (the play lists share the instances of the library)
             {
                 i.remove();
+                positions.remove(media);
                 break;
             }
         }
         
-        totalTimeInSeconds -= mediaToDelete.getTime();
-        updateStringTime();
+        updateTotalTime();  //The length of the song may have changed since it was added
     }
 
     /**
@@ -174,14 +241,7 @@ public class PlayList {
      * @return True id the play list contains the song, false otherwise
      */
     public boolean containsMedia(UserMedia media) {
-        for (UserMedia userMedia : mediaList)
-        {
-            if (userMedia.getId() == media.getId())
-            {
-                return true;
-            }
-        }
-        return false;
+        return positions.containsKey(media);    //Every song in the list has a position
     }
 
     /**
@@ -193,10 +253,14 @@ public class PlayList {
     }
 
     /**
-     * Deletes all songs from this play list
+     * Deletes all songs from this play list at once
      */
     public void clearMediaList() {
         mediaList.clear();
+        positions.clear();
+        totalTimeInSeconds = 0;
+        currentlyPlayingIndex = 0;
+        updateStringTime();
     }
 
     /**
@@ -218,23 +282,92 @@ public class PlayList {
     /**
      * Move the song with the specified index up in the list
      * @param index The index of the song which will be moved up in the list
+     * @return The songs whose position has changed
      */
-    public void moveSongUp(int index) 
+    public List<UserMedia> moveSongUp(int index) 
     {
-        UserMedia switchSong = mediaList.get(index - 1);
-        mediaList.set(index - 1, mediaList.get(index));
-        mediaList.set(index, switchSong);
+        return moveSongsUp(index, index);
     }
 
     /**
      * Move the song with the specified index down in the list
      * @param index The index of the song which will be moved down in the list
+     * @return The songs whose position has changed
+     */
+    public List<UserMedia> moveSongDown(int index) 
+    {
+        return moveSongsDown(index, index);
+    }
+
+    /**
+     * Move a block of songs up by one in the list. 
+     * Instead of moving every song in the block, the song above the block is moved below it, so usually only one position changes
+     * @param from The index of the first song in the block
+     * @param to The index of the last song in the block
+     * @return The songs whose position has changed
+     */
+    public List<UserMedia> moveSongsUp(int from, int to)
+    {
+        UserMedia displaced = mediaList.remove(from - 1);
+        mediaList.add(to, displaced);
+        return placeBetweenNeighbours(to);
+    }
+
+    /**
+     * Move a block of songs down by one in the list. 
+     * Instead of moving every song in the block, the song below the block is moved above it, so usually only one position changes
+     * @param from The index of the first song in the block
+     * @param to The index of the last song in the block
+     * @return The songs whose position has changed
+     */
+    public List<UserMedia> moveSongsDown(int from, int to)
+    {
+        UserMedia displaced = mediaList.remove(to + 1);
+        mediaList.add(from, displaced);
+        return placeBetweenNeighbours(from);
+    }
+
+    /**
+     * Give the song at the index a position between the positions of its neighbours. 
+     * If there is no room left between them, every song gets a new position
+     * @param index The index of the song that has been moved
+     * @return The songs whose position has changed
      */
-    public void moveSongDown(int index) 
+    private List<UserMedia> placeBetweenNeighbours(int index)
     {
-        UserMedia switchSong = mediaList.get(index + 1);
-        mediaList.set(index + 1, mediaList.get(index));
-        mediaList.set(index, switchSong);
+        UserMedia moved = mediaList.get(index);
+        long before = index == 0 ? 0 : getPosition(mediaList.get(index - 1));
+        long position;
+        if (index == mediaList.size() - 1)
+        {
+            position = before + POSITION_GAP;
+        }
+        else
+        {
+            long after = getPosition(mediaList.get(index + 1));
+            position = before + (after - before) / 2;
+            if (position <= before)     //The gap between the neighbours is used up, space out the whole list again
+            {
+                return renumber();
+            }
+        }
+        positions.put(moved, position);
+        return Collections.singletonList(moved);
+    }
+
+    /**
+     * Give every song a new position, evenly spaced out
+     * @return Every song in the play list
+     */
+    private List<UserMedia> renumber()
+    {
+        long position = 0;
+        for (UserMedia media : mediaList)
+        {
+            position += POSITION_GAP;
+            positions.put(media, position);
+        }
+        return new ArrayList<>(mediaList);
     }
 
     /**
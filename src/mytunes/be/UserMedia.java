@@ -1,8 +1,14 @@
 package mytunes.be;
 
 import java.io.File;
+import java.util.LinkedHashMap;
+import java.util.Map;
 import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javafx.beans.property.DoubleProperty;
 import javafx.beans.property.IntegerProperty;
+import javafx.beans.property.SimpleDoubleProperty;
 import javafx.beans.property.SimpleIntegerProperty;
 import javafx.beans.property.SimpleStringProperty;
 import javafx.beans.property.StringProperty;
@@ -14,14 +20,25 @@ import javafx.scene.media.Media;
  */
 public class UserMedia {
 
+    private static final int MEDIA_CACHE_SIZE = 16;     //The number of recently played Media objects kept
+    private static final Map<String, Media> MEDIA_CACHE = new LinkedHashMap<String, Media>(MEDIA_CACHE_SIZE, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Media> eldest) {
+            return size() > MEDIA_CACHE_SIZE;   //Drop the least recently used one
+        }
+    };
+
     private final IntegerProperty id = new SimpleIntegerProperty();
     private final StringProperty title = new SimpleStringProperty();
     private final StringProperty artist = new SimpleStringProperty();
     private final StringProperty category = new SimpleStringProperty();
     private final StringProperty path = new SimpleStringProperty(); //The user-readable path of the media file
-    private Media media;
-    private double time;
+    private final DoubleProperty time = new SimpleDoubleProperty();     //The length in seconds
     private String timeString;
+    private long audioSize;     //The size of the audio data in the file, without the tags
+    private String contentHash;     //The hash of the audio data, only computed when another file has the same audio size
+    private Double loudness;    //The integrated loudness in LUFS, null if it is not known
+    private Double peak;    //The sample peak between 0 and 1, null if the file has not been analysed yet
 
     /** 
      * Creates a new UserMedia object 
@@ -30,17 +47,15 @@ public class UserMedia {
      * @param artist The artist of the media
      * @param category The category of the media
      * @param path The path of the media on the computer on which it was selected
-     * @param media The media object (such as an .mp3 file)
      * @param time The length of the media
      */
-    public UserMedia(int id, String title, String artist, String category, String path, Media media, double time) {
+    public UserMedia(int id, String title, String artist, String category, String path, double time) {
         this.id.set(id);
         this.title.set(title);
         this.artist.set(artist);
         this.category.set(category);
         this.path.set(path);
-        this.media = media;
-        this.time = time;
+        this.time.set(time);
     }
 
     /**
@@ -49,22 +64,6 @@ public class UserMedia {
     public UserMedia() {
     }
 
-    /**
-     * Creates a media from the path (for example, when loading a UserMedia object from the database)
-     * @throws Exception If the path cannot be found. This probably means that the media was selected on another computer, or the file was moved
-     */
-    public void createMediaFromPath() throws Exception {
-        try {
-            File f = new File(path.get());
-            this.media = new Media(f.toURI().toString());
-        }
-        catch (Exception ex) {
-            //If the save did not occure on the current machine, an error will occur, and the Media object will no be created
-            //The data, hovewer, will not be displayed (but it will appear on the tableView)
-            System.out.println(ex.getMessage());
-        }
-    }
-
     /**
      * Return the title of the media
      * @return The title of the media
@@ -97,6 +96,38 @@ public class UserMedia {
         path.set(value);
     }
 
+    /**
+     * Get the property holding the title of the media, which can be observed for edits
+     * @return The title property
+     */
+    public StringProperty titleProperty() {
+        return title;
+    }
+
+    /**
+     * Get the property holding the artist of the media, which can be observed for edits
+     * @return The artist property
+     */
+    public StringProperty artistProperty() {
+        return artist;
+    }
+
+    /**
+     * Get the property holding the category of the media, which can be observed for edits
+     * @return The category property
+     */
+    public StringProperty categoryProperty() {
+        return category;
+    }
+
+    /**
+     * Get the property holding the time (length) of the media, which can be observed for edits
+     * @return The time property, in seconds
+     */
+    public DoubleProperty timeProperty() {
+        return time;
+    }
+
     /**
      * Return the category of the media
      * @return The category of the media
@@ -150,7 +181,7 @@ public class UserMedia {
      * @param time The time that will be set (in seconds)
      */
     public void setTime(double time) {
-        this.time = time;
+        this.time.set(time);
     }
 
     /**
@@ -158,31 +189,115 @@ public class UserMedia {
      * @return The time (length) of the media in seconds
      */
     public double getTime() {
-        return time;
+        return time.get();
+    }
+
+    /**
+     * Get the size of the audio data in the file. Files with a different audio size cannot have the same content
+     * @return The size of the file without its tags in bytes, or 0 if it is not known
+     */
+    public long getAudioSize() {
+        return audioSize;
+    }
+
+    /**
+     * Set the size of the audio data in the file
+     * @param audioSize The size of the file without its tags in bytes
+     */
+    public void setAudioSize(long audioSize) {
+        this.audioSize = audioSize;
+    }
+
+    /**
+     * Get the hash of the audio data in the file. Two files with the same hash are copies of the same recording, even if their tags differ
+     * @return The hash as a hexadecimal string, or null if it has not been computed yet
+     */
+    public String getContentHash() {
+        return contentHash;
+    }
+
+    /**
+     * Set the hash of the audio data in the file
+     * @param contentHash The hash as a hexadecimal string
+     */
+    public void setContentHash(String contentHash) {
+        this.contentHash = contentHash;
+    }
+
+    /**
+     * Get the integrated loudness of the file, measured by the background analysis
+     * @return The loudness in LUFS, or null if it is not known (the file has not been analysed, is silent, or cannot be decoded)
+     */
+    public Double getLoudness() {
+        return loudness;
     }
 
     /**
-     * Return the Media object stored in this instance
-     * @return The Media object stored in this instance
+     * Set the integrated loudness of the file
+     * @param loudness The loudness in LUFS, or null if it is not known
+     */
+    public void setLoudness(Double loudness) {
+        this.loudness = loudness;
+    }
+
+    /**
+     * Get the sample peak of the file, measured by the background analysis
+     * @return The highest absolute sample value between 0 and 1, or null if the file has not been analysed yet
+     */
+    public Double getPeak() {
+        return peak;
+    }
+
+    /**
+     * Set the sample peak of the file
+     * @param peak The highest absolute sample value between 0 and 1, or null if the file has to be analysed again
+     */
+    public void setPeak(Double peak) {
+        this.peak = peak;
+    }
+
+    /**
+     * Return the Media object of the file. It is only created when it is first needed (when the song is played),
+     * and the recently used ones are kept in a small shared cache, so loading the library does not touch the files
+     * @return The Media object of the file, or null if the file cannot be found. This probably means that the media was selected on another computer, or the file was moved
      */
     public Media getMedia() {
-        return this.media;
+        return getMedia(path.get());
     }
 
-     /**
-     * Set the media object of this instance
-     * @param media The Media object that will be stored in this instance
+    /**
+     * Return the Media object of the file at the given location, for example the path of the file on this computer if it has been stored by another one
+     * @param file The path of the file of this song
+     * @return The Media object of the file, or null if the file cannot be found
      */
-    public void setMedia(Media media) {
-        this.media = media;
+    public Media getMedia(String file) {
+        if (file == null) {
+            return null;
+        }
+        synchronized (MEDIA_CACHE) {
+            Media cached = MEDIA_CACHE.get(file);
+            if (cached == null) {
+                try {
+                    cached = new Media(new File(file).toURI().toString());
+                }
+                catch (Exception ex) {
+                    //If the save did not occure on the current machine, an error will occur, and the Media object will no be created
+                    //The data, hovewer, will be displayed on the tableView
+                    Logger.getLogger(UserMedia.class.getName()).log(Level.FINE, "Cannot open " + file, ex);
+                    return null;
+                }
+                MEDIA_CACHE.put(file, cached);
+            }
+            return cached;
+        }
     }
-    
+
     /**
      * Return the time (length) of the media formatted as string
      * @return The time (length) of the media formatted as string
      */
     public String getTimeString() {
-        long timeInLong = new Double(time).longValue();
+        long timeInLong = new Double(time.get()).longValue();
         int day = (int) TimeUnit.SECONDS.toDays(timeInLong);
         long hours = TimeUnit.SECONDS.toHours(timeInLong) - (day * 24);
         long minute = TimeUnit.SECONDS.toMinutes(timeInLong) - (TimeUnit.SECONDS.toHours(timeInLong) * 60);
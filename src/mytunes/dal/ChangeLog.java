@@ -0,0 +1,188 @@
+package mytunes.dal;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Records which rows of the library have been changed, so the other clients using the same database can read only the changes.
+ * Every write adds an entry with an increasing id, the highest id read by a client is its sync token.
+ * The ids are given out when the entries are inserted, not when they are committed, so an entry can appear below a token that has already been read.
+ * Because of this the ids skipped between the entries read are remembered, and only those are looked for again, until they are committed
+ * or GAP_TIMEOUT_MILLIS has passed (rolled back, or skipped by the identity column). A poll without changes reads nothing.
+ * The entry of a deleted row stays in the log for KEEP_DAYS, and serves as its tombstone: the row is missing when the client looks it up.
+ * Every entry has the time it was written, the older entries are deleted by prune. A client that has not read the changes for longer has to load the library again
+ * @author Dominik
+ */
+class ChangeLog {
+
+    static final String MEDIA = "M";    //A row of the Music table
+    static final String PLAYLIST = "P";     //A row of the Playlist table
+    static final String MEMBERS = "L";      //The songs of a play list (the MusicInList rows with the listID)
+
+    private static final int BATCH_SIZE = 1000;
+    private static final long GAP_TIMEOUT_MILLIS = 120000;  //How long a missing entry is looked for, longer than any transaction of the program
+    private static final long MAX_GAP = 10000;  //The most missing ids remembered below one entry
+    private static final int GAP_QUERY_SIZE = 500;  //The missing ids looked for by one query
+    static final int KEEP_DAYS = 7;     //The age of the entries that are deleted
+
+    /**
+     * Record a change of a row
+     * @param con The connection used by the change, so the entry is part of the same transaction
+     * @param entity The kind of the row (MEDIA, PLAYLIST or MEMBERS)
+     * @param id The id of the row
+     * @throws SQLException If an error occurs during database access
+     */
+    static void record(Connection con, String entity, int id) throws SQLException {
+        PreparedStatement pstatement = con.prepareStatement("INSERT INTO ChangeLog(entity, entityId) VALUES(?, ?)");
+        pstatement.setString(1, entity);
+        pstatement.setInt(2, id);
+        pstatement.executeUpdate();
+    }
+
+    /**
+     * Record the changes of several rows of the same kind, using JDBC batches
+     * @param con The connection used by the change, so the entries are part of the same transaction
+     * @param entity The kind of the rows (MEDIA, PLAYLIST or MEMBERS)
+     * @param ids The ids of the rows
+     * @throws SQLException If an error occurs during database access
+     */
+    static void record(Connection con, String entity, Collection<Integer> ids) throws SQLException {
+        PreparedStatement pstatement = con.prepareStatement("INSERT INTO ChangeLog(entity, entityId) VALUES(?, ?)");
+        int count = 0;
+        for (int id : new LinkedHashSet<>(ids)) {
+            pstatement.setString(1, entity);
+            pstatement.setInt(2, id);
+            pstatement.addBatch();
+            if (++count % BATCH_SIZE == 0) {
+                pstatement.executeBatch();
+            }
+        }
+        if (count % BATCH_SIZE != 0) {
+            pstatement.executeBatch();
+        }
+    }
+
+    /**
+     * Get the id of the latest entry
+     * @param con The connection to the database
+     * @return The id of the latest entry, or 0 if nothing has been recorded yet
+     * @throws SQLException If an error occurs during database access
+     */
+    static long getLastToken(Connection con) throws SQLException {
+        ResultSet rs = con.prepareStatement("SELECT MAX(id) FROM ChangeLog").executeQuery();
+        return rs.next() ? rs.getLong(1) : 0;
+    }
+
+    /**
+     * Find the entries below a token that might still be committed: the ids missing between the entries written in the last GAP_TIMEOUT_MILLIS.
+     * The older entries are committed by now, so only the recent part of the log is read, once when the library is loaded
+     * @param con The connection to the database
+     * @param to The token
+     * @param missing Filled with the missing ids, and the time they were found missing
+     * @throws SQLException If an error occurs during database access
+     */
+    static void readMissing(Connection con, long to, Map<Long, Long> missing) throws SQLException {
+        PreparedStatement old = con.prepareStatement("SELECT MAX(id) FROM ChangeLog WHERE changedAt IS NULL OR changedAt < DATEADD(SECOND, ?, CURRENT_TIMESTAMP)");
+        old.setLong(1, -GAP_TIMEOUT_MILLIS / 1000);
+        ResultSet rs = old.executeQuery();
+        long from = rs.next() ? rs.getLong(1) : 0;     //0 if every entry is recent
+        PreparedStatement pstatement = con.prepareStatement("SELECT id FROM ChangeLog WHERE id > ? AND id <= ? ORDER BY id");
+        pstatement.setLong(1, from);
+        pstatement.setLong(2, to);
+        rs = pstatement.executeQuery();
+        long expected = from + 1;
+        while (rs.next()) {
+            expected = addMissing(expected, rs.getLong(1), missing);
+        }
+    }
+
+    /**
+     * Collect the rows changed between two tokens, and the ones of the entries found missing earlier that have been committed since.
+     * The ids skipped between the entries read now are remembered as missing, and looked for until GAP_TIMEOUT_MILLIS has passed.
+     * A row changed several times is listed once
+     * @param con The connection to the database
+     * @param from The token of the previous sync, changes after it are read
+     * @param to The last change that is read
+     * @param missing The ids of the entries below the first token that were not committed yet, and the time they were found missing. Updated by this method
+     * @param changed Filled with the ids of the changed rows, by the kind of the rows
+     * @throws SQLException If an error occurs during database access
+     */
+    static void readChanges(Connection con, long from, long to, Map<Long, Long> missing, Map<String, Set<Integer>> changed) throws SQLException {
+        long now = System.currentTimeMillis();
+        missing.values().removeIf(foundAt -> now - foundAt > GAP_TIMEOUT_MILLIS);   //Rolled back, or skipped by the database
+        List<Long> ids = new ArrayList<>(missing.keySet());
+        for (int start = 0; start < ids.size(); start += GAP_QUERY_SIZE) {
+            List<Long> part = ids.subList(start, Math.min(start + GAP_QUERY_SIZE, ids.size()));
+            PreparedStatement pstatement = con.prepareStatement("SELECT id, entity, entityId FROM ChangeLog WHERE id IN ("
+                    + String.join(", ", Collections.nCopies(part.size(), "?")) + ")");
+            for (int i = 0; i < part.size(); i++) {
+                pstatement.setLong(i + 1, part.get(i));
+            }
+            ResultSet rs = pstatement.executeQuery();
+            while (rs.next()) {     //Committed late
+                missing.remove(rs.getLong("id"));
+                addChange(rs, changed);
+            }
+        }
+
+        PreparedStatement pstatement = con.prepareStatement("SELECT id, entity, entityId FROM ChangeLog WHERE id > ? AND id <= ? ORDER BY id");
+        pstatement.setLong(1, from);
+        pstatement.setLong(2, to);
+        ResultSet rs = pstatement.executeQuery();
+        long expected = from + 1;
+        while (rs.next()) {
+            expected = addMissing(expected, rs.getLong("id"), missing);
+            addChange(rs, changed);
+        }
+    }
+
+    /**
+     * Delete the entries older than KEEP_DAYS. The entries written before the log had timestamps are deleted too
+     * @param con The connection to the database
+     * @return The number of deleted entries
+     * @throws SQLException If an error occurs during database access
+     */
+    static int prune(Connection con) throws SQLException {
+        PreparedStatement last = con.prepareStatement("SELECT MAX(id) FROM ChangeLog WHERE changedAt IS NULL OR changedAt < DATEADD(DAY, ?, CURRENT_TIMESTAMP)");
+        last.setInt(1, -KEEP_DAYS);
+        ResultSet rs = last.executeQuery();
+        long to = rs.next() ? rs.getLong(1) : 0;
+        if (to == 0) {
+            return 0;
+        }
+        PreparedStatement pstatement = con.prepareStatement("DELETE FROM ChangeLog WHERE id <= ?");
+        pstatement.setLong(1, to);
+        return pstatement.executeUpdate();
+    }
+
+//******************************************************************************************************************************************************************//
+//Helper methods
+    /**
+     * Remember the ids skipped before an entry as missing. At most MAX_GAP ids are remembered below one entry,
+     * a longer run of ids is a jump of the identity column, not a set of open transactions
+     * @param expected The id expected next
+     * @param id The id of the entry read
+     * @param missing The missing ids, and the time they were found missing
+     * @return The id expected after the entry
+     */
+    private static long addMissing(long expected, long id, Map<Long, Long> missing) {
+        long now = System.currentTimeMillis();
+        for (long skipped = Math.max(expected, id - MAX_GAP); skipped < id; skipped++) {
+            missing.put(skipped, now);
+        }
+        return id + 1;
+    }
+
+    private static void addChange(ResultSet rs, Map<String, Set<Integer>> changed) throws SQLException {
+        changed.computeIfAbsent(rs.getString("entity").trim(), e -> new LinkedHashSet<>()).add(rs.getInt("entityId"));
+    }
+}
@@ -1,33 +1,117 @@
 package mytunes.dal;
 
-import com.microsoft.sqlserver.jdbc.SQLServerDataSource;
-import com.microsoft.sqlserver.jdbc.SQLServerException;
 import java.sql.Connection;
+import java.sql.SQLException;
 
 /**
- * This class handles the connection to the database
+ * This class handles the connection to the database of a StorageBackend.
+ * Connections are kept in a pool, so one ConnectionManager should be shared by every class accessing the database
  * @author Dominik
  */
 public class ConnectionManager {
-    private SQLServerDataSource source = new SQLServerDataSource();
+    private static final int MAX_CONNECTIONS = 8;
+    private static final long ACQUIRE_TIMEOUT_MILLIS = 30000;
+    private static final long VALIDATION_INTERVAL_MILLIS = 30000;   //Idle connections older than this are checked before reuse
+
+    private final StorageBackend backend;
+    private final ConnectionPool pool;
+    private volatile boolean schemaChecked;
 
     /**
-     * Create a new ConnectionManager, and set the values
+     * Create a new ConnectionManager for the given backend
+     * @param backend The database the connections will be opened to
      */
-    public ConnectionManager() {
-        source.setDatabaseName("CS2017B_7_myTunes");
-        source.setUser("CS2017B_7_java");
-        source.setPassword("javajava");
-        source.setPortNumber(1433);
-        source.setServerName("10.176.111.31");
+    public ConnectionManager(StorageBackend backend) {
+        this.backend = backend;
+        pool = new ConnectionPool(backend.createDataSource(), MAX_CONNECTIONS, ACQUIRE_TIMEOUT_MILLIS, VALIDATION_INTERVAL_MILLIS);
     }
-    
+
     /**
-     * Returns a Connection object that can be used to connect to the database
+     * Returns a Connection object that can be used to connect to the database.
+     * The connection is taken from the pool, closing it returns it to the pool
      * @return A connection object that can be used to connect to the database
-     * @throws SQLServerException If an error occurs during connection
+     * @throws SQLException If an error occurs during connection, or no connection became free in time
+     */
+    public Connection getConnection() throws SQLException {
+        Connection con = pool.acquire();
+        if (!schemaChecked) {
+            checkSchema(con);
+        }
+        return con;
+    }
+
+    /**
+     * Create the missing tables and columns the first time a connection is used
+     * @param con The connection used to update the database
+     * @throws SQLException If the database cannot be updated
+     */
+    private synchronized void checkSchema(Connection con) throws SQLException {
+        if (schemaChecked) {
+            return;
+        }
+        try {
+            backend.createSchema(con);
+            SchemaUpdater.update(con);
+            schemaChecked = true;
+        }
+        catch (SQLException ex) {
+            con.close();
+            throw ex;
+        }
+    }
+
+    /**
+     * Get the backend this manager connects to
+     * @return The backend storing the library
+     */
+    public StorageBackend getBackend() {
+        return backend;
+    }
+
+    /**
+     * Get the number of connections currently in use
+     * @return The number of connections that have been taken, but not closed yet
+     */
+    public int getActiveConnections() {
+        return pool.getActiveCount();
+    }
+
+    /**
+     * Get the number of open connections waiting to be reused
+     * @return The number of idle connections in the pool
+     */
+    public int getIdleConnections() {
+        return pool.getIdleCount();
+    }
+
+    /**
+     * Get the maximum number of connections that can be open at the same time
+     * @return The size of the pool
+     */
+    public int getMaxConnections() {
+        return pool.getMaxSize();
+    }
+
+    /**
+     * Get the average time spent waiting for a connection
+     * @return The average wait time in milliseconds
+     */
+    public double getAverageAcquireMillis() {
+        return pool.getAverageWaitMillis();
+    }
+
+    /**
+     * Get the longest time spent waiting for a connection
+     * @return The longest wait time in milliseconds
+     */
+    public double getMaxAcquireMillis() {
+        return pool.getMaxWaitMillis();
+    }
+
+    /**
+     * Close the pooled connections
      */
-    public Connection getConnection() throws SQLServerException{
-        return source.getConnection();
+    public void close() {
+        pool.close();
     }
 }
@@ -0,0 +1,289 @@
+package mytunes.dal;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.sql.DataSource;
+
+/**
+ * A bounded pool of database connections.
+ * The connections handed out are wrappers, closing them returns the underlying connection to the pool instead of closing it.
+ * @author Dominik
+ */
+class ConnectionPool {
+
+    private final DataSource source;
+    private final int maxSize;
+    private final long acquireTimeoutMillis;
+    private final long validationIntervalMillis;
+
+    private final Semaphore permits;
+    private final ConcurrentLinkedDeque<PooledConnection> idle = new ConcurrentLinkedDeque<>(); //Most recently used connections are at the front
+    private final AtomicInteger active = new AtomicInteger();
+
+    private final AtomicLong acquireCount = new AtomicLong();
+    private final AtomicLong totalWaitNanos = new AtomicLong();
+    private final AtomicLong maxWaitNanos = new AtomicLong();
+
+    private volatile boolean closed;
+
+    /**
+     * Create a new pool
+     * @param source The data source used to open new physical connections
+     * @param maxSize The maximum number of connections that can be open at the same time
+     * @param acquireTimeoutMillis How long a caller waits for a free connection before giving up
+     * @param validationIntervalMillis Idle connections older than this are validated before they are handed out again
+     */
+    ConnectionPool(DataSource source, int maxSize, long acquireTimeoutMillis, long validationIntervalMillis) {
+        this.source = source;
+        this.maxSize = maxSize;
+        this.acquireTimeoutMillis = acquireTimeoutMillis;
+        this.validationIntervalMillis = validationIntervalMillis;
+        this.permits = new Semaphore(maxSize, true);
+    }
+
+    /**
+     * Take a connection from the pool, opening a new one if there are no usable idle connections
+     * @return A connection, that goes back to the pool when it is closed
+     * @throws SQLException If no connection became available in time, or a new connection could not be opened
+     */
+    Connection acquire() throws SQLException {
+        if (closed) {
+            throw new SQLException("The connection pool has been closed!");
+        }
+        long start = System.nanoTime();
+        try {
+            if (!permits.tryAcquire(acquireTimeoutMillis, TimeUnit.MILLISECONDS)) {
+                throw new SQLException("Timed out waiting for a database connection!");
+            }
+        }
+        catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("Interrupted while waiting for a database connection!");
+        }
+
+        try {
+            PooledConnection pooled = takeIdle();
+            if (pooled == null) {
+                pooled = new PooledConnection(source.getConnection());
+            }
+            recordWait(System.nanoTime() - start);
+            active.incrementAndGet();
+            return pooled.lease();
+        }
+        catch (SQLException | RuntimeException ex) {
+            permits.release();
+            throw ex;
+        }
+    }
+
+    /**
+     * Return the first idle connection that is still usable. Connections that have been idle for too long are validated first
+     * @return A usable idle connection, or null if there is none
+     */
+    private PooledConnection takeIdle() {
+        PooledConnection pooled;
+        while ((pooled = idle.pollFirst()) != null) {
+            if (System.currentTimeMillis() - pooled.lastUsed < validationIntervalMillis || isValid(pooled.physical)) {
+                return pooled;
+            }
+            closeQuietly(pooled.physical);
+        }
+        return null;
+    }
+
+    /**
+     * Called when a leased connection is closed. Puts the connection back to the idle list, or discards it if it is broken
+     * @param pooled The connection that has been closed by the caller
+     */
+    private void release(PooledConnection pooled) {
+        active.decrementAndGet();
+        try {
+            if (closed || pooled.physical.isClosed()) {
+                closeQuietly(pooled.physical);
+                return;
+            }
+            if (!pooled.physical.getAutoCommit()) {   //Do not hand out a connection with a half finished transaction
+                pooled.physical.rollback();
+                pooled.physical.setAutoCommit(true);
+            }
+            pooled.lastUsed = System.currentTimeMillis();
+            idle.offerFirst(pooled);
+        }
+        catch (SQLException ex) {
+            closeQuietly(pooled.physical);
+        }
+        finally {
+            permits.release();
+        }
+    }
+
+    /**
+     * Close every idle connection, and stop handing out new ones. Leased connections are closed when they are returned
+     */
+    void close() {
+        closed = true;
+        PooledConnection pooled;
+        while ((pooled = idle.pollFirst()) != null) {
+            closeQuietly(pooled.physical);
+        }
+    }
+
+    /**
+     * Get the number of connections currently in use
+     * @return The number of leased connections
+     */
+    int getActiveCount() {
+        return active.get();
+    }
+
+    /**
+     * Get the number of open connections waiting in the pool
+     * @return The number of idle connections
+     */
+    int getIdleCount() {
+        return idle.size();
+    }
+
+    /**
+     * Get the maximum number of connections
+     * @return The size limit of the pool
+     */
+    int getMaxSize() {
+        return maxSize;
+    }
+
+    /**
+     * Get the average time callers had to wait for a connection
+     * @return The average acquire time in milliseconds
+     */
+    double getAverageWaitMillis() {
+        long count = acquireCount.get();
+        return count == 0 ? 0 : totalWaitNanos.get() / (double) count / 1_000_000;
+    }
+
+    /**
+     * Get the longest time a caller had to wait for a connection
+     * @return The longest acquire time in milliseconds
+     */
+    double getMaxWaitMillis() {
+        return maxWaitNanos.get() / 1_000_000.0;
+    }
+
+    private void recordWait(long nanos) {
+        acquireCount.incrementAndGet();
+        totalWaitNanos.addAndGet(nanos);
+        long max;
+        while (nanos > (max = maxWaitNanos.get()) && !maxWaitNanos.compareAndSet(max, nanos)) {
+        }
+    }
+
+    private boolean isValid(Connection con) {
+        try {
+            return con.isValid(2);
+        }
+        catch (SQLException ex) {
+            return false;
+        }
+    }
+
+    private static void closeQuietly(Connection con) {
+        try {
+            con.close();
+        }
+        catch (SQLException ex) {
+            //The connection is thrown away anyway
+        }
+    }
+
+    /**
+     * A physical connection owned by the pool
+     */
+    private class PooledConnection {
+
+        private final Connection physical;
+        private long lastUsed = System.currentTimeMillis();
+
+        PooledConnection(Connection physical) {
+            this.physical = physical;
+        }
+
+        /**
+         * Create a wrapper that is given to the caller. Closing the wrapper releases the connection, and closes the statements created through it
+         * @return The wrapper of the physical connection
+         */
+        Connection lease() {
+            Lease lease = new Lease(this);
+            return (Connection) Proxy.newProxyInstance(Connection.class.getClassLoader(), new Class<?>[]{Connection.class}, lease);
+        }
+    }
+
+    /**
+     * Forwards the calls to the physical connection until the caller closes it
+     */
+    private class Lease implements InvocationHandler {
+
+        private final PooledConnection pooled;
+        private final List<Statement> statements = new ArrayList<>();
+        private boolean released;
+
+        Lease(PooledConnection pooled) {
+            this.pooled = pooled;
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            switch (method.getName()) {
+                case "close":
+                    if (!released) {
+                        released = true;
+                        for (Statement statement : statements) {
+                            try {
+                                statement.close();
+                            }
+                            catch (SQLException ex) {
+                                //Closed together with the lease anyway
+                            }
+                        }
+                        statements.clear();
+                        release(pooled);
+                    }
+                    return null;
+                case "isClosed":
+                    return released || pooled.physical.isClosed();
+                case "equals":
+                    return proxy == args[0];
+                case "hashCode":
+                    return System.identityHashCode(proxy);
+                case "toString":
+                    return "Pooled " + pooled.physical;
+                default:
+                    break;
+            }
+            if (released) {
+                throw new SQLException("The connection has already been closed!");
+            }
+            try {
+                Object result = method.invoke(pooled.physical, args);
+                if (result instanceof Statement) {  //The caller might not close its statements, they should not pile up on a reused connection
+                    statements.add((Statement) result);
+                }
+                return result;
+            }
+            catch (InvocationTargetException ex) {
+                throw ex.getCause();
+            }
+        }
+    }
+}
@@ -0,0 +1,171 @@
+package mytunes.dal;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Finds the audio data of a media file, leaving out the tags, and hashes it.
+ * Re-tagging a file does not change the audio data, so copies of the same recording have the same size and hash even if their tags differ.
+ * The tags are recognised in MP3 (ID3v2, ID3v1, APEv2), FLAC (metadata blocks) and Ogg (header pages) files, other formats are hashed as a whole
+ * @author Dominik
+ */
+class ContentHasher {
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final int OGG_HEADER_PAGE_LIMIT = 64;    //The header packets of an Ogg stream never take more pages than this
+
+    /**
+     * Get the size of the audio data in the file. Reads only the headers at the beginning and the end of the file
+     * @param file The media file
+     * @return The size of the file without its tags in bytes
+     * @throws IOException If the file cannot be read
+     */
+    static long audioSize(File file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            return payload(channel)[1];
+        }
+    }
+
+    /**
+     * Hash the audio data of the file with SHA-256, reading it as a stream
+     * @param file The media file
+     * @return The hash as a hexadecimal string
+     * @throws IOException If the file cannot be read
+     */
+    static String hash(File file) throws IOException {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        }
+        catch (NoSuchAlgorithmException ex) {   //Every Java platform has to support it
+            throw new IllegalStateException(ex);
+        }
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            long[] payload = payload(channel);
+            ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+            long position = payload[0];
+            long end = payload[0] + payload[1];
+            while (position < end) {
+                buffer.clear();
+                buffer.limit((int) Math.min(BUFFER_SIZE, end - position));
+                int read = channel.read(buffer, position);
+                if (read < 0) {
+                    break;
+                }
+                buffer.flip();
+                digest.update(buffer);
+                position += read;
+            }
+        }
+        StringBuilder hex = new StringBuilder(64);
+        for (byte b : digest.digest()) {
+            hex.append(String.format("%02x", b));
+        }
+        return hex.toString();
+    }
+
+    /**
+     * Find the audio data in the file
+     * @param channel The opened file
+     * @return The offset and the length of the audio data
+     * @throws IOException If the file cannot be read
+     */
+    private static long[] payload(FileChannel channel) throws IOException {
+        long size = channel.size();
+        long start = 0;
+        long end = size;
+
+        while (start + 10 <= end && "ID3".equals(ascii(channel, start, 3))) {   //ID3v2 tags, there can be more than one
+            ByteBuffer header = read(channel, start, 10);
+            start += 10 + syncsafe(header, 6) + ((header.get(5) & 0x10) != 0 ? 10 : 0);     //The footer flag adds 10 bytes
+        }
+        start = Math.min(start, end);
+
+        if ("fLaC".equals(ascii(channel, start, 4))) {
+            return range(flacAudioStart(channel, start), end);
+        }
+        if ("OggS".equals(ascii(channel, start, 4))) {
+            return range(oggAudioStart(channel, start, end), end);
+        }
+
+        if (end - start >= 128 && "TAG".equals(ascii(channel, end - 128, 3))) {     //ID3v1
+            end -= 128;
+        }
+        if (end - start >= 32 && "APETAGEX".equals(ascii(channel, end - 32, 8))) {     //APEv2, its size includes the footer but not the header
+            ByteBuffer footer = read(channel, end - 32, 32).order(ByteOrder.LITTLE_ENDIAN);
+            long tagSize = footer.getInt(12) & 0xFFFFFFFFL;
+            boolean hasHeader = (footer.getInt(20) & 0x80000000) != 0;
+            end -= Math.min(end - start, tagSize + (hasHeader ? 32 : 0));
+        }
+        return range(start, end);
+    }
+
+    /**
+     * Skip the metadata blocks of a FLAC stream
+     * @return The offset of the first audio frame
+     */
+    private static long flacAudioStart(FileChannel channel, long start) throws IOException {
+        long p = start + 4;
+        while (p + 4 <= channel.size()) {
+            ByteBuffer header = read(channel, p, 4);
+            int type = header.get(0) & 0xFF;
+            p += 4 + (((header.get(1) & 0xFF) << 16) | ((header.get(2) & 0xFF) << 8) | (header.get(3) & 0xFF));
+            if ((type & 0x80) != 0) {   //The last metadata block
+                break;
+            }
+        }
+        return Math.min(p, channel.size());
+    }
+
+    /**
+     * Skip the header pages of an Ogg stream. They contain the comments, and their granule position is 0
+     * @return The offset of the first page containing audio
+     */
+    private static long oggAudioStart(FileChannel channel, long start, long end) throws IOException {
+        long p = start;
+        for (int page = 0; page < OGG_HEADER_PAGE_LIMIT && p + 27 <= end; page++) {
+            ByteBuffer header = read(channel, p, 27).order(ByteOrder.LITTLE_ENDIAN);
+            if (!"OggS".equals(new String(header.array(), 0, 4, StandardCharsets.ISO_8859_1)) || header.getLong(6) != 0) {
+                return p;
+            }
+            int segments = header.get(26) & 0xFF;
+            ByteBuffer table = read(channel, p + 27, segments);
+            long length = 27 + segments;
+            for (int i = 0; i < segments; i++) {
+                length += table.get(i) & 0xFF;
+            }
+            p += length;
+        }
+        return Math.min(p, end);
+    }
+
+    private static long[] range(long start, long end) {
+        return new long[]{start, Math.max(0, end - start)};
+    }
+
+    private static ByteBuffer read(FileChannel channel, long position, int length) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        while (buffer.hasRemaining() && channel.read(buffer, position + buffer.position()) > 0) {
+            //Read until the buffer is full or the file ends
+        }
+        return buffer;
+    }
+
+    private static String ascii(FileChannel channel, long position, int length) throws IOException {
+        if (position < 0 || position + length > channel.size()) {
+            return "";
+        }
+        return new String(read(channel, position, length).array(), StandardCharsets.ISO_8859_1);
+    }
+
+    private static int syncsafe(ByteBuffer buffer, int p) {
+        return ((buffer.get(p) & 0x7F) << 21) | ((buffer.get(p + 1) & 0x7F) << 14) | ((buffer.get(p + 2) & 0x7F) << 7) | (buffer.get(p + 3) & 0x7F);
+    }
+}
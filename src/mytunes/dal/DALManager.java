@@ -1,7 +1,19 @@
 package mytunes.dal;
 
+import java.io.File;
 import java.net.URI;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
+import mytunes.be.LibraryChanges;
 import mytunes.be.PlayList;
 import mytunes.be.UserMedia;
 
@@ -11,9 +23,46 @@ import mytunes.be.UserMedia;
  */
 public class DALManager {
 
-    private MediaDBManager mediaM = new MediaDBManager();
+    private static final long PRUNE_INTERVAL_MILLIS = 3600000;  //How often the old change log entries are deleted
+
+    private final ConnectionManager cm;  //Shared by the database managers, so they use the same connection pool
+    private final MediaDBManager mediaM;
     private MetaReader metaR = new MetaReader();
-    private PlayListDBManager listM = new PlayListDBManager();
+    private final PlayListDBManager listM;
+    private final Map<Integer, UserMedia> mediaById = new ConcurrentHashMap<>();    //Every loaded song, so that play lists can share the same instances. Songs are saved on a background thread
+    private final Map<Long, Long> missingChanges = new HashMap<>();    //The change log ids below the sync token that were not committed yet, and the time they were found missing
+    private long lastPrune;     //When the old change log entries were deleted last
+
+    /**
+     * Create a new DALManager using the backend selected by the "mytunes.storage" system property.
+     * "embedded" stores the library in a local database file (its location can be set with "mytunes.storage.file"),
+     * anything else uses the SQL Server database
+     */
+    public DALManager() {
+        this(createBackend());
+    }
+
+    /**
+     * Create a new DALManager that stores the library using the given backend
+     * @param backend The database the library is stored in
+     */
+    public DALManager(StorageBackend backend) {
+        cm = new ConnectionManager(backend);
+        mediaM = new MediaDBManager(cm);
+        listM = new PlayListDBManager(cm);
+    }
+
+    /**
+     * Create the backend selected by the system properties
+     * @return The selected backend
+     */
+    private static StorageBackend createBackend() {
+        if ("embedded".equalsIgnoreCase(System.getProperty("mytunes.storage"))) {
+            String defaultFile = new File(System.getProperty("user.home"), ".mytunes" + File.separator + "library").getPath();
+            return new EmbeddedBackend(new File(System.getProperty("mytunes.storage.file", defaultFile)));
+        }
+        return new SqlServerBackend();
+    }
 
     /**
      * Get the songs from the database
@@ -21,20 +70,103 @@ public class DALManager {
      * @throws DAException If an error occurs during database access
      */
     public List<UserMedia> getAllMedia() throws DAException {
-        List<UserMedia> mediaList = mediaM.getAll();       
+        List<UserMedia> mediaList = mediaM.getAll();
+        mediaById.clear();
+        for (UserMedia media : mediaList) {
+            mediaById.put(media.getId(), media);
+        }
         return mediaList;
     }
     
     /**
-     * Get all the play list stored in the database
+     * Read the songs from the database one page at a time, so the caller can process them before the whole table has been read
+     * @param pageSize The maximum number of songs in one page
+     * @param pageHandler Called with every page, in the order of the ids of the songs
+     * @throws DAException If an error occurs during database access
+     */
+    public void getAllMedia(int pageSize, Consumer<List<UserMedia>> pageHandler) throws DAException {
+        mediaById.clear();
+        mediaM.getAll(pageSize, page -> {
+            for (UserMedia media : page) {
+                mediaById.put(media.getId(), media);
+            }
+            pageHandler.accept(page);
+        });
+    }
+
+    /**
+     * Get all the play list stored in the database.
+     * The songs in the play lists are the same instances that were returned by getAllMedia
      * @return A list of play list stored in the database 
      * @throws DAException If an error occurs during database access
      */
     public List<PlayList> getAllPlayList() throws DAException {
-        List<PlayList> playlistList = listM.getAll();
+        List<PlayList> playlistList = listM.getAll(mediaById);
         return playlistList;
     }
 
+    /**
+     * Get the current sync token of the library. Read it before loading the library, and use it to read the changes made since then
+     * @return The sync token
+     * @throws DAException If an error occurs during database access
+     */
+    public synchronized long getSyncToken() throws DAException {
+        try (Connection con = cm.getConnection()) {
+            long token = ChangeLog.getLastToken(con);
+            missingChanges.clear();    //Everything committed so far is loaded after this
+            ChangeLog.readMissing(con, token, missingChanges);
+            return token;
+        }
+        catch (SQLException ex) {
+            throw new DAException(ex.getMessage());
+        }
+    }
+
+    /**
+     * Read the changes made to the library since the given sync token, by this or any other client.
+     * Only the changed rows are read: the current data of the changed songs and play lists, and the songs of the play lists whose content has changed.
+     * The changes committed late, below the token, are read too. A changed row that is no longer in the database has been deleted.
+     * Once an hour the change log entries older than a week are deleted
+     * @param token The sync token returned by getSyncToken, or by the previous changes
+     * @return The changes, and the token to use next time
+     * @throws DAException If an error occurs during database access
+     */
+    public synchronized LibraryChanges getChanges(long token) throws DAException {
+        long last;
+        Map<String, Set<Integer>> changed = new HashMap<>();
+        try (Connection con = cm.getConnection()) {
+            last = Math.max(token, ChangeLog.getLastToken(con));
+            ChangeLog.readChanges(con, token, last, missingChanges, changed);
+            if (System.currentTimeMillis() - lastPrune > PRUNE_INTERVAL_MILLIS) {
+                lastPrune = System.currentTimeMillis();
+                ChangeLog.prune(con);
+            }
+        }
+        catch (SQLException ex) {
+            throw new DAException(ex.getMessage());
+        }
+
+        LibraryChanges changes = new LibraryChanges(last);
+        Set<Integer> mediaIds = changed.getOrDefault(ChangeLog.MEDIA, Collections.emptySet());
+        changes.getMedia().addAll(mediaM.get(mediaIds));
+        changes.getDeletedMediaIds().addAll(mediaIds);
+        for (UserMedia media : changes.getMedia()) {   //Whatever was not found has been deleted
+            changes.getDeletedMediaIds().remove(media.getId());
+        }
+
+        Set<Integer> listIds = changed.getOrDefault(ChangeLog.PLAYLIST, Collections.emptySet());
+        changes.getPlayLists().addAll(listM.get(listIds));
+        changes.getDeletedPlayListIds().addAll(listIds);
+        for (PlayList playlist : changes.getPlayLists()) {
+            changes.getDeletedPlayListIds().remove(playlist.getId());
+        }
+
+        Set<Integer> memberIds = new HashSet<>(changed.getOrDefault(ChangeLog.MEMBERS, Collections.emptySet()));
+        memberIds.removeAll(changes.getDeletedPlayListIds());
+        changes.getMembers().putAll(listM.getMembers(memberIds));
+        return changes;
+    }
+
     /**
      * Save a the data of a media object to the database
      * @param media The object that will be saved to the database
@@ -42,6 +174,29 @@ public class DALManager {
      */
     public void saveMedia(UserMedia media) throws DAException {
         mediaM.save(media);
+        mediaById.put(media.getId(), media);
+    }
+
+    /**
+     * Save the data of several media objects to the database in a single transaction.
+     * The generated ids are written back to the objects
+     * @param mediaList The objects that will be saved to the database
+     * @throws DAException If an error occurs during database access
+     */
+    public void saveMedia(List<UserMedia> mediaList) throws DAException {
+        mediaM.save(mediaList);
+        for (UserMedia media : mediaList) {
+            mediaById.put(media.getId(), media);
+        }
+    }
+
+    /**
+     * Use the given instance of a saved song when the loaded songs are updated, for example when the song was saved from a copy of its values
+     * @param id The id of the saved song
+     * @param media The instance shown by the program
+     */
+    public void putLoadedMedia(int id, UserMedia media) {
+        mediaById.put(id, media);
     }
 
     /**
@@ -62,6 +217,15 @@ public class DALManager {
         mediaM.edit(media);
     }
 
+    /**
+     * Update several already existing UserMedia objects in the database in a single transaction
+     * @param mediaList The updated objects
+     * @throws DAException If an error occurs during database access
+     */
+    public void editMedia(List<UserMedia> mediaList) throws DAException {
+        mediaM.edit(mediaList);
+    }
+
     /**
      * Update an already existing PlayList object in the database
      * @param playlist The updated object
@@ -78,10 +242,11 @@ public class DALManager {
      */
     public void deleteMedia(UserMedia media) throws DAException {
         mediaM.delete(media);
+        mediaById.remove(media.getId());
     }
 
     /**
-     * Delete a PlayList object from the database
+     * Delete a PlayList object from the database, together with the list of its songs
      * @param playlist The object that will be deleted
      * @throws DAException If an error occurs during database access
      */
@@ -90,7 +255,7 @@ public class DALManager {
     }
 
     /**
-     * Add a song to a play list
+     * Add a song to a play list. The song has to be added to the PlayList object first, so that it has a position
      * @param playlist The play list that will be updated
      * @param media The song that will be added to the play list
      * @throws DAException If an error occurs during database access
@@ -99,6 +264,26 @@ public class DALManager {
         listM.addMediaToList(playlist, media);
     }
     
+    /**
+     * Add several songs to a play list in a single transaction. The songs have to be added to the PlayList object first
+     * @param playlist The play list that will be updated
+     * @param mediaList The songs that will be added to the play list
+     * @throws DAException If an error occurs during database access
+     */
+    public void addMediaToList(PlayList playlist, List<UserMedia> mediaList) throws DAException {
+        listM.addMediaToList(playlist, mediaList);
+    }
+
+    /**
+     * Save the new positions of songs that have been moved inside a play list
+     * @param playlist The play list that has been reordered
+     * @param mediaList The songs whose position has changed
+     * @throws DAException If an error occurs during database access
+     */
+    public void updatePositions(PlayList playlist, List<UserMedia> mediaList) throws DAException {
+        listM.updatePositions(playlist, mediaList);
+    }
+
     /**
      * Delete a song from a play list
      * @param playlist The play list that will be updated
@@ -118,4 +303,150 @@ public class DALManager {
     public UserMedia getMetaData(URI path) throws DAException {
         return metaR.getMetaData(path);
     }
+
+    /**
+     * Hash the audio data of the file, without its tags
+     * @param path The path of the file
+     * @return The content hash of the file
+     * @throws DAException If an error occurs during file access
+     */
+    public String getContentHash(String path) throws DAException {
+        return metaR.getContentHash(path);
+    }
+
+    /**
+     * Measure the size of the audio data of the file, without its tags. Only the headers are read
+     * @param path The path of the file
+     * @return The size of the audio data in bytes
+     * @throws DAException If an error occurs during file access
+     */
+    public long getAudioSize(String path) throws DAException {
+        return metaR.getAudioSize(path);
+    }
+
+    /**
+     * Get a page of the songs whose audio size is not known, saved by older versions of the program
+     * @param afterId Only the songs with a larger id are returned
+     * @param limit The maximum number of songs returned
+     * @return The id and path of the songs, ordered by their id
+     * @throws DAException If an error occurs during database access
+     */
+    public List<UserMedia> getMediaWithoutAudioSize(int afterId, int limit) throws DAException {
+        return mediaM.getWithoutAudioSize(afterId, limit);
+    }
+
+    /**
+     * Store the audio sizes measured for songs already in the database
+     * @param sizes The audio sizes by the id of the song
+     * @throws DAException If an error occurs during database access
+     */
+    public void saveAudioSizes(Map<Integer, Long> sizes) throws DAException {
+        mediaM.saveAudioSizes(sizes);
+    }
+
+    /**
+     * Get the songs whose audio data has one of the given sizes
+     * @param sizes The audio sizes of the new files
+     * @return The id, path, audio size and content hash of the songs with the same audio sizes
+     * @throws DAException If an error occurs during database access
+     */
+    public List<UserMedia> getMediaByAudioSize(Collection<Long> sizes) throws DAException {
+        return mediaM.getByAudioSize(sizes);
+    }
+
+    /**
+     * Store the content hashes computed for songs already in the database
+     * @param hashes The content hashes by the id of the song
+     * @throws DAException If an error occurs during database access
+     */
+    public void saveContentHashes(Map<Integer, String> hashes) throws DAException {
+        mediaM.saveContentHashes(hashes);
+    }
+
+    /**
+     * Get a page of the songs whose loudness has not been measured yet. The songs the installed decoders could not decode are left out
+     * @param afterId Only the songs with a larger id are returned
+     * @param limit The maximum number of songs returned
+     * @return The id and path of the songs, ordered by their id
+     * @throws DAException If an error occurs during database access
+     */
+    public List<UserMedia> getUnanalysedMedia(int afterId, int limit) throws DAException {
+        return mediaM.getUnanalysed(afterId, limit);
+    }
+
+    /**
+     * Measure the loudness and the peak of the file of a song, and store them in the song
+     * @param path The path of the file on this computer
+     * @param media The song of the file
+     * @return False if the format of the file cannot be decoded, the song should be marked with markUndecodable then
+     * @throws DAException If an error occurs during file access
+     */
+    public boolean analyseLoudness(String path, UserMedia media) throws DAException {
+        return metaR.analyseLoudness(path, media);
+    }
+
+    /**
+     * Remember that the installed decoders cannot decode the files of some songs, so they are not returned by getUnanalysedMedia
+     * until the decoders change or the audio data of the songs changes
+     * @param ids The ids of the songs
+     * @throws DAException If an error occurs during database access
+     */
+    public void markUndecodable(Collection<Integer> ids) throws DAException {
+        mediaM.markUndecodable(ids);
+    }
+
+    /**
+     * Store the measured loudness and peak of songs, and copy them to the loaded instances of the songs
+     * @param mediaList The analysed songs
+     * @throws DAException If an error occurs during database access
+     */
+    public void saveLoudness(List<UserMedia> mediaList) throws DAException {
+        mediaM.saveLoudness(mediaList);
+        for (UserMedia media : mediaList) {
+            UserMedia loaded = mediaById.get(media.getId());
+            if (loaded != null) {
+                loaded.setLoudness(media.getLoudness());
+                loaded.setPeak(media.getPeak());
+            }
+        }
+    }
+
+    /**
+     * Get the ConnectionManager used by the database managers, for example to check the state of the connection pool
+     * @return The shared ConnectionManager
+     */
+    public ConnectionManager getConnectionManager() {
+        return cm;
+    }
+
+    /**
+     * Get the number of files whose meta data was found in the tag cache
+     * @return The number of cache hits
+     */
+    public long getMetaDataCacheHits() {
+        return metaR.getCacheHits();
+    }
+
+    /**
+     * Get the number of files whose meta data had to be read from the file
+     * @return The number of cache misses
+     */
+    public long getMetaDataCacheMisses() {
+        return metaR.getCacheMisses();
+    }
+
+    /**
+     * Write the tag cache to the disk, for example after a folder has been scanned
+     */
+    public void saveMetaDataCache() {
+        metaR.saveCache();
+    }
+
+    /**
+     * Close the connections to the database, and save the tag cache
+     */
+    public void close() {
+        metaR.saveCache();
+        cm.close();
+    }
 }
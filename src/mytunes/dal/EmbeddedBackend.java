@@ -0,0 +1,55 @@
+package mytunes.dal;
+
+import java.io.File;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+import javax.sql.DataSource;
+import org.h2.jdbcx.JdbcDataSource;
+
+/**
+ * Stores the library in a local database file, using an embedded H2 database running inside the program.
+ * It needs no network connection, so it can also be used as a stand-in for the SQL Server database during load tests
+ * @author Dominik
+ */
+public class EmbeddedBackend implements StorageBackend {
+
+    private final File databaseFile;
+
+    /**
+     * Create a new embedded backend
+     * @param databaseFile The location of the database, without the file extension. The directory is created if it does not exist
+     */
+    public EmbeddedBackend(File databaseFile) {
+        this.databaseFile = databaseFile;
+    }
+
+    @Override
+    public String getName() {
+        return "Embedded (" + databaseFile.getAbsolutePath() + ")";
+    }
+
+    @Override
+    public DataSource createDataSource() {
+        databaseFile.getAbsoluteFile().getParentFile().mkdirs();
+        JdbcDataSource source = new JdbcDataSource();
+        source.setURL("jdbc:h2:file:" + databaseFile.getAbsolutePath() + ";MODE=MSSQLServer");  //Behave like SQL Server, so the same statements work on both
+        return source;
+    }
+
+    @Override
+    public void createSchema(Connection con) throws SQLException {
+        try (Statement statement = con.createStatement()) {
+            statement.execute("CREATE TABLE IF NOT EXISTS Music(id INT AUTO_INCREMENT PRIMARY KEY, "
+                    + "title VARCHAR(255), artist VARCHAR(255), category VARCHAR(255), time DOUBLE, path VARCHAR(1024))");
+            statement.execute("CREATE TABLE IF NOT EXISTS Playlist(id INT AUTO_INCREMENT PRIMARY KEY, title VARCHAR(255))");
+            statement.execute("CREATE TABLE IF NOT EXISTS MusicInList(listID INT NOT NULL, musicID INT NOT NULL, position BIGINT)");
+            statement.execute("CREATE TABLE IF NOT EXISTS ChangeLog(id BIGINT AUTO_INCREMENT PRIMARY KEY, entity CHAR(1) NOT NULL, entityId INT NOT NULL)");
+        }
+    }
+
+    @Override
+    public boolean supportsOutputClause() {
+        return false;   //H2 returns the keys of a batch instead
+    }
+}
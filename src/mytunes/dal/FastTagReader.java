@@ -0,0 +1,497 @@
+package mytunes.dal;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import mytunes.be.UserMedia;
+
+/**
+ * Reads the title, artist, genre and length of MP3, FLAC and Ogg Vorbis files directly from their headers.
+ * Only the beginning of the file (and for MP3 and Ogg its end) is mapped into memory, and only the needed fields are decoded:
+ * ID3v2 text frames and the ID3v1 tag, Vorbis comments, the FLAC STREAMINFO block, and the Xing/VBRI header or the bit rate of the first MPEG frame.
+ * The format is recognised by the magic bytes at the start of the file. A file without them is only read as MP3 if its extension says so,
+ * because the data of other formats (WAV, AIFF, M4A) can contain bytes that look like an MPEG frame.
+ * Anything it does not understand (unsynchronised or compressed ID3 frames, other codecs, damaged files) is left to jaudiotagger
+ * @author Dominik
+ */
+class FastTagReader {
+
+    private static final int HEAD_LIMIT = 16 << 20;     //The most that is mapped from the beginning of a file. Pages are only read when they are touched
+    private static final int SYNC_SEARCH_LIMIT = 64 * 1024;    //How far the first MPEG frame is searched for after the ID3v2 tag
+    private static final int OGG_TAIL_SIZE = 65536 + 27 + 255;     //Large enough to contain the whole last page of an Ogg stream
+
+    private static final int[][] BITRATES = {       //kbit/s, by MPEG version (1 or 2/2.5) and layer (I, II, III)
+        {0, 32, 64, 96, 128, 160, 192, 224, 256, 288, 320, 352, 384, 416, 448},
+        {0, 32, 48, 56, 64, 80, 96, 112, 128, 160, 192, 224, 256, 320, 384},
+        {0, 32, 40, 48, 56, 64, 80, 96, 112, 128, 160, 192, 224, 256, 320},
+        {0, 32, 48, 56, 64, 80, 96, 112, 128, 144, 160, 176, 192, 224, 256},
+        {0, 8, 16, 24, 32, 40, 48, 56, 64, 80, 96, 112, 128, 144, 160},
+        {0, 8, 16, 24, 32, 40, 48, 56, 64, 80, 96, 112, 128, 144, 160}
+    };
+    private static final int[][] SAMPLE_RATES = {{44100, 48000, 32000}, {22050, 24000, 16000}, {11025, 12000, 8000}};  //MPEG 1, 2, 2.5
+
+    private static final String[] GENRES = {
+        "Blues", "Classic Rock", "Country", "Dance", "Disco", "Funk", "Grunge", "Hip-Hop", "Jazz", "Metal",
+        "New Age", "Oldies", "Other", "Pop", "R&B", "Rap", "Reggae", "Rock", "Techno", "Industrial",
+        "Alternative", "Ska", "Death Metal", "Pranks", "Soundtrack", "Euro-Techno", "Ambient", "Trip-Hop", "Vocal", "Jazz+Funk",
+        "Fusion", "Trance", "Classical", "Instrumental", "Acid", "House", "Game", "Sound Clip", "Gospel", "Noise",
+        "AlternRock", "Bass", "Soul", "Punk", "Space", "Meditative", "Instrumental Pop", "Instrumental Rock", "Ethnic", "Gothic",
+        "Darkwave", "Techno-Industrial", "Electronic", "Pop-Folk", "Eurodance", "Dream", "Southern Rock", "Comedy", "Cult", "Gangsta",
+        "Top 40", "Christian Rap", "Pop/Funk", "Jungle", "Native American", "Cabaret", "New Wave", "Psychadelic", "Rave", "Showtunes",
+        "Trailer", "Lo-Fi", "Tribal", "Acid Punk", "Acid Jazz", "Polka", "Retro", "Musical", "Rock & Roll", "Hard Rock",
+        "Folk", "Folk-Rock", "National Folk", "Swing", "Fast Fusion", "Bebob", "Latin", "Revival", "Celtic", "Bluegrass",
+        "Avantgarde", "Gothic Rock", "Progressive Rock", "Psychedelic Rock", "Symphonic Rock", "Slow Rock", "Big Band", "Chorus", "Easy Listening", "Acoustic",
+        "Humour", "Speech", "Chanson", "Opera", "Chamber Music", "Sonata", "Symphony", "Booty Bass", "Primus", "Porn Groove",
+        "Satire", "Slow Jam", "Club", "Tango", "Samba", "Folklore", "Ballad", "Power Ballad", "Rhythmic Soul", "Freestyle",
+        "Duet", "Punk Rock", "Drum Solo", "A capella", "Euro-House", "Dance Hall"
+    };
+
+    /**
+     * Read the tags and the length of the file
+     * @param file The media file
+     * @return A UserMedia object containing the title, artist, genre and length, or null if the file has to be read by jaudiotagger
+     * @throws IOException If the file cannot be opened
+     */
+    UserMedia read(File file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size < 32) {
+                return null;
+            }
+            ByteBuffer head = channel.map(FileChannel.MapMode.READ_ONLY, 0, Math.min(size, HEAD_LIMIT));
+            Tags tags = new Tags();
+            boolean read;
+            if (startsWith(head, 0, "fLaC")) {
+                read = readFlac(head, tags);
+            }
+            else if (startsWith(head, 0, "OggS")) {
+                read = readOgg(channel, size, head, tags);
+            }
+            else if (startsWith(head, 0, "ID3") || isMp3(file)) {
+                read = readMp3(channel, size, head, tags);
+            }
+            else {
+                return null;
+            }
+            return read ? tags.toMedia() : null;
+        }
+        catch (RuntimeException ex) {     //A damaged or unusual file (out of bounds, buffer underflow), jaudiotagger can report the problem
+            return null;
+        }
+    }
+
+    private static boolean isMp3(File file) {
+        String name = file.getName().toLowerCase();
+        return name.endsWith(".mp3") || name.endsWith(".mp2") || name.endsWith(".mpga");
+    }
+
+//******************************************************************************************************************************************************************//
+//MP3
+    private boolean readMp3(FileChannel channel, long size, ByteBuffer head, Tags tags) throws IOException {
+        int audioStart = 0;
+        if (startsWith(head, 0, "ID3")) {
+            int major = u8(head, 3);
+            int flags = u8(head, 5);
+            int end = 10 + syncsafe(head, 6);
+            if (major < 2 || major > 4 || (flags & 0x80) != 0 || end > head.limit()) {   //Unsynchronised tags need the full decoder
+                return false;
+            }
+            if (!readId3v2(head, major, flags, end, tags)) {
+                return false;
+            }
+            audioStart = end + ((flags & 0x10) != 0 ? 10 : 0);   //Skip the footer
+        }
+
+        int frame = findFrame(head, audioStart);
+        if (frame < 0) {
+            return false;
+        }
+
+        long tagBytes = 0;
+        ByteBuffer tail = channel.map(FileChannel.MapMode.READ_ONLY, size - 128, 128);
+        if (startsWith(tail, 0, "TAG")) {
+            tagBytes = 128;
+            readId3v1(tail, tags);
+        }
+        tags.seconds = mp3Length(head, frame, size - frame - tagBytes);
+        return tags.seconds > 0;
+    }
+
+    /**
+     * Decode the title, artist and genre frames of an ID3v2.2, 2.3 or 2.4 tag
+     * @return False if a needed frame is compressed, encrypted or unsynchronised
+     */
+    private boolean readId3v2(ByteBuffer head, int major, int flags, int end, Tags tags) {
+        int p = 10;
+        if ((flags & 0x40) != 0 && major > 2) {     //Skip the extended header
+            long extended = major == 4 ? syncsafe(head, p) : (head.getInt(p) & 0xFFFFFFFFL) + 4;
+            if (extended > end - p) {
+                return false;
+            }
+            p += (int) extended;
+        }
+        int idLength = major == 2 ? 3 : 4;
+        int headerLength = major == 2 ? 6 : 10;
+        while (p + headerLength <= end && head.get(p) != 0) {   //A zero byte starts the padding
+            String id = ascii(head, p, idLength);
+            long frameSize = major == 2 ? u24(head, p + 3) : major == 4 ? syncsafe(head, p + 4) : head.getInt(p + 4) & 0xFFFFFFFFL;     //v2.3 sizes are unsigned 32 bit
+            int frameFlags = major == 2 ? 0 : head.getShort(p + 8) & 0xFFFF;
+            int data = p + headerLength;
+            if (frameSize > end - data) {   //Also catches the sizes that would overflow data + frameSize
+                return false;
+            }
+            int length = (int) frameSize;
+            String field = frameField(id);
+            if (field != null && length > 1) {
+                if ((frameFlags & (major == 4 ? 0x000F : 0x00C0)) != 0) {
+                    return false;
+                }
+                tags.set(field, decodeText(head, data, length));
+            }
+            p = data + length;
+        }
+        return true;
+    }
+
+    private static String frameField(String id) {
+        switch (id) {
+            case "TIT2":
+            case "TT2":
+                return "TITLE";
+            case "TPE1":
+            case "TP1":
+                return "ARTIST";
+            case "TCON":
+            case "TCO":
+                return "GENRE";
+            default:
+                return null;
+        }
+    }
+
+    /**
+     * Decode a text frame. Only the first value is kept, if the frame contains several
+     */
+    private static String decodeText(ByteBuffer head, int data, int size) {
+        Charset charset;
+        switch (u8(head, data)) {
+            case 1:
+                charset = StandardCharsets.UTF_16;  //Uses the byte order mark
+                break;
+            case 2:
+                charset = StandardCharsets.UTF_16BE;
+                break;
+            case 3:
+                charset = StandardCharsets.UTF_8;
+                break;
+            default:
+                charset = StandardCharsets.ISO_8859_1;
+        }
+        String text = new String(bytes(head, data + 1, size - 1), charset);
+        int terminator = text.indexOf('\0');
+        return (terminator < 0 ? text : text.substring(0, terminator)).trim();
+    }
+
+    private void readId3v1(ByteBuffer tail, Tags tags) {
+        tags.set("TITLE", latin1(tail, 3, 30));
+        tags.set("ARTIST", latin1(tail, 33, 30));
+        int genre = u8(tail, 127);
+        if (genre < GENRES.length) {
+            tags.set("GENRE", GENRES[genre]);
+        }
+    }
+
+    /**
+     * Find the first MPEG audio frame. A header only counts if the next frame follows right after it, to skip false sync bytes
+     * @return The position of the frame, or -1 if none was found
+     */
+    private int findFrame(ByteBuffer head, int from) {
+        int limit = (int) Math.min(head.limit() - 4L, (long) from + SYNC_SEARCH_LIMIT);
+        for (int p = from; p < limit; p++) {
+            int length = frameLength(head, p);
+            if (length > 0 && (p + length + 4 > head.limit() || frameLength(head, p + length) > 0)) {
+                return p;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Get the length of the frame starting at the position
+     * @return The length of the frame in bytes, or 0 if there is no valid frame header at the position
+     */
+    private int frameLength(ByteBuffer head, int p) {
+        int header = head.getInt(p);
+        if ((header >>> 21) != 0x7FF) {
+            return 0;
+        }
+        int version = (header >>> 19) & 3;
+        int layer = (header >>> 17) & 3;
+        int bitrateIndex = (header >>> 12) & 15;
+        int rateIndex = (header >>> 10) & 3;
+        if (version == 1 || layer == 0 || bitrateIndex == 0 || bitrateIndex == 15 || rateIndex == 3) {
+            return 0;
+        }
+        int bitrate = bitrate(version, layer, bitrateIndex);
+        int sampleRate = sampleRate(version, rateIndex);
+        int padding = (header >>> 9) & 1;
+        if (layer == 3) {   //Layer I
+            return (12 * bitrate / sampleRate + padding) * 4;
+        }
+        return (layer == 1 && version != 3 ? 72 : 144) * bitrate / sampleRate + padding;
+    }
+
+    /**
+     * Calculate the length of the stream from the frame count of the Xing/Info or VBRI header, or from the bit rate if there is none
+     */
+    private double mp3Length(ByteBuffer head, int frame, long audioBytes) {
+        int header = head.getInt(frame);
+        int version = (header >>> 19) & 3;
+        int layer = (header >>> 17) & 3;
+        boolean mpeg1 = version == 3;
+        boolean mono = ((header >>> 6) & 3) == 3;
+        int sampleRate = sampleRate(version, (header >>> 10) & 3);
+        int samplesPerFrame = layer == 3 ? 384 : (layer == 1 && !mpeg1 ? 576 : 1152);
+
+        long frames = 0;
+        int xing = frame + 4 + (mpeg1 ? (mono ? 17 : 32) : (mono ? 9 : 17));   //The Xing header follows the side information
+        int vbri = frame + 36;
+        if (xing + 12 <= head.limit() && (startsWith(head, xing, "Xing") || startsWith(head, xing, "Info"))) {
+            if ((head.getInt(xing + 4) & 1) != 0) {
+                frames = head.getInt(xing + 8) & 0xFFFFFFFFL;
+            }
+        }
+        else if (vbri + 18 <= head.limit() && startsWith(head, vbri, "VBRI")) {
+            frames = head.getInt(vbri + 14) & 0xFFFFFFFFL;
+        }
+        if (frames > 0) {
+            return frames * (double) samplesPerFrame / sampleRate;
+        }
+        return audioBytes * 8.0 / bitrate(version, layer, (header >>> 12) & 15);
+    }
+
+    private static int bitrate(int version, int layer, int index) {
+        int row = (version == 3 ? 0 : 3) + (3 - layer);
+        return BITRATES[row][index] * 1000;
+    }
+
+    private static int sampleRate(int version, int index) {
+        return SAMPLE_RATES[version == 3 ? 0 : version == 2 ? 1 : 2][index];
+    }
+
+//******************************************************************************************************************************************************************//
+//FLAC
+    private boolean readFlac(ByteBuffer head, Tags tags) {
+        int p = 4;
+        boolean last = false;
+        while (!last) {
+            int header = head.getInt(p);
+            last = (header >>> 31) != 0;
+            int type = (header >>> 24) & 0x7F;
+            int length = header & 0xFFFFFF;
+            int data = p + 4;
+            if (data + length > head.limit()) {
+                return false;
+            }
+            if (type == 0) {    //STREAMINFO: 20 bits sample rate, 3 bits channels, 5 bits sample size, 36 bits total samples
+                long info = head.getLong(data + 10);
+                int sampleRate = (int) (info >>> 44);
+                long samples = info & 0xFFFFFFFFFL;
+                if (sampleRate > 0 && samples > 0) {
+                    tags.seconds = samples / (double) sampleRate;
+                }
+            }
+            else if (type == 4 && !readVorbisComments(head, data, data + length, tags)) {
+                return false;
+            }
+            p = data + length;
+        }
+        return tags.seconds > 0;
+    }
+
+//******************************************************************************************************************************************************************//
+//Ogg Vorbis
+    private boolean readOgg(FileChannel channel, long size, ByteBuffer head, Tags tags) throws IOException {
+        byte[][] packets = new byte[2][];
+        ByteArrayOutputStream packet = new ByteArrayOutputStream();
+        int count = 0;
+        int p = 0;
+        while (count < 2) {     //The identification and the comment header are the first two packets
+            if (!startsWith(head, p, "OggS")) {
+                return false;
+            }
+            int segments = u8(head, p + 26);
+            int data = p + 27 + segments;
+            for (int i = 0; i < segments && count < 2; i++) {
+                int length = u8(head, p + 27 + i);
+                packet.write(bytes(head, data, length), 0, length);
+                data += length;
+                if (length < 255) {     //The last segment of a packet is shorter than 255 bytes
+                    packets[count++] = packet.toByteArray();
+                    packet.reset();
+                }
+            }
+            p = data;
+        }
+
+        ByteBuffer identification = ByteBuffer.wrap(packets[0]);
+        ByteBuffer comments = ByteBuffer.wrap(packets[1]);
+        if (packets[0].length < 16 || !startsWith(identification, 0, "\u0001vorbis") || !startsWith(comments, 0, "\u0003vorbis")) {
+            return false;   //Opus, FLAC in Ogg, etc.
+        }
+        int sampleRate = Integer.reverseBytes(identification.getInt(12));
+        if (sampleRate <= 0 || !readVorbisComments(comments, 7, packets[1].length, tags)) {
+            return false;
+        }
+
+        int tailLength = (int) Math.min(size, OGG_TAIL_SIZE);
+        ByteBuffer tail = channel.map(FileChannel.MapMode.READ_ONLY, size - tailLength, tailLength);
+        for (int i = tailLength - 27; i >= 0; i--) {    //The granule position of the last page is the number of samples
+            if (startsWith(tail, i, "OggS")) {
+                long granule = Long.reverseBytes(tail.getLong(i + 6));
+                if (granule > 0) {
+                    tags.seconds = granule / (double) sampleRate;
+                    break;
+                }
+            }
+        }
+        return tags.seconds > 0;
+    }
+
+    /**
+     * Decode a Vorbis comment block (little-endian lengths, "KEY=value" UTF-8 strings), used by both Ogg Vorbis and FLAC
+     * @return False if the block is damaged
+     */
+    private boolean readVorbisComments(ByteBuffer buffer, int p, int end, Tags tags) {
+        p += 4 + Integer.reverseBytes(buffer.getInt(p));    //Skip the vendor string
+        int count = Integer.reverseBytes(buffer.getInt(p));
+        p += 4;
+        for (int i = 0; i < count; i++) {
+            int length = Integer.reverseBytes(buffer.getInt(p));
+            p += 4;
+            if (length < 0 || p + length > end) {
+                return false;
+            }
+            String comment = new String(bytes(buffer, p, length), StandardCharsets.UTF_8);
+            int separator = comment.indexOf('=');
+            if (separator > 0) {
+                tags.set(comment.substring(0, separator).toUpperCase(), comment.substring(separator + 1));
+            }
+            p += length;
+        }
+        return true;
+    }
+
+//******************************************************************************************************************************************************************//
+//Helper methods
+    private static boolean startsWith(ByteBuffer buffer, int p, String magic) {
+        if (p < 0 || p + magic.length() > buffer.limit()) {
+            return false;
+        }
+        for (int i = 0; i < magic.length(); i++) {
+            if (buffer.get(p + i) != (byte) magic.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static int u8(ByteBuffer buffer, int p) {
+        return buffer.get(p) & 0xFF;
+    }
+
+    private static int u24(ByteBuffer buffer, int p) {
+        return (u8(buffer, p) << 16) | (u8(buffer, p + 1) << 8) | u8(buffer, p + 2);
+    }
+
+    private static int syncsafe(ByteBuffer buffer, int p) {
+        return ((buffer.get(p) & 0x7F) << 21) | ((buffer.get(p + 1) & 0x7F) << 14) | ((buffer.get(p + 2) & 0x7F) << 7) | (buffer.get(p + 3) & 0x7F);
+    }
+
+    private static byte[] bytes(ByteBuffer buffer, int p, int length) {
+        byte[] result = new byte[length];
+        ByteBuffer view = buffer.duplicate();
+        view.position(p);
+        view.get(result);
+        return result;
+    }
+
+    private static String ascii(ByteBuffer buffer, int p, int length) {
+        return new String(bytes(buffer, p, length), StandardCharsets.US_ASCII);
+    }
+
+    private static String latin1(ByteBuffer buffer, int p, int length) {
+        String text = new String(bytes(buffer, p, length), StandardCharsets.ISO_8859_1);
+        int terminator = text.indexOf('\0');
+        return (terminator < 0 ? text : text.substring(0, terminator)).trim();
+    }
+
+    /**
+     * Converts the genre references of ID3 tags, like "(17)" or "17", to the name of the genre
+     */
+    private static String genreName(String genre) {
+        String reference = genre;
+        if (genre.startsWith("(") && genre.indexOf(')') > 1) {
+            String rest = genre.substring(genre.indexOf(')') + 1).trim();
+            if (!rest.isEmpty()) {
+                return rest;    //"(17)Rock" already contains the name
+            }
+            reference = genre.substring(1, genre.indexOf(')'));
+        }
+        if (reference.equals("RX")) {
+            return "Remix";
+        }
+        if (reference.equals("CR")) {
+            return "Cover";
+        }
+        if (!reference.isEmpty() && reference.length() <= 3 && reference.chars().allMatch(Character::isDigit)) {
+            int index = Integer.parseInt(reference);
+            return index < GENRES.length ? GENRES[index] : genre;
+        }
+        return genre;
+    }
+
+    /**
+     * The fields collected from the file. The first value found for a field is kept
+     */
+    private static class Tags {
+
+        private String title;
+        private String artist;
+        private String genre;
+        private double seconds = -1;
+
+        void set(String field, String value) {
+            if (value == null || value.isEmpty()) {
+                return;
+            }
+            switch (field) {
+                case "TITLE":
+                    title = title == null ? value : title;
+                    break;
+                case "ARTIST":
+                    artist = artist == null ? value : artist;
+                    break;
+                case "GENRE":
+                    genre = genre == null ? genreName(value) : genre;
+                    break;
+                default:
+                    break;
+            }
+        }
+
+        UserMedia toMedia() {
+            UserMedia media = new UserMedia();
+            media.setTitle(title == null ? "" : title);     //Missing fields are empty, the same as with jaudiotagger
+            media.setArtist(artist == null ? "" : artist);
+            media.setCategory(genre == null ? "" : genre);
+            media.setTime(seconds);
+            return media;
+        }
+    }
+}
@@ -0,0 +1,244 @@
+package mytunes.dal;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.ServiceLoader;
+import javax.sound.sampled.AudioFormat;
+import javax.sound.sampled.AudioInputStream;
+import javax.sound.sampled.AudioSystem;
+import javax.sound.sampled.UnsupportedAudioFileException;
+import javax.sound.sampled.spi.AudioFileReader;
+import javax.sound.sampled.spi.FormatConversionProvider;
+
+/**
+ * Decodes a media file with the Java Sound API and measures its loudness as described in ITU-R BS.1770:
+ * the samples are K-weighted, the mean square is taken over 400 ms blocks overlapping by 75%, and the blocks below the absolute (-70 LUFS)
+ * and relative (-10 LU) gates are left out. The sample peak is measured as well.
+ * Only the formats the installed audio file readers can decode are supported (WAV, AIFF and AU by default).
+ * The installed decoders are identified by a version, so the files that could not be decoded are only tried again when the decoders change
+ * @author Dominik
+ */
+class LoudnessAnalyzer {
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final double ABSOLUTE_GATE = -70;    //LUFS
+    private static final double RELATIVE_GATE = -10;    //LU below the loudness of the blocks above the absolute gate
+    private static final int DECODER_VERSION = findDecoderVersion();
+
+    /**
+     * Measure the integrated loudness and the sample peak of the file
+     * @param file The media file
+     * @return The integrated loudness in LUFS (NaN if the file is silent) and the sample peak between 0 and 1
+     * @throws IOException If the file cannot be read
+     * @throws UnsupportedAudioFileException If the format of the file cannot be decoded
+     */
+    static double[] analyse(File file) throws IOException, UnsupportedAudioFileException {
+        try (AudioInputStream stream = decode(AudioSystem.getAudioInputStream(file))) {
+            AudioFormat format = stream.getFormat();
+            int channels = format.getChannels();
+            Meter meter = new Meter(format.getSampleRate(), channels);
+            byte[] buffer = new byte[BUFFER_SIZE - BUFFER_SIZE % format.getFrameSize()];
+            int filled = 0;
+            int read;
+            while ((read = stream.read(buffer, filled, buffer.length - filled)) >= 0) {
+                filled += read;
+                int usable = filled - filled % format.getFrameSize();    //Only whole frames
+                for (int i = 0; i < usable; i += 2) {
+                    meter.add((short) ((buffer[i] & 0xFF) | (buffer[i + 1] << 8)) / 32768.0);
+                }
+                System.arraycopy(buffer, usable, buffer, 0, filled - usable);
+                filled -= usable;
+            }
+            return new double[]{meter.integratedLoudness(), meter.peak};
+        }
+    }
+
+    /**
+     * Get the version of the installed decoders
+     * @return A number identifying the installed audio file readers and format converters, it changes when one is added or removed
+     */
+    static int decoderVersion() {
+        return DECODER_VERSION;
+    }
+
+    /**
+     * Identify the installed decoders by the names of their classes
+     */
+    private static int findDecoderVersion() {
+        List<String> names = new ArrayList<>();
+        for (AudioFileReader reader : ServiceLoader.load(AudioFileReader.class)) {
+            names.add(reader.getClass().getName());
+        }
+        for (FormatConversionProvider converter : ServiceLoader.load(FormatConversionProvider.class)) {
+            names.add(converter.getClass().getName());
+        }
+        Collections.sort(names);    //The order they are found in can change
+        return names.hashCode();
+    }
+
+    /**
+     * Convert the stream to signed 16 bit little endian PCM, the only format the meter reads
+     */
+    private static AudioInputStream decode(AudioInputStream source) throws UnsupportedAudioFileException, IOException {
+        AudioFormat format = source.getFormat();
+        AudioFormat pcm = new AudioFormat(AudioFormat.Encoding.PCM_SIGNED, format.getSampleRate(), 16, format.getChannels(),
+                format.getChannels() * 2, format.getSampleRate(), false);
+        if (format.matches(pcm)) {
+            return source;
+        }
+        try {
+            return AudioSystem.getAudioInputStream(pcm, source);
+        }
+        catch (IllegalArgumentException ex) {   //No decoder for this encoding
+            close(source);
+            throw new UnsupportedAudioFileException(format.toString());
+        }
+    }
+
+    private static void close(InputStream stream) {
+        try {
+            stream.close();
+        }
+        catch (IOException ex) {
+            //Nothing else can be done with it
+        }
+    }
+
+    /**
+     * Filters the interleaved samples, and collects the mean square of every 100 ms, a quarter of a gating block
+     */
+    private static class Meter {
+
+        private final int channels;
+        private final double[] weights;
+        private final Biquad[] shelving;
+        private final Biquad[] highPass;
+        private final int samplesPerStep;   //In one channel
+        private double[] steps = new double[1024];     //The weighted mean square of every 100 ms
+        private int stepCount;
+        private double stepSum;     //The weighted sum of squares in the current 100 ms
+        private int stepSamples;
+        private int channel;
+        private double peak;
+
+        Meter(float sampleRate, int channels) {
+            this.channels = channels;
+            weights = new double[channels];
+            shelving = new Biquad[channels];
+            highPass = new Biquad[channels];
+            for (int i = 0; i < channels; i++) {
+                weights[i] = channels == 6 && i == 3 ? 0 : channels == 6 && i >= 4 ? 1.41 : 1;     //5.1: the LFE channel is ignored, the surround channels count more
+                shelving[i] = Biquad.shelving(sampleRate);
+                highPass[i] = Biquad.highPass(sampleRate);
+            }
+            samplesPerStep = Math.max(1, Math.round(sampleRate / 10));
+        }
+
+        /**
+         * Add the next sample. The samples of the channels follow each other
+         */
+        void add(double sample) {
+            peak = Math.max(peak, Math.abs(sample));
+            double filtered = highPass[channel].filter(shelving[channel].filter(sample));
+            stepSum += weights[channel] * filtered * filtered;
+            if (++channel == channels) {
+                channel = 0;
+                if (++stepSamples == samplesPerStep) {
+                    if (stepCount == steps.length) {
+                        double[] larger = new double[steps.length * 2];
+                        System.arraycopy(steps, 0, larger, 0, stepCount);
+                        steps = larger;
+                    }
+                    steps[stepCount++] = stepSum / samplesPerStep;
+                    stepSum = 0;
+                    stepSamples = 0;
+                }
+            }
+        }
+
+        /**
+         * Get the gated loudness of the whole file
+         * @return The loudness in LUFS, or NaN if no block is above the absolute gate
+         */
+        double integratedLoudness() {
+            int blockCount = Math.max(0, stepCount - 3);
+            double[] blocks = new double[blockCount];
+            for (int i = 0; i < blockCount; i++) {
+                blocks[i] = (steps[i] + steps[i + 1] + steps[i + 2] + steps[i + 3]) / 4;
+            }
+            double relativeGate = power(loudness(gatedMean(blocks, power(ABSOLUTE_GATE))) + RELATIVE_GATE);
+            return loudness(gatedMean(blocks, Math.max(power(ABSOLUTE_GATE), relativeGate)));
+        }
+
+        private static double gatedMean(double[] blocks, double gate) {
+            double sum = 0;
+            int count = 0;
+            for (double block : blocks) {
+                if (block > gate) {
+                    sum += block;
+                    count++;
+                }
+            }
+            return count == 0 ? 0 : sum / count;
+        }
+
+        private static double loudness(double power) {
+            return power > 0 ? -0.691 + 10 * Math.log10(power) : Double.NaN;
+        }
+
+        private static double power(double loudness) {
+            return Math.pow(10, (loudness + 0.691) / 10);
+        }
+    }
+
+    /**
+     * A second order IIR filter, the two stages of the K-weighting. The coefficients are derived for the sample rate of the file
+     */
+    private static class Biquad {
+
+        private final double b0, b1, b2, a1, a2;
+        private double z1, z2;
+
+        private Biquad(double b0, double b1, double b2, double a1, double a2) {
+            this.b0 = b0;
+            this.b1 = b1;
+            this.b2 = b2;
+            this.a1 = a1;
+            this.a2 = a2;
+        }
+
+        /**
+         * The high shelf modelling the effect of the head
+         */
+        static Biquad shelving(double sampleRate) {
+            double k = Math.tan(Math.PI * 1681.974450955533 / sampleRate);
+            double q = 0.7071752369554196;
+            double vh = Math.pow(10, 3.999843853973347 / 20);
+            double vb = Math.pow(vh, 0.4996667741545416);
+            double a0 = 1 + k / q + k * k;
+            return new Biquad((vh + vb * k / q + k * k) / a0, 2 * (k * k - vh) / a0, (vh - vb * k / q + k * k) / a0,
+                    2 * (k * k - 1) / a0, (1 - k / q + k * k) / a0);
+        }
+
+        /**
+         * The high pass filter leaving out the lowest frequencies
+         */
+        static Biquad highPass(double sampleRate) {
+            double k = Math.tan(Math.PI * 38.13547087602444 / sampleRate);
+            double q = 0.5003270373238773;
+            double a0 = 1 + k / q + k * k;
+            return new Biquad(1, -2, 1, 2 * (k * k - 1) / a0, (1 - k / q + k * k) / a0);
+        }
+
+        double filter(double x) {
+            double y = b0 * x + z1;
+            z1 = b1 * x - a1 * y + z2;
+            z2 = b2 * x - a2 * y;
+            return y;
+        }
+    }
+}
@@ -3,9 +3,15 @@ package mytunes.dal;
 import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
+import java.sql.SQLException;
 import java.sql.Statement;
+import java.sql.Types;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
 import mytunes.be.UserMedia;
 
 /**
@@ -14,7 +20,27 @@ import mytunes.be.UserMedia;
  */
 public class MediaDBManager {
 
-    private ConnectionManager cm = new ConnectionManager();
+    private static final int BATCH_SIZE = 1000;    //The number of rows sent to the database in one round trip during bulk operations
+    private static final int DEFAULT_PAGE_SIZE = 1000;  //The number of rows read in one round trip
+    private static final String COLUMNS = "id, title, artist, category, time, path, audioSize, contentHash, loudness, peak";   //The columns needed to create a UserMedia object
+    private static final String INSERT_COLUMNS = "title, artist, category, time, path, audioSize, contentHash";  //The columns written by setInsertParameters, in order
+    private static final int INSERT_PARAMETERS = 7;     //The number of INSERT_COLUMNS
+    private static final String INSERT_MEDIA = "INSERT INTO Music(" + INSERT_COLUMNS + ") VALUES(?, ?, ?, ?, ?, ?, ?)";
+    private static final int OUTPUT_ROWS = 250;     //The rows inserted by one statement using the OUTPUT clause, SQL Server accepts at most 2100 parameters in a statement
+    private static final String UPDATE_MEDIA = "UPDATE Music SET title=?, artist=?, category=?, time=?, path=?, audioSize=?, "
+            + "contentHash=CASE WHEN audioSize=? THEN COALESCE(?, contentHash) ELSE ? END, "
+            + "loudness=CASE WHEN audioSize=? THEN loudness END, peak=CASE WHEN audioSize=? THEN peak END, "
+            + "undecodableBy=CASE WHEN audioSize=? THEN undecodableBy END WHERE id=?";  //A hash, loudness or decoder result stored earlier is kept while the audio data has not changed
+
+    private final ConnectionManager cm;
+
+    /**
+     * Create a new MediaDBManager that uses the given ConnectionManager
+     * @param cm The ConnectionManager shared by the database managers
+     */
+    public MediaDBManager(ConnectionManager cm) {
+        this.cm = cm;
+    }
 
     /**
      * Returns a list of UserMedia from the database.
@@ -24,25 +50,305 @@ public class MediaDBManager {
      */
     public List<UserMedia> getAll() throws DAException {
         List<UserMedia> mediaList = new ArrayList();
+        getAll(DEFAULT_PAGE_SIZE, mediaList::addAll);
+        return mediaList;
+    }
+
+    /**
+     * Reads the songs from the database one page at a time, ordered by their id.
+     * Every page is read using keyset pagination (the rows after the last id of the previous page), 
+     * so the memory used and the time it takes to read one page do not depend on the size of the table.
+     * 
+     * @param pageSize The maximum number of songs in one page, also used as the fetch size of the query
+     * @param pageHandler Called with every page, in order. The connection is not held while the handler runs
+     * @throws DAException If an error occurs during database access
+     */
+    public void getAll(int pageSize, Consumer<List<UserMedia>> pageHandler) throws DAException {
+        int lastId = Integer.MIN_VALUE;
+        List<UserMedia> page;
+        do {
+            page = new ArrayList<>(pageSize);
+            try (Connection con = cm.getConnection()) {
+                PreparedStatement pstatement = con.prepareStatement(
+                        "SELECT " + COLUMNS + " FROM Music WHERE id > ? ORDER BY id "
+                        + "OFFSET 0 ROWS FETCH NEXT ? ROWS ONLY");
+                pstatement.setFetchSize(pageSize);
+                pstatement.setInt(1, lastId);
+                pstatement.setInt(2, pageSize);
+                ResultSet result = pstatement.executeQuery();
+                while (result.next()) {
+                    page.add(readMedia(result));
+                }
+            }
+            catch (Exception e) {
+                throw new DAException(e.getMessage());
+            }
+            if (!page.isEmpty()) {
+                lastId = page.get(page.size() - 1).getId();
+                pageHandler.accept(page);
+            }
+        } while (page.size() == pageSize);
+    }
+
+    /**
+     * Returns the songs with the given ids. Songs that are no longer in the database are left out
+     * 
+     * @param ids The ids of the songs
+     * @return The songs that were found, in no particular order
+     * @throws DAException If an error occurs during database access
+     */
+    public List<UserMedia> get(Collection<Integer> ids) throws DAException {
+        List<UserMedia> mediaList = new ArrayList<>();
+        List<Integer> idList = new ArrayList<>(ids);
+        try (Connection con = cm.getConnection()) {
+            for (int start = 0; start < idList.size(); start += BATCH_SIZE) {   //Keep the number of parameters in one statement low
+                List<Integer> chunk = idList.subList(start, Math.min(idList.size(), start + BATCH_SIZE));
+                PreparedStatement pstatement = con.prepareStatement(
+                        "SELECT " + COLUMNS + " FROM Music WHERE id IN (" + String.join(", ", Collections.nCopies(chunk.size(), "?")) + ")");
+                for (int i = 0; i < chunk.size(); i++) {
+                    pstatement.setInt(i + 1, chunk.get(i));
+                }
+                ResultSet result = pstatement.executeQuery();
+                while (result.next()) {
+                    mediaList.add(readMedia(result));
+                }
+            }
+        }
+        catch (Exception e) {
+            throw new DAException(e.getMessage());
+        }
+        return mediaList;
+    }
+
+    /**
+     * Returns the songs whose audio data has one of the given sizes, the only songs that can be duplicates of files with these sizes.
+     * Uses the index on the audioSize column. Only the id, the path, the audio size and the content hash of the songs are read
+     * 
+     * @param sizes The audio sizes of the new files
+     * @return The songs with the same audio sizes, without their Media objects
+     * @throws DAException If an error occurs during database access
+     */
+    public List<UserMedia> getByAudioSize(Collection<Long> sizes) throws DAException {
+        List<UserMedia> mediaList = new ArrayList<>();
+        List<Long> sizeList = new ArrayList<>(sizes);
+        try (Connection con = cm.getConnection()) {
+            for (int start = 0; start < sizeList.size(); start += BATCH_SIZE) {
+                List<Long> chunk = sizeList.subList(start, Math.min(sizeList.size(), start + BATCH_SIZE));
+                PreparedStatement pstatement = con.prepareStatement(
+                        "SELECT id, path, audioSize, contentHash FROM Music WHERE audioSize IN (" + String.join(", ", Collections.nCopies(chunk.size(), "?")) + ")");
+                for (int i = 0; i < chunk.size(); i++) {
+                    pstatement.setLong(i + 1, chunk.get(i));
+                }
+                ResultSet result = pstatement.executeQuery();
+                while (result.next()) {
+                    UserMedia media = new UserMedia();
+                    media.setId(result.getInt("id"));
+                    media.setPath(result.getString("path"));
+                    media.setAudioSize(result.getLong("audioSize"));
+                    media.setContentHash(result.getString("contentHash"));
+                    mediaList.add(media);
+                }
+            }
+        }
+        catch (Exception e) {
+            throw new DAException(e.getMessage());
+        }
+        return mediaList;
+    }
+
+    /**
+     * Store the content hashes computed for songs that are already in the database.
+     * The hashes are not shown anywhere, so the change is not recorded in the change log
+     * 
+     * @param hashes The new content hashes by the id of the song
+     * @throws DAException If an error occurs during database access
+     */
+    public void saveContentHashes(Map<Integer, String> hashes) throws DAException {
+        if (hashes.isEmpty()) {
+            return;
+        }
         try (Connection con = cm.getConnection()) {
-            PreparedStatement pstatement = con.prepareStatement("SELECT * FROM Music");
+            con.setAutoCommit(false);
+            PreparedStatement pstatement = con.prepareStatement("UPDATE Music SET contentHash=? WHERE id=?");
+            for (Map.Entry<Integer, String> entry : hashes.entrySet()) {
+                pstatement.setString(1, entry.getValue());
+                pstatement.setInt(2, entry.getKey());
+                pstatement.addBatch();
+            }
+            pstatement.executeBatch();
+            con.commit();
+        }
+        catch (Exception e) {
+            throw new DAException(e.getMessage());
+        }
+    }
+
+    /**
+     * Returns a page of the songs whose audio size is not known, ordered by their id. These were saved by older versions of the program.
+     * Only the id and the path of the songs are read
+     * 
+     * @param afterId Only the songs with a larger id are returned, the last id of the previous page
+     * @param limit The maximum number of songs returned
+     * @return The songs without an audio size
+     * @throws DAException If an error occurs during database access
+     */
+    public List<UserMedia> getWithoutAudioSize(int afterId, int limit) throws DAException {
+        List<UserMedia> mediaList = new ArrayList<>();
+        try (Connection con = cm.getConnection()) {
+            PreparedStatement pstatement = con.prepareStatement(
+                    "SELECT id, path FROM Music WHERE id > ? AND (audioSize IS NULL OR audioSize = 0) ORDER BY id OFFSET 0 ROWS FETCH NEXT ? ROWS ONLY");
+            pstatement.setInt(1, afterId);
+            pstatement.setInt(2, limit);
             ResultSet result = pstatement.executeQuery();
             while (result.next()) {
-                UserMedia tempMedia = new UserMedia();
-                tempMedia.setId(result.getInt("id"));
-                tempMedia.setTitle(result.getString("title"));
-                tempMedia.setArtist(result.getString("artist"));
-                tempMedia.setCategory(result.getString("category"));
-                tempMedia.setTime(result.getInt("time"));
-                tempMedia.setPath(result.getString("path"));
-                tempMedia.createMediaFromPath();
-                mediaList.add(tempMedia);
+                UserMedia media = new UserMedia();
+                media.setId(result.getInt("id"));
+                media.setPath(result.getString("path"));
+                mediaList.add(media);
             }
-        } catch (Exception e) {
+        }
+        catch (Exception e) {
             throw new DAException(e.getMessage());
         }
         return mediaList;
     }
+
+    /**
+     * Store the audio sizes measured for songs that are already in the database.
+     * Like the content hashes, the sizes are not recorded in the change log
+     * 
+     * @param sizes The audio sizes by the id of the song
+     * @throws DAException If an error occurs during database access
+     */
+    public void saveAudioSizes(Map<Integer, Long> sizes) throws DAException {
+        if (sizes.isEmpty()) {
+            return;
+        }
+        try (Connection con = cm.getConnection()) {
+            con.setAutoCommit(false);
+            PreparedStatement pstatement = con.prepareStatement("UPDATE Music SET audioSize=? WHERE id=?");
+            for (Map.Entry<Integer, Long> entry : sizes.entrySet()) {
+                pstatement.setLong(1, entry.getValue());
+                pstatement.setInt(2, entry.getKey());
+                pstatement.addBatch();
+            }
+            pstatement.executeBatch();
+            con.commit();
+        }
+        catch (Exception e) {
+            throw new DAException(e.getMessage());
+        }
+    }
+
+    /**
+     * Returns a page of the songs that have not been analysed yet (have no peak), ordered by their id.
+     * The songs the installed decoders could not decode are skipped. Only the id and the path of the songs are read
+     * 
+     * @param afterId Only the songs with a larger id are returned, the last id of the previous page
+     * @param limit The maximum number of songs returned
+     * @return The songs to analyse
+     * @throws DAException If an error occurs during database access
+     */
+    public List<UserMedia> getUnanalysed(int afterId, int limit) throws DAException {
+        List<UserMedia> mediaList = new ArrayList<>();
+        try (Connection con = cm.getConnection()) {
+            PreparedStatement pstatement = con.prepareStatement(
+                    "SELECT id, path FROM Music WHERE id > ? AND peak IS NULL AND (undecodableBy IS NULL OR undecodableBy <> ?) "
+                    + "ORDER BY id OFFSET 0 ROWS FETCH NEXT ? ROWS ONLY");
+            pstatement.setInt(1, afterId);
+            pstatement.setInt(2, LoudnessAnalyzer.decoderVersion());
+            pstatement.setInt(3, limit);
+            ResultSet result = pstatement.executeQuery();
+            while (result.next()) {
+                UserMedia media = new UserMedia();
+                media.setId(result.getInt("id"));
+                media.setPath(result.getString("path"));
+                mediaList.add(media);
+            }
+        }
+        catch (Exception e) {
+            throw new DAException(e.getMessage());
+        }
+        return mediaList;
+    }
+
+    /**
+     * Store the measured loudness and peak of songs that are already in the database.
+     * Like the content hashes, the values are not recorded in the change log
+     * 
+     * @param mediaList The analysed songs
+     * @throws DAException If an error occurs during database access
+     */
+    public void saveLoudness(List<UserMedia> mediaList) throws DAException {
+        if (mediaList.isEmpty()) {
+            return;
+        }
+        try (Connection con = cm.getConnection()) {
+            con.setAutoCommit(false);
+            PreparedStatement pstatement = con.prepareStatement("UPDATE Music SET loudness=?, peak=? WHERE id=?");
+            for (UserMedia media : mediaList) {
+                pstatement.setObject(1, media.getLoudness(), Types.DOUBLE);
+                pstatement.setObject(2, media.getPeak(), Types.DOUBLE);
+                pstatement.setInt(3, media.getId());
+                pstatement.addBatch();
+            }
+            pstatement.executeBatch();
+            con.commit();
+        }
+        catch (Exception e) {
+            throw new DAException(e.getMessage());
+        }
+    }
+
+    /**
+     * Mark songs whose files the installed decoders cannot decode, with the version of the decoders.
+     * Like the loudness, the mark is not recorded in the change log
+     * 
+     * @param ids The ids of the songs
+     * @throws DAException If an error occurs during database access
+     */
+    public void markUndecodable(Collection<Integer> ids) throws DAException {
+        if (ids.isEmpty()) {
+            return;
+        }
+        try (Connection con = cm.getConnection()) {
+            con.setAutoCommit(false);
+            PreparedStatement pstatement = con.prepareStatement("UPDATE Music SET undecodableBy=? WHERE id=?");
+            for (int id : ids) {
+                pstatement.setInt(1, LoudnessAnalyzer.decoderVersion());
+                pstatement.setInt(2, id);
+                pstatement.addBatch();
+            }
+            pstatement.executeBatch();
+            con.commit();
+        }
+        catch (Exception e) {
+            throw new DAException(e.getMessage());
+        }
+    }
+
+    /**
+     * Create a UserMedia object from the current row of the result
+     * @param result A result containing the columns listed in COLUMNS
+     * @return The song stored in the current row
+     * @throws Exception If the columns cannot be read
+     */
+    private UserMedia readMedia(ResultSet result) throws Exception {
+        UserMedia tempMedia = new UserMedia();
+        tempMedia.setId(result.getInt("id"));
+        tempMedia.setTitle(result.getString("title"));
+        tempMedia.setArtist(result.getString("artist"));
+        tempMedia.setCategory(result.getString("category"));
+        tempMedia.setTime(result.getInt("time"));
+        tempMedia.setPath(result.getString("path"));
+        tempMedia.setAudioSize(result.getLong("audioSize"));
+        tempMedia.setContentHash(result.getString("contentHash"));
+        double loudness = result.getDouble("loudness");
+        tempMedia.setLoudness(result.wasNull() ? null : loudness);
+        double peak = result.getDouble("peak");
+        tempMedia.setPeak(result.wasNull() ? null : peak);
+        return tempMedia;
+    }
     
     /**
      * Saves the data of a given UserMedia to the database.
@@ -52,13 +358,9 @@ public class MediaDBManager {
      */
     public void save(UserMedia media) throws DAException {
         try (Connection con = cm.getConnection()) {
-            PreparedStatement pstatement = con.prepareStatement("INSERT INTO Music(title, artist, category, time, path)"
-                    + "VALUES(?, ?, ?, ?, ?)", Statement.RETURN_GENERATED_KEYS);
-            pstatement.setString(1, media.getTitle());
-            pstatement.setString(2, media.getArtist());
-            pstatement.setString(3, media.getCategory());
-            pstatement.setDouble(4, media.getTime());
-            pstatement.setString(5, media.getPath());
+            con.setAutoCommit(false);   //The change is recorded in the same transaction, an unfinished transaction is rolled back by the pool
+            PreparedStatement pstatement = con.prepareStatement(INSERT_MEDIA, Statement.RETURN_GENERATED_KEYS);
+            setInsertParameters(pstatement, media, 0);
             int affected = pstatement.executeUpdate();
             if (affected < 1) {
                 throw new DAException("Media could not be added!");
@@ -67,51 +369,295 @@ public class MediaDBManager {
             if (rs.next()) {
                 media.setId(rs.getInt(1));
             }
+            ChangeLog.record(con, ChangeLog.MEDIA, media.getId());
+            con.commit();
         } catch (Exception e) {
             throw new DAException(e.getMessage());
         }
     }
     
+    /**
+     * Saves the data of every UserMedia in the list to the database in a single transaction. On SQL Server the songs are inserted by multi-row statements
+     * returning their ids through the OUTPUT clause, on the other databases by JDBC batches. The generated ids are written back to the UserMedia objects.
+     * If any of the songs cannot be saved, none of them are, and the songs keep the ids they had before
+     * 
+     * @param mediaList The UserMedia objects that will be saved
+     * @throws DAException If an error occurs during database access
+     */
+    public void save(List<UserMedia> mediaList) throws DAException {
+        if (mediaList.isEmpty()) {
+            return;
+        }
+        List<Integer> previousIds = getIds(mediaList);
+        try (Connection con = cm.getConnection()) {
+            con.setAutoCommit(false);
+            try {
+                if (cm.getBackend().supportsOutputClause()) {
+                    insertWithOutput(con, mediaList);
+                }
+                else if (!insertBatches(con, mediaList)) {   //The driver does not return the keys of a batch, insert the songs one by one instead
+                    con.rollback();
+                    insertOneByOne(con, mediaList);
+                }
+                ChangeLog.record(con, ChangeLog.MEDIA, getIds(mediaList));
+                con.commit();
+            }
+            catch (SQLException | RuntimeException ex) {
+                con.rollback();
+                for (int i = 0; i < mediaList.size(); i++) {    //Nothing has been saved, the ids are not valid
+                    mediaList.get(i).setId(previousIds.get(i));
+                }
+                throw ex;
+            }
+        }
+        catch (Exception e) {
+            throw new DAException(e.getMessage());
+        }
+    }
+
+    /**
+     * Insert the songs OUTPUT_ROWS rows at a time, every statement returning the generated ids of its rows.
+     * A MERGE is used instead of an INSERT, because its OUTPUT clause can return the number of the source row next to the id,
+     * so the ids are matched to the songs without relying on the order of the returned rows
+     * @param con The connection used by the transaction
+     * @param mediaList The songs to insert
+     * @throws SQLException If an error occurs during database access, or an id is not returned
+     */
+    private void insertWithOutput(Connection con, List<UserMedia> mediaList) throws SQLException {
+        for (int start = 0; start < mediaList.size(); start += OUTPUT_ROWS) {
+            List<UserMedia> rows = mediaList.subList(start, Math.min(start + OUTPUT_ROWS, mediaList.size()));
+            PreparedStatement pstatement = con.prepareStatement(mergeMedia(rows.size()));
+            for (int i = 0; i < rows.size(); i++) {
+                setInsertParameters(pstatement, rows.get(i), i * INSERT_PARAMETERS);
+            }
+            ResultSet rs = pstatement.executeQuery();
+            int returned = 0;
+            while (rs.next()) {
+                rows.get(rs.getInt(1)).setId(rs.getInt(2));
+                returned++;
+            }
+            if (returned != rows.size()) {
+                throw new SQLException("The ids of the saved media could not be retrieved!");
+            }
+        }
+    }
+
+    /**
+     * Build the statement inserting a number of songs and returning the number of every row with its generated id
+     * @param rows The number of songs inserted by the statement
+     * @return The MERGE statement, taking the INSERT_COLUMNS of every song as parameters
+     */
+    private static String mergeMedia(int rows) {
+        StringBuilder sql = new StringBuilder("MERGE INTO Music USING (VALUES ");
+        for (int i = 0; i < rows; i++) {
+            sql.append(i == 0 ? "" : ", ").append("(").append(i).append(", ?, ?, ?, ?, ?, ?, ?)");
+        }
+        return sql.append(") AS source(rowNumber, ").append(INSERT_COLUMNS).append(") ON 1 = 0 ")    //Never matches, every row is inserted
+                .append("WHEN NOT MATCHED THEN INSERT(").append(INSERT_COLUMNS).append(") ")
+                .append("VALUES(source.title, source.artist, source.category, source.time, source.path, source.audioSize, source.contentHash) ")
+                .append("OUTPUT source.rowNumber, INSERTED.id;").toString();
+    }
+
+    /**
+     * Insert the songs in batches of BATCH_SIZE rows, and write the generated keys back to them
+     * @param con The connection used by the transaction
+     * @param mediaList The songs to insert
+     * @return False if the driver did not return the keys of a batch. The transaction has to be rolled back then
+     * @throws SQLException If an error occurs during database access
+     */
+    private boolean insertBatches(Connection con, List<UserMedia> mediaList) throws SQLException {
+        PreparedStatement pstatement = con.prepareStatement(INSERT_MEDIA, Statement.RETURN_GENERATED_KEYS);
+        int batchStart = 0;
+        for (int i = 0; i < mediaList.size(); i++) {
+            setInsertParameters(pstatement, mediaList.get(i), 0);
+            pstatement.addBatch();
+            if ((i + 1) % BATCH_SIZE == 0 || i == mediaList.size() - 1) {
+                pstatement.executeBatch();
+                if (!readGeneratedKeys(pstatement, mediaList.subList(batchStart, i + 1))) {
+                    return false;
+                }
+                batchStart = i + 1;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Insert the songs one statement at a time, and write the generated key of every row back to its song
+     * @param con The connection used by the transaction
+     * @param mediaList The songs to insert
+     * @throws SQLException If an error occurs during database access, or a key is not returned
+     */
+    private void insertOneByOne(Connection con, List<UserMedia> mediaList) throws SQLException {
+        PreparedStatement pstatement = con.prepareStatement(INSERT_MEDIA, Statement.RETURN_GENERATED_KEYS);
+        for (UserMedia media : mediaList) {
+            setInsertParameters(pstatement, media, 0);
+            pstatement.executeUpdate();
+            if (!readGeneratedKeys(pstatement, Collections.singletonList(media))) {
+                throw new SQLException("The id of the saved media could not be retrieved!");
+            }
+        }
+    }
+
+    /**
+     * Set the parameters of the INSERT_COLUMNS of one song
+     * @param pstatement The prepared INSERT_MEDIA or MERGE statement
+     * @param media The song whose values are written
+     * @param offset The number of parameters before the ones of this song
+     * @throws SQLException If a parameter cannot be set
+     */
+    private void setInsertParameters(PreparedStatement pstatement, UserMedia media, int offset) throws SQLException {
+        pstatement.setString(offset + 1, media.getTitle());
+        pstatement.setString(offset + 2, media.getArtist());
+        pstatement.setString(offset + 3, media.getCategory());
+        pstatement.setDouble(offset + 4, media.getTime());
+        pstatement.setString(offset + 5, media.getPath());
+        pstatement.setLong(offset + 6, media.getAudioSize());
+        pstatement.setString(offset + 7, media.getContentHash());
+    }
+
     /**
      * Updates and already existing database entry with the data from a given UserMedia.
+     * If the song is not in the database any more (another client has deleted it), there is nothing to update, and nothing is done
      * 
      * @param media The UserMedia object that will be updated in the database
      * @throws DAException If an error occurs during database access
      */
     public void edit(UserMedia media) throws DAException {
         try (Connection con = cm.getConnection()) {
-            PreparedStatement pstatement = con.prepareStatement("UPDATE Music SET title=?, artist=?, category=?, time=?, path=? WHERE id=?");
-            pstatement.setString(1, media.getTitle());
-            pstatement.setString(2, media.getArtist());
-            pstatement.setString(3, media.getCategory());
-            pstatement.setDouble(4, media.getTime());
-            pstatement.setString(5, media.getPath());
-            pstatement.setInt(6, media.getId());
+            con.setAutoCommit(false);
+            PreparedStatement pstatement = con.prepareStatement(UPDATE_MEDIA);
+            setUpdateParameters(pstatement, media);
             int affected = pstatement.executeUpdate();
-            if (affected < 1) {
-                throw new DAException("Media could not be edited!");
+            if (affected < 1) {     //Deleted by another client, the change log tells this client
+                con.rollback();
+                return;
             }
+            ChangeLog.record(con, ChangeLog.MEDIA, media.getId());
+            con.commit();
         } catch (Exception e) {
             throw new DAException(e.getMessage());
         }
     }
     
+    /**
+     * Updates the database entries of every UserMedia in the list, using JDBC batches in a single transaction.
+     * The songs that are not in the database any more (deleted by another client) are skipped
+     * 
+     * @param mediaList The UserMedia objects that will be updated in the database
+     * @throws DAException If an error occurs during database access
+     */
+    public void edit(List<UserMedia> mediaList) throws DAException {
+        if (mediaList.isEmpty()) {
+            return;
+        }
+        try (Connection con = cm.getConnection()) {
+            con.setAutoCommit(false);
+            try {
+                PreparedStatement pstatement = con.prepareStatement(UPDATE_MEDIA);
+                for (int i = 0; i < mediaList.size(); i++) {
+                    UserMedia media = mediaList.get(i);
+                    setUpdateParameters(pstatement, media);
+                    pstatement.addBatch();
+                    if ((i + 1) % BATCH_SIZE == 0 || i == mediaList.size() - 1) {
+                        pstatement.executeBatch();
+                    }
+                }
+                ChangeLog.record(con, ChangeLog.MEDIA, getIds(mediaList));
+                con.commit();
+            }
+            catch (SQLException ex) {
+                con.rollback();
+                throw ex;
+            }
+        }
+        catch (Exception e) {
+            throw new DAException(e.getMessage());
+        }
+    }
+
+    /**
+     * Set the parameters of the UPDATE_MEDIA statement
+     * @param pstatement The prepared UPDATE_MEDIA statement
+     * @param media The song whose values are written
+     * @throws SQLException If a parameter cannot be set
+     */
+    private void setUpdateParameters(PreparedStatement pstatement, UserMedia media) throws SQLException {
+        pstatement.setString(1, media.getTitle());
+        pstatement.setString(2, media.getArtist());
+        pstatement.setString(3, media.getCategory());
+        pstatement.setDouble(4, media.getTime());
+        pstatement.setString(5, media.getPath());
+        pstatement.setLong(6, media.getAudioSize());
+        pstatement.setLong(7, media.getAudioSize());
+        pstatement.setString(8, media.getContentHash());
+        pstatement.setString(9, media.getContentHash());
+        pstatement.setLong(10, media.getAudioSize());
+        pstatement.setLong(11, media.getAudioSize());
+        pstatement.setLong(12, media.getAudioSize());
+        pstatement.setInt(13, media.getId());
+    }
+
     /**
      * Removes the database entry of the given UserMedia from the database.
+     * If the song is not in the database any more (another client has deleted it), it is already done, and nothing is written
      * 
      * @param media The UserMedia object that will be removed from the database
      * @throws DAException If an error occurs during database access
      */
     public void delete(UserMedia media) throws DAException {
         try (Connection con = cm.getConnection()) {
+            con.setAutoCommit(false);
             PreparedStatement pstatement = con.prepareStatement("DELETE FROM Music WHERE id=?");
             pstatement.setInt(1, media.getId());
             int affected = pstatement.executeUpdate();
-            if (affected < 1) {
-                throw new DAException("Media could not be deleted!");
+            if (affected < 1) {     //Already deleted, the other client has recorded it
+                con.rollback();
+                return;
             }
+            ChangeLog.record(con, ChangeLog.MEDIA, media.getId());  //Other clients find the song missing, and remove it
+            con.commit();
         } catch (Exception e) {
             throw new DAException(e.getMessage());
         }
     }
+
+    /**
+     * Collect the ids of the songs
+     * @param mediaList The songs
+     * @return The ids of the songs, in the same order
+     */
+    private List<Integer> getIds(List<UserMedia> mediaList) {
+        List<Integer> ids = new ArrayList<>(mediaList.size());
+        for (UserMedia media : mediaList) {
+            ids.add(media.getId());
+        }
+        return ids;
+    }
+
+    /**
+     * Write the keys generated by the last batch back to the UserMedia objects
+     * @param pstatement The statement that executed the batch
+     * @param batch The songs in the batch, in the order they were added to it
+     * @return True if the driver returned a key for every row, false otherwise
+     */
+    private boolean readGeneratedKeys(PreparedStatement pstatement, List<UserMedia> batch) {
+        List<Integer> keys = new ArrayList<>();
+        try {
+            ResultSet rs = pstatement.getGeneratedKeys();
+            while (rs.next()) {
+                keys.add(rs.getInt(1));
+            }
+        }
+        catch (SQLException ex) {
+            return false;
+        }
+        if (keys.size() != batch.size()) {
+            return false;
+        }
+        for (int i = 0; i < batch.size(); i++) {
+            batch.get(i).setId(keys.get(i));
+        }
+        return true;
+    }
 }
@@ -3,6 +3,9 @@ package mytunes.dal;
 import java.io.File;
 import java.io.IOException;
 import java.net.URI;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.sound.sampled.UnsupportedAudioFileException;
 import mytunes.be.UserMedia;
 import org.jaudiotagger.audio.AudioFile;
 import org.jaudiotagger.audio.AudioFileIO;
@@ -12,8 +15,6 @@ import org.jaudiotagger.audio.exceptions.InvalidAudioFrameException;
 import org.jaudiotagger.audio.exceptions.ReadOnlyFileException;
 import org.jaudiotagger.tag.FieldKey;
 import org.jaudiotagger.tag.Tag;
-import org.jaudiotagger.tag.flac.FlacTag;
-import org.jaudiotagger.tag.vorbiscomment.VorbisCommentTag;
 
 /**
  * A class that reads the meta data of a specified file
@@ -21,49 +22,157 @@ import org.jaudiotagger.tag.vorbiscomment.VorbisCommentTag;
  */
 public class MetaReader {
 
+    private final TagCache cache;
+    private final FastTagReader fastReader = new FastTagReader();
+
+    /**
+     * Create a new MetaReader, caching the tags in the file set by the "mytunes.tagcache.file" system property (by default in the .mytunes folder of the user)
+     */
+    public MetaReader() {
+        String defaultFile = new File(System.getProperty("user.home"), ".mytunes" + File.separator + "tags.cache").getPath();
+        cache = new TagCache(new File(System.getProperty("mytunes.tagcache.file", defaultFile)));
+    }
+
     /**
      * Reads the meta data from the media file at the given location and puts
      * the appropriate data to a UserMedia and returns it.
+     * If the file has not changed since it was last read (same size and modification time), the tags are taken from the cache
      * 
      * @param path The path of the file
      * @return An UserMedia object containing the data of retrieved from the file
      * @throws DAException If an error occurs during file access
      */
     public UserMedia getMetaData(URI path) throws DAException {
-        UserMedia tempmedia = new UserMedia();
+        File file = new File(path);
+        String key = file.getAbsolutePath();
+        long size = file.length();
+        long modified = file.lastModified();
+        UserMedia cached = cache.get(key, size, modified);
+        if (cached != null) {
+            return cached;
+        }
+        UserMedia tempmedia = readTags(file);
         try {
-            File file = new File(path);
-            AudioFile audiofile = AudioFileIO.read(file);
-            AudioHeader header = audiofile.getAudioHeader();
-            if (path.toString().endsWith(".ogg")) {
-                VorbisCommentTag tag = (VorbisCommentTag) audiofile.getTag();
+            tempmedia.setAudioSize(ContentHasher.audioSize(file));  //Only the headers are read, the audio data is hashed when it is needed
+        }
+        catch (IOException | RuntimeException ex) {    //The tags are still good, the song is only left out of the duplicate check. Not cached, so the size is tried again
+            Logger.getLogger(MetaReader.class.getName()).log(Level.FINE, "Cannot measure the audio size of " + file, ex);
+            return tempmedia;
+        }
+        cache.put(key, size, modified, tempmedia);
+        return tempmedia;
+    }
 
-                tempmedia.setTitle(tag.getFirst(FieldKey.TITLE));
-                tempmedia.setArtist(tag.getFirst(FieldKey.ARTIST));
-                tempmedia.setCategory(tag.getFirst(FieldKey.GENRE));
-                tempmedia.setTime(header.getPreciseTrackLength());
+    /**
+     * Read the tags of the file. The fast header reader is tried first, jaudiotagger is used for the files it cannot handle or fails to read
+     * @param file The file
+     * @return An UserMedia object containing the data of retrieved from the file
+     * @throws DAException If an error occurs during file access
+     */
+    private UserMedia readTags(File file) throws DAException {
+        try {
+            UserMedia tempmedia = fastReader.read(file);
+            if (tempmedia != null) {
+                return tempmedia;
             }
-            if (path.toString().endsWith(".flac")) {
-                FlacTag tag = (FlacTag) audiofile.getTag();
+        }
+        catch (IOException ex) {    //jaudiotagger reports the error if the file really cannot be read
+            Logger.getLogger(MetaReader.class.getName()).log(Level.FINE, "The fast tag reader could not read " + file, ex);
+        }
 
+        UserMedia tempmedia = new UserMedia();
+        try {
+            AudioFile audiofile = AudioFileIO.read(file);
+            AudioHeader header = audiofile.getAudioHeader();
+            Tag tag = audiofile.getTag();   //Every format has the same fields, no need to use the format specific tag classes
+            if (tag != null) {
                 tempmedia.setTitle(tag.getFirst(FieldKey.TITLE));
                 tempmedia.setArtist(tag.getFirst(FieldKey.ARTIST));
                 tempmedia.setCategory(tag.getFirst(FieldKey.GENRE));
-                tempmedia.setTime(header.getPreciseTrackLength());
-            } else {
-                Tag tag = audiofile.getTag();
-                
-                tempmedia.setTitle(tag.getFirst(FieldKey.TITLE));
-                tempmedia.setArtist(tag.getFirst(FieldKey.ARTIST));
-                tempmedia.setCategory(tag.getFirst(FieldKey.GENRE));
-                tempmedia.setTime(header.getPreciseTrackLength());
             }
+            tempmedia.setTime(header.getPreciseTrackLength());
         }
-
         catch (CannotReadException | IOException | org.jaudiotagger.tag.TagException | ReadOnlyFileException | InvalidAudioFrameException ex) {
             throw new DAException(ex.getMessage());
         }
         return tempmedia;
     }
 
+    /**
+     * Measure the size of the audio data of the file, without its tags. Only the headers are read
+     * 
+     * @param path The path of the file
+     * @return The size of the audio data in bytes
+     * @throws DAException If an error occurs during file access
+     */
+    public long getAudioSize(String path) throws DAException {
+        try {
+            return ContentHasher.audioSize(new File(path));
+        }
+        catch (IOException ex) {
+            throw new DAException(ex.getMessage());
+        }
+    }
+
+    /**
+     * Hash the audio data of the file, without its tags. Reads the whole file
+     * 
+     * @param path The path of the file
+     * @return The hash as a hexadecimal string
+     * @throws DAException If an error occurs during file access
+     */
+    public String getContentHash(String path) throws DAException {
+        try {
+            return ContentHasher.hash(new File(path));
+        }
+        catch (IOException ex) {
+            throw new DAException(ex.getMessage());
+        }
+    }
+
+    /**
+     * Measure the integrated loudness and the sample peak of the file, and store them in the song.
+     * The song is not changed if the format of the file cannot be decoded
+     * @param path The path of the file
+     * @param media The song of the file
+     * @return False if none of the installed decoders can decode the format of the file
+     * @throws DAException If an error occurs during file access
+     */
+    public boolean analyseLoudness(String path, UserMedia media) throws DAException {
+        try {
+            double[] result = LoudnessAnalyzer.analyse(new File(path));
+            media.setLoudness(Double.isNaN(result[0]) ? null : result[0]);
+            media.setPeak(result[1]);
+            return true;
+        }
+        catch (UnsupportedAudioFileException ex) {
+            return false;
+        }
+        catch (IOException ex) {
+            throw new DAException(ex.getMessage());
+        }
+    }
+
+    /**
+     * Get the number of files whose tags were found in the cache
+     * @return The number of cache hits
+     */
+    public long getCacheHits() {
+        return cache.getHits();
+    }
+
+    /**
+     * Get the number of files that had to be read, because they were not cached or have changed
+     * @return The number of cache misses
+     */
+    public long getCacheMisses() {
+        return cache.getMisses();
+    }
+
+    /**
+     * Write the new entries of the cache to its file
+     */
+    public void saveCache() {
+        cache.save();
+    }
 }
@@ -3,9 +3,15 @@ package mytunes.dal;
 import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
+import java.sql.SQLException;
 import java.sql.Statement;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import mytunes.be.PlayList;
 import mytunes.be.UserMedia;
 
@@ -15,46 +21,107 @@ import mytunes.be.UserMedia;
  */
 public class PlayListDBManager {
 
-    private ConnectionManager cm = new ConnectionManager();
+    private static final int BATCH_SIZE = 1000;    //The number of rows sent to the database in one round trip during bulk operations
+    private final ConnectionManager cm;
+
+    /**
+     * Create a new PlayListDBManager that uses the given ConnectionManager
+     * @param cm The ConnectionManager shared by the database managers
+     */
+    public PlayListDBManager(ConnectionManager cm) {
+        this.cm = cm;
+    }
 
     /**
      * Returns a list of PlayList from the database and fills the list in each PlayList
      * with the connected media.
+     * The songs are looked up in the supplied map, so every play list refers to the same UserMedia instance.
+     * Songs that are not in the map are created once, and added to the map.
      * 
+     * @param mediaById The already loaded songs, mapped by their id
      * @return A list of PlayList stored in the database
      * @throws DAException If an error occurs during database access
      */
-    public List<PlayList> getAll() throws DAException {
+    public List<PlayList> getAll(Map<Integer, UserMedia> mediaById) throws DAException {
         List<PlayList> playListList = new ArrayList();
+        Map<Integer, PlayList> playListById = new HashMap<>();
         try (Connection con = cm.getConnection()) {
-            PreparedStatement pstatement = con.prepareStatement("SELECT * FROM Playlist");
+            PreparedStatement pstatement = con.prepareStatement("SELECT id, title FROM Playlist");
             ResultSet result = pstatement.executeQuery();
             while (result.next()) {
                 PlayList tempList = new PlayList();
                 tempList.setId(result.getInt("id"));
                 tempList.setTitle(result.getString("title"));
                 playListList.add(tempList);
+                playListById.put(tempList.getId(), tempList);
             }
 
             PreparedStatement pstaStatement2 = con.prepareStatement(
-                    "SELECT Music.* , MusicInList.listID "
+                    "SELECT Music.id, Music.title, Music.artist, Music.category, Music.time, Music.path, MusicInList.listID, MusicInList.position "
                     + "FROM Music, MusicInList "
-                    + "WHERE MusicInList.musicID = Music.id");
+                    + "WHERE MusicInList.musicID = Music.id "
+                    + "ORDER BY MusicInList.listID, MusicInList.position");
             ResultSet result2 = pstaStatement2.executeQuery();
+            Map<PlayList, List<UserMedia>> unordered = new LinkedHashMap<>();  //Songs added before the order was stored
             while (result2.next()) {
-                for (PlayList playList : playListList) {
-                    if (playList.getId() == result2.getInt("listID")) {
-                        UserMedia tempMedia = new UserMedia();
-                        tempMedia.setId(result2.getInt("id"));
-                        tempMedia.setTitle(result2.getString("title"));
-                        tempMedia.setArtist(result2.getString("artist"));
-                        tempMedia.setCategory(result2.getString("category"));
-                        tempMedia.setTime(result2.getInt("time"));
-                        tempMedia.setPath(result2.getString("path"));
-                        tempMedia.createMediaFromPath();
-                        playList.addMedia(tempMedia);
-                    }
+                PlayList playList = playListById.get(result2.getInt("listID"));
+                if (playList == null) {
+                    continue;
+                }
+                int mediaId = result2.getInt("id");
+                UserMedia media = mediaById.get(mediaId);
+                if (media == null) {    //The song was not loaded before, create it only once
+                    media = new UserMedia();
+                    media.setId(mediaId);
+                    media.setTitle(result2.getString("title"));
+                    media.setArtist(result2.getString("artist"));
+                    media.setCategory(result2.getString("category"));
+                    media.setTime(result2.getInt("time"));
+                    media.setPath(result2.getString("path"));
+                    mediaById.put(mediaId, media);
                 }
+                long position = result2.getLong("position");
+                if (result2.wasNull()) {
+                    unordered.computeIfAbsent(playList, p -> new ArrayList<>()).add(media);
+                }
+                else {
+                    playList.addMedia(media, position);
+                }
+            }
+            for (Map.Entry<PlayList, List<UserMedia>> entry : unordered.entrySet()) {  //Put them at the end of the list, and store their positions
+                for (UserMedia media : entry.getValue()) {
+                    entry.getKey().addMedia(media);
+                }
+                updatePositions(con, entry.getKey(), entry.getValue());
+            }
+        }
+        catch (Exception e) {
+            throw new DAException(e.getMessage());
+        }
+        return playListList;
+    }
+
+    /**
+     * Returns the play lists with the given ids, without their songs. Play lists that are no longer in the database are left out
+     * 
+     * @param ids The ids of the play lists
+     * @return The play lists that were found
+     * @throws DAException If an error occurs during database access
+     */
+    public List<PlayList> get(Collection<Integer> ids) throws DAException {
+        List<PlayList> playListList = new ArrayList<>();
+        if (ids.isEmpty()) {
+            return playListList;
+        }
+        try (Connection con = cm.getConnection()) {
+            PreparedStatement pstatement = con.prepareStatement("SELECT id, title FROM Playlist WHERE id IN (" + placeholders(ids.size()) + ")");
+            setIds(pstatement, ids);
+            ResultSet result = pstatement.executeQuery();
+            while (result.next()) {
+                PlayList tempList = new PlayList();
+                tempList.setId(result.getInt("id"));
+                tempList.setTitle(result.getString("title"));
+                playListList.add(tempList);
             }
         }
         catch (Exception e) {
@@ -63,6 +130,48 @@ public class PlayListDBManager {
         return playListList;
     }
 
+    /**
+     * Returns the songs of the given play lists, in order
+     * 
+     * @param ids The ids of the play lists
+     * @return The id and position of every song in order, by the id of the play list. Every requested play list is included, even if it is empty
+     * @throws DAException If an error occurs during database access
+     */
+    public Map<Integer, LinkedHashMap<Integer, Long>> getMembers(Collection<Integer> ids) throws DAException {
+        Map<Integer, LinkedHashMap<Integer, Long>> members = new HashMap<>();
+        if (ids.isEmpty()) {
+            return members;
+        }
+        for (int id : ids) {
+            members.put(id, new LinkedHashMap<>());
+        }
+        try (Connection con = cm.getConnection()) {
+            PreparedStatement pstatement = con.prepareStatement(
+                    "SELECT listID, musicID, position FROM MusicInList WHERE listID IN (" + placeholders(ids.size()) + ") "
+                    + "ORDER BY listID, position");
+            setIds(pstatement, ids);
+            ResultSet result = pstatement.executeQuery();
+            while (result.next()) {
+                members.get(result.getInt("listID")).put(result.getInt("musicID"), result.getLong("position"));
+            }
+        }
+        catch (Exception e) {
+            throw new DAException(e.getMessage());
+        }
+        return members;
+    }
+
+    private static String placeholders(int count) {
+        return String.join(", ", Collections.nCopies(count, "?"));
+    }
+
+    private static void setIds(PreparedStatement pstatement, Collection<Integer> ids) throws SQLException {
+        int i = 0;
+        for (int id : ids) {
+            pstatement.setInt(++i, id);
+        }
+    }
+
     /**
      * Saves the data of a given PlayList to the database.
      * 
@@ -71,6 +180,7 @@ public class PlayListDBManager {
      */
     public void save(PlayList playlist) throws DAException {
         try (Connection con = cm.getConnection()) {
+            con.setAutoCommit(false);   //The change is recorded in the same transaction, an unfinished transaction is rolled back by the pool
             PreparedStatement pstatement = con.prepareStatement(
                     "INSERT INTO Playlist(title)"
                     + "VALUES(?)", Statement.RETURN_GENERATED_KEYS);
@@ -83,6 +193,8 @@ public class PlayListDBManager {
             if (rs.next()) {
                 playlist.setId(rs.getInt(1));
             }
+            ChangeLog.record(con, ChangeLog.PLAYLIST, playlist.getId());
+            con.commit();
         }
         catch (Exception e) {
             throw new DAException(e.getMessage());
@@ -91,19 +203,24 @@ public class PlayListDBManager {
 
     /**
      * Updates and already existing database entry with the data from a given PlayList.
+     * If the play list is not in the database any more (another client has deleted it), there is nothing to update, and nothing is done
      * 
      * @param playlist The PlayList object with the updated data, that will be saved to the database
      * @throws DAException If an error occurs during database access
      */
     public void edit(PlayList playlist) throws DAException {
         try (Connection con = cm.getConnection()) {
+            con.setAutoCommit(false);
             PreparedStatement pstatement = con.prepareStatement("UPDATE Playlist SET title=? WHERE id=?");
             pstatement.setString(1, playlist.getTitle());
             pstatement.setInt(2, playlist.getId());
             int affected = pstatement.executeUpdate();
-            if (affected < 1) {
-                throw new DAException("Playlist could not be edited!");
+            if (affected < 1) {     //Deleted by another client, the change log tells this client
+                con.rollback();
+                return;
             }
+            ChangeLog.record(con, ChangeLog.PLAYLIST, playlist.getId());
+            con.commit();
         }
         catch (Exception e) {
             throw new DAException(e.getMessage());
@@ -111,18 +228,35 @@ public class PlayListDBManager {
     }
 
     /**
-     * Removes the database entry of the given PlayList from the database.
+     * Removes the database entry of the given PlayList from the database, together with every song connected to it.
+     * Both are removed with a single statement each, in one transaction.
+     * If the play list is not in the database any more (another client has deleted it), it is already done, and nothing is written
      * 
      * @param playlist The PlayList that will be removed from the database
      * @throws DAException If an error occurs during database access
      */
     public void delete(PlayList playlist) throws DAException {
         try (Connection con = cm.getConnection()) {
-            PreparedStatement pstatement = con.prepareStatement("DELETE FROM Playlist WHERE id=?");
-            pstatement.setInt(1, playlist.getId());
-            int affected = pstatement.executeUpdate();
-            if (affected < 1) {
-                throw new DAException("Playlist could not be deleted!");
+            con.setAutoCommit(false);
+            try {
+                PreparedStatement members = con.prepareStatement("DELETE FROM MusicInList WHERE listID=?");
+                members.setInt(1, playlist.getId());
+                members.executeUpdate();
+
+                PreparedStatement pstatement = con.prepareStatement("DELETE FROM Playlist WHERE id=?");
+                pstatement.setInt(1, playlist.getId());
+                int affected = pstatement.executeUpdate();
+                if (affected < 1) {     //Already deleted, the other client has recorded it
+                    con.rollback();
+                    return;
+                }
+                ChangeLog.record(con, ChangeLog.PLAYLIST, playlist.getId());
+                ChangeLog.record(con, ChangeLog.MEMBERS, playlist.getId());
+                con.commit();
+            }
+            catch (SQLException ex) {
+                con.rollback();
+                throw ex;
             }
         }
         catch (Exception e) {
@@ -133,6 +267,7 @@ public class PlayListDBManager {
     /**
      * Adds a database entry that creates a connection between the given PlayList 
      * and the given UserMedia objects.
+     * The song has to be added to the play list first, its position is saved as well.
      * 
      * @param playlist The selected play list
      * @param media The selected song
@@ -140,21 +275,114 @@ public class PlayListDBManager {
      */
     public void addMediaToList(PlayList playlist, UserMedia media) throws DAException {
         try (Connection con = cm.getConnection()) {
+            con.setAutoCommit(false);
             PreparedStatement pstatement = con.prepareStatement(
-                    "INSERT INTO MusicInList(listID, musicID)"
-                    + "VALUES(?, ?)");
+                    "INSERT INTO MusicInList(listID, musicID, position)"
+                    + "VALUES(?, ?, ?)");
             pstatement.setInt(1, playlist.getId());
             pstatement.setInt(2, media.getId());
+            pstatement.setLong(3, playlist.getPosition(media));
             int affected = pstatement.executeUpdate();
             if (affected < 1) {
                 throw new DAException("Media cannot be added to the playlist!");
             }
+            ChangeLog.record(con, ChangeLog.MEMBERS, playlist.getId());
+            con.commit();
+        }
+        catch (Exception e) {
+            throw new DAException(e.getMessage());
+        }
+    }
+
+    /**
+     * Adds the database entries that connect every song in the list to the given PlayList,
+     * using JDBC batches of BATCH_SIZE rows in one transaction.
+     * The songs have to be added to the play list first, their positions are saved as well.
+     * 
+     * @param playlist The selected play list
+     * @param mediaList The songs that will be added to the play list
+     * @throws DAException If an error occurs during database access
+     */
+    public void addMediaToList(PlayList playlist, List<UserMedia> mediaList) throws DAException {
+        if (mediaList.isEmpty()) {
+            return;
+        }
+        try (Connection con = cm.getConnection()) {
+            con.setAutoCommit(false);
+            try {
+                PreparedStatement pstatement = con.prepareStatement(
+                        "INSERT INTO MusicInList(listID, musicID, position)"
+                        + "VALUES(?, ?, ?)");
+                for (int i = 0; i < mediaList.size(); i++) {
+                    UserMedia media = mediaList.get(i);
+                    pstatement.setInt(1, playlist.getId());
+                    pstatement.setInt(2, media.getId());
+                    pstatement.setLong(3, playlist.getPosition(media));
+                    pstatement.addBatch();
+                    if ((i + 1) % BATCH_SIZE == 0 || i == mediaList.size() - 1) {
+                        pstatement.executeBatch();
+                    }
+                }
+                ChangeLog.record(con, ChangeLog.MEMBERS, playlist.getId());
+                con.commit();
+            }
+            catch (SQLException ex) {
+                con.rollback();
+                throw ex;
+            }
+        }
+        catch (Exception e) {
+            throw new DAException(e.getMessage());
+        }
+    }
+
+    /**
+     * Saves the positions of the given songs in the play list, in a single JDBC batch.
+     * 
+     * @param playlist The play list containing the songs
+     * @param mediaList The songs whose position has changed
+     * @throws DAException If an error occurs during database access
+     */
+    public void updatePositions(PlayList playlist, List<UserMedia> mediaList) throws DAException {
+        if (mediaList.isEmpty()) {
+            return;
+        }
+        try (Connection con = cm.getConnection()) {
+            con.setAutoCommit(false);
+            try {
+                updatePositions(con, playlist, mediaList);
+                con.commit();
+            }
+            catch (SQLException ex) {
+                con.rollback();
+                throw ex;
+            }
         }
         catch (Exception e) {
             throw new DAException(e.getMessage());
         }
     }
 
+    /**
+     * Saves the positions of the given songs in the play list using the given connection
+     * @param con The connection to the database
+     * @param playlist The play list containing the songs
+     * @param mediaList The songs whose position has changed
+     * @throws SQLException If an error occurs during database access
+     */
+    private void updatePositions(Connection con, PlayList playlist, List<UserMedia> mediaList) throws SQLException {
+        PreparedStatement pstatement = con.prepareStatement(
+                "UPDATE MusicInList SET position=? WHERE listID=? AND musicID=?");
+        for (UserMedia media : mediaList) {
+            pstatement.setLong(1, playlist.getPosition(media));
+            pstatement.setInt(2, playlist.getId());
+            pstatement.setInt(3, media.getId());
+            pstatement.addBatch();
+        }
+        pstatement.executeBatch();
+        ChangeLog.record(con, ChangeLog.MEMBERS, playlist.getId());
+    }
+
     /**
      * Deletes the database entry that creates a connection between the given PlayList
      * and the given UserMedia objects.
@@ -165,6 +393,7 @@ public class PlayListDBManager {
      */
     public void deleteMediaFromList(PlayList playlist, UserMedia media) throws DAException {
         try (Connection con = cm.getConnection()) {
+            con.setAutoCommit(false);
             PreparedStatement pstatement = con.prepareStatement(
                     "DELETE FROM MusicInList WHERE musicID=? AND listID=?");
             pstatement.setInt(1, media.getId());
@@ -173,6 +402,8 @@ public class PlayListDBManager {
             if (affected < 1) {
                 throw new DAException("Media cannot be deleted from the list!");
             }
+            ChangeLog.record(con, ChangeLog.MEMBERS, playlist.getId());
+            con.commit();
         }
         catch (Exception e) {
             throw new DAException(e.getMessage());
@@ -0,0 +1,127 @@
+package mytunes.dal;
+
+import java.sql.Connection;
+import java.sql.DatabaseMetaData;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+
+/**
+ * Creates the missing tables, and adds the columns introduced by newer versions of the program to an existing database
+ * @author Dominik
+ */
+class SchemaUpdater {
+
+    /**
+     * The columns that might be missing from an older database: table, column, type
+     */
+    private static final String[][] COLUMNS = {
+        {"MusicInList", "position", "BIGINT"},
+        {"Music", "audioSize", "BIGINT"},
+        {"Music", "contentHash", "VARCHAR(64)"},
+        {"Music", "loudness", "FLOAT"},
+        {"Music", "peak", "FLOAT"},
+        {"Music", "undecodableBy", "INT"},     //The version of the decoders that could not decode the file
+        {"ChangeLog", "changedAt", "DATETIME DEFAULT CURRENT_TIMESTAMP"}   //The older entries are pruned
+    };
+
+    /**
+     * The indexes that might be missing from an older database: table, index name, column
+     */
+    private static final String[][] INDEXES = {
+        {"Music", "IX_Music_audioSize", "audioSize"},      //Finds the songs that could be duplicates of a new file
+        {"Music", "IX_Music_contentHash", "contentHash"},  //Finds the songs with the same audio data
+        {"ChangeLog", "IX_ChangeLog_changedAt", "changedAt"}  //Finds the entries to prune
+    };
+
+    /**
+     * Fixes of the data written by older versions of the program, run on every start
+     */
+    private static final String[] DATA_UPDATES = {
+        "UPDATE Music SET peak = NULL WHERE peak = 0 AND loudness IS NULL"  //Undecodable files were marked as analysed, a silent file is only measured again
+    };
+
+    /**
+     * Add every missing column and index to the database, and fix the data of older versions
+     * @param con The connection used to alter the tables
+     * @throws SQLException If an error occurs during database access
+     */
+    static void update(Connection con) throws SQLException {
+        DatabaseMetaData meta = con.getMetaData();
+        for (String[] column : COLUMNS) {
+            if (!hasColumn(meta, column[0], column[1])) {
+                try (Statement statement = con.createStatement()) {
+                    statement.execute("ALTER TABLE " + column[0] + " ADD " + column[1] + " " + column[2]);
+                }
+            }
+        }
+        for (String[] index : INDEXES) {
+            if (!hasIndex(meta, index[0], index[1])) {
+                try (Statement statement = con.createStatement()) {
+                    statement.execute("CREATE INDEX " + index[1] + " ON " + index[0] + "(" + index[2] + ")");
+                }
+            }
+        }
+        for (String update : DATA_UPDATES) {
+            try (Statement statement = con.createStatement()) {
+                statement.executeUpdate(update);
+            }
+        }
+    }
+
+    /**
+     * Create a table if it does not exist yet
+     * @param con The connection used to create the table
+     * @param table The name of the table
+     * @param definition The statement creating the table
+     * @throws SQLException If an error occurs during database access
+     */
+    static void createTable(Connection con, String table, String definition) throws SQLException {
+        if (!hasColumn(con.getMetaData(), table, "%")) {
+            try (Statement statement = con.createStatement()) {
+                statement.execute(definition);
+            }
+        }
+    }
+
+    /**
+     * Check if a table has a column. Databases store the names in different cases, so every form is checked
+     * @param meta The meta data of the database
+     * @param table The name of the table
+     * @param column The name of the column
+     * @return True if the column exists, false otherwise
+     * @throws SQLException If an error occurs during database access
+     */
+    private static boolean hasColumn(DatabaseMetaData meta, String table, String column) throws SQLException {
+        String[][] names = {{table, column}, {table.toUpperCase(), column.toUpperCase()}, {table.toLowerCase(), column.toLowerCase()}};   //The % pattern matches any column
+        for (String[] name : names) {
+            try (ResultSet rs = meta.getColumns(null, null, name[0], name[1])) {
+                if (rs.next()) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Check if a table has an index with the given name
+     * @param meta The meta data of the database
+     * @param table The name of the table
+     * @param index The name of the index
+     * @return True if the index exists, false otherwise
+     * @throws SQLException If an error occurs during database access
+     */
+    private static boolean hasIndex(DatabaseMetaData meta, String table, String index) throws SQLException {
+        for (String name : new String[]{table, table.toUpperCase(), table.toLowerCase()}) {
+            try (ResultSet rs = meta.getIndexInfo(null, null, name, false, true)) {
+                while (rs.next()) {
+                    if (index.equalsIgnoreCase(rs.getString("INDEX_NAME"))) {
+                        return true;
+                    }
+                }
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,43 @@
+package mytunes.dal;
+
+import com.microsoft.sqlserver.jdbc.SQLServerDataSource;
+import java.sql.Connection;
+import java.sql.SQLException;
+import javax.sql.DataSource;
+
+/**
+ * Stores the library on the shared SQL Server database
+ * @author Dominik
+ */
+public class SqlServerBackend implements StorageBackend {
+
+    @Override
+    public String getName() {
+        return "SQL Server";
+    }
+
+    @Override
+    public DataSource createDataSource() {
+        SQLServerDataSource source = new SQLServerDataSource();
+        source.setDatabaseName("CS2017B_7_myTunes");
+        source.setUser("CS2017B_7_java");
+        source.setPassword("javajava");
+        source.setPortNumber(1433);
+        source.setServerName("10.176.111.31");
+        return source;
+    }
+
+    @Override
+    public void createSchema(Connection con) throws SQLException {
+        SchemaUpdater.createTable(con, "Music", "CREATE TABLE Music(id INT IDENTITY(1,1) PRIMARY KEY, "
+                + "title NVARCHAR(255), artist NVARCHAR(255), category NVARCHAR(255), time FLOAT, path NVARCHAR(1024))");
+        SchemaUpdater.createTable(con, "Playlist", "CREATE TABLE Playlist(id INT IDENTITY(1,1) PRIMARY KEY, title NVARCHAR(255))");
+        SchemaUpdater.createTable(con, "MusicInList", "CREATE TABLE MusicInList(listID INT NOT NULL, musicID INT NOT NULL, position BIGINT)");
+        SchemaUpdater.createTable(con, "ChangeLog", "CREATE TABLE ChangeLog(id BIGINT IDENTITY(1,1) PRIMARY KEY, entity CHAR(1) NOT NULL, entityId INT NOT NULL)");
+    }
+
+    @Override
+    public boolean supportsOutputClause() {
+        return true;    //The driver does not return the keys of a batch
+    }
+}
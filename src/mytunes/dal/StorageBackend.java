@@ -0,0 +1,39 @@
+package mytunes.dal;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import javax.sql.DataSource;
+
+/**
+ * Represents a database the library can be stored in. 
+ * The database managers only use standard SQL, so every backend has to provide the same tables (Music, Playlist, MusicInList)
+ * @author Dominik
+ */
+public interface StorageBackend {
+
+    /**
+     * Get the name of the backend, for example to display it
+     * @return The name of the backend
+     */
+    String getName();
+
+    /**
+     * Create the data source that opens the physical connections to the database
+     * @return A data source connecting to the database of this backend
+     */
+    DataSource createDataSource();
+
+    /**
+     * Create the tables of the library, if they do not exist yet
+     * @param con A connection to the database
+     * @throws SQLException If the tables cannot be created
+     */
+    void createSchema(Connection con) throws SQLException;
+
+    /**
+     * Check if the database returns the generated ids of a multi-row insert through the OUTPUT clause of SQL Server.
+     * If it does not, the ids are read from the generated keys of a JDBC batch
+     * @return True if the OUTPUT clause can be used
+     */
+    boolean supportsOutputClause();
+}
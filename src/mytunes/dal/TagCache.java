@@ -0,0 +1,202 @@
+package mytunes.dal;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import mytunes.be.UserMedia;
+
+/**
+ * A persistent cache of the tags read from the media files, stored in a local file.
+ * An entry is only used if the size and the modification time of the file are still the same as when it was read
+ * @author Dominik
+ */
+class TagCache {
+
+    private static final int MAGIC = 0x6D544332;    //"mTC2", a cache written by an older version is not read
+
+    private final File file;
+    private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private volatile boolean loaded;
+    private volatile boolean dirty;
+
+    /**
+     * Create a new cache stored in the given file. The file is read when the cache is first used
+     * @param file The location of the cache
+     */
+    TagCache(File file) {
+        this.file = file;
+    }
+
+    /**
+     * Get the cached tags of a file
+     * @param path The absolute path of the file
+     * @param size The current size of the file
+     * @param modified The current modification time of the file
+     * @return A new UserMedia object with the cached tags, or null if the file is not cached or has changed since
+     */
+    UserMedia get(String path, long size, long modified) {
+        if (!loaded) {
+            load();
+        }
+        Entry entry = entries.get(path);
+        if (entry == null || entry.size != size || entry.modified != modified) {
+            misses.incrementAndGet();
+            return null;
+        }
+        hits.incrementAndGet();
+        UserMedia media = new UserMedia();
+        media.setTitle(entry.title);
+        media.setArtist(entry.artist);
+        media.setCategory(entry.genre);
+        media.setTime(entry.time);
+        media.setAudioSize(entry.audioSize);
+        return media;
+    }
+
+    /**
+     * Store the tags read from a file
+     * @param path The absolute path of the file
+     * @param size The size of the file when it was read
+     * @param modified The modification time of the file when it was read
+     * @param media The tags read from the file
+     */
+    void put(String path, long size, long modified, UserMedia media) {
+        if (!loaded) {
+            load();
+        }
+        entries.put(path, new Entry(size, modified, media.getTitle(), media.getArtist(), media.getCategory(), media.getTime(), media.getAudioSize()));
+        dirty = true;
+    }
+
+    /**
+     * Get the number of lookups that found an up to date entry
+     * @return The number of cache hits
+     */
+    long getHits() {
+        return hits.get();
+    }
+
+    /**
+     * Get the number of lookups that had to read the file
+     * @return The number of cache misses
+     */
+    long getMisses() {
+        return misses.get();
+    }
+
+    /**
+     * Read the cache file, the first time the cache is used. A missing or damaged file means an empty cache
+     */
+    private synchronized void load() {
+        if (loaded || !file.isFile()) {
+            loaded = true;
+            return;
+        }
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            if (in.readInt() != MAGIC) {
+                return;
+            }
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                String path = in.readUTF();
+                entries.put(path, new Entry(in.readLong(), in.readLong(), readString(in), readString(in), readString(in), in.readDouble(), in.readLong()));
+            }
+        }
+        catch (IOException ex) {
+            Logger.getLogger(TagCache.class.getName()).log(Level.WARNING, "The tag cache could not be read, starting with an empty cache", ex);
+        }
+        finally {
+            loaded = true;
+        }
+    }
+
+    /**
+     * Write the cache to its file, if it has changed. The file is replaced at once, so a crash does not leave a half written cache behind
+     */
+    synchronized void save() {
+        if (!dirty) {
+            return;
+        }
+        dirty = false;
+        file.getAbsoluteFile().getParentFile().mkdirs();
+        File temp = new File(file.getPath() + ".tmp");
+        Map<String, Entry> snapshot = new HashMap<>(entries);
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)))) {
+            out.writeInt(MAGIC);
+            out.writeInt(snapshot.size());
+            for (Map.Entry<String, Entry> e : snapshot.entrySet()) {
+                Entry entry = e.getValue();
+                out.writeUTF(e.getKey());
+                out.writeLong(entry.size);
+                out.writeLong(entry.modified);
+                writeString(out, entry.title);
+                writeString(out, entry.artist);
+                writeString(out, entry.genre);
+                out.writeDouble(entry.time);
+                out.writeLong(entry.audioSize);
+            }
+        }
+        catch (IOException ex) {
+            dirty = true;
+            Logger.getLogger(TagCache.class.getName()).log(Level.WARNING, "The tag cache could not be saved", ex);
+            return;
+        }
+        try {
+            Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        }
+        catch (IOException ex) {
+            dirty = true;
+            Logger.getLogger(TagCache.class.getName()).log(Level.WARNING, "The tag cache could not be saved", ex);
+        }
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        return in.readBoolean() ? in.readUTF() : null;
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        out.writeBoolean(value != null);
+        if (value != null) {
+            out.writeUTF(value);
+        }
+    }
+
+    /**
+     * The tags of one file, and the state of the file when they were read
+     */
+    private static class Entry {
+
+        private final long size;
+        private final long modified;
+        private final String title;
+        private final String artist;
+        private final String genre;
+        private final double time;
+        private final long audioSize;
+
+        Entry(long size, long modified, String title, String artist, String genre, double time, long audioSize) {
+            this.size = size;
+            this.modified = modified;
+            this.title = title;
+            this.artist = artist;
+            this.genre = genre;
+            this.time = time;
+            this.audioSize = audioSize;
+        }
+    }
+}
@@ -1,12 +1,21 @@
 package mytunes.gui.Controller;
 
+import java.io.File;
 import java.io.IOException;
 import java.net.URL;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.ResourceBundle;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import javafx.animation.PauseTransition;
+import javafx.beans.binding.Bindings;
 import javafx.beans.value.ChangeListener;
 import javafx.beans.value.ObservableValue;
+import javafx.concurrent.Task;
 import javafx.event.ActionEvent;
 import javafx.event.EventHandler;
 import javafx.fxml.FXML;
@@ -15,22 +24,30 @@ import javafx.fxml.Initializable;
 import javafx.scene.Parent;
 import javafx.scene.Scene;
 import javafx.scene.control.Alert;
+import javafx.scene.control.Button;
 import javafx.scene.control.ButtonType;
+import javafx.scene.control.ComboBox;
 import javafx.scene.control.Label;
+import javafx.scene.control.ListCell;
 import javafx.scene.control.ListView;
+import javafx.scene.control.SelectionMode;
 import javafx.scene.control.Slider;
 import javafx.scene.control.TableColumn;
 import javafx.scene.control.TableView;
 import javafx.scene.control.TextField;
+import javafx.scene.control.TextInputDialog;
 import javafx.scene.control.cell.PropertyValueFactory;
 import javafx.scene.image.Image;
 import javafx.scene.image.ImageView;
 import javafx.scene.input.KeyCode;
 import javafx.scene.input.KeyEvent;
 import javafx.scene.input.MouseEvent;
+import javafx.stage.DirectoryChooser;
 import javafx.stage.Stage;
+import javafx.util.Duration;
 import mytunes.be.PlayList;
 import mytunes.be.UserMedia;
+import mytunes.gui.Model.MediaColumn;
 import mytunes.gui.Model.MediaPlayerModel;
 import mytunes.gui.Model.ModelException;
 
@@ -62,6 +79,8 @@ public class MainController implements Initializable {
     @FXML
     private TextField searchField;
     @FXML
+    private ComboBox<String> categoryFilterComboBox;
+    @FXML
     private TableView<PlayList> playlistTableView;
     @FXML
     private ListView<UserMedia> playlistSongsListView;
@@ -81,6 +100,10 @@ public class MainController implements Initializable {
     private TableColumn<UserMedia, String> songsColumnTime;
     @FXML
     private TableColumn<UserMedia, String> songsColumnCategory;
+    @FXML
+    private Button btnImportFolder;
+    @FXML
+    private Button btnMissingFiles;
 
     private final Image img_next = new Image("file:images/next.png");
     private final Image img_previous = new Image("file:images/previous.png");
@@ -94,6 +117,10 @@ public class MainController implements Initializable {
     
     private MediaPlayerModel model;
     private UserMedia currentMedia;
+    private Task<Integer> importing;    //The running folder import, if there is one
+    private final Map<TableColumn<UserMedia, ?>, MediaColumn> sortColumns = new HashMap<>();   //The sort index of every column of the songs table
+    private static final int MISSING_FILES_SHOWN = 10;  //The most paths listed in the missing files window
+    private final PauseTransition searchDelay = new PauseTransition(Duration.millis(250));   //Restarted by every key stroke, searches when it finishes
 
     private boolean isFilterActive;
     
@@ -109,11 +136,20 @@ public class MainController implements Initializable {
         model = MediaPlayerModel.getInstance();
         setUpPlayListCellFactories();
         setUpSongsCellFactories();
+        setUpCategoryFilter();
         loadMedia();
         playlistTableView.setItems(model.getPlayLists());
+        playlistSongsListView.getSelectionModel().setSelectionMode(SelectionMode.MULTIPLE);  //A block of songs can be moved together
         songsTableView.setItems(model.getMedia());
+        songsTableView.setSortPolicy(table -> true);    //The filtered list cannot be sorted by the table itself, it is sorted by the comparator bound below
+        model.getMedia().comparatorProperty().bind(Bindings.createObjectBinding(() ->
+                songsTableView.getComparator() != null ? getSongsOrder() : model.searchOrderProperty().get(),  //Unsorted, fuzzy results come best first
+                songsTableView.comparatorProperty(), model.searchOrderProperty(), model.sortVersionProperty()));  //New indexes give new ranks
         model.setVolume(volumeController.getValue());
         setListenersAndEventHandlers();
+        bindImportButton();
+        bindMissingFilesButton();
+        model.writeFailureProperty().addListener((observable, oldValue, newValue) -> showAlert(newValue));
         isFilterActive = false;
 
     }
@@ -146,6 +182,12 @@ public class MainController implements Initializable {
         songsColumnCategory.setCellValueFactory(new PropertyValueFactory("category"));
         songsColumnTime.setCellValueFactory(new PropertyValueFactory("timeString"));
 
+        //Sort the columns by the sort indexes of the model
+        sortColumns.put(songsColumnTitle, MediaColumn.TITLE);
+        sortColumns.put(songsColumArtist, MediaColumn.ARTIST);
+        sortColumns.put(songsColumnCategory, MediaColumn.CATEGORY);
+        sortColumns.put(songsColumnTime, MediaColumn.TIME);
+
         //Set the width of the columns
         songsTableView.setColumnResizePolicy(TableView.CONSTRAINED_RESIZE_POLICY);
         songsColumnTitle.prefWidthProperty().bind(songsTableView.widthProperty().divide(4));
@@ -154,6 +196,62 @@ public class MainController implements Initializable {
         songsColumnTime.prefWidthProperty().bind(songsTableView.widthProperty().divide(4));
     }
 
+    /**
+     * Build the order of the songs table from the sort indexes of its sorted columns, in the order the user has chosen them
+     * @return The comparator of the sorted columns, null if the table is not sorted
+     */
+    private Comparator<UserMedia> getSongsOrder() {
+        Comparator<UserMedia> order = null;
+        for (TableColumn<UserMedia, ?> column : songsTableView.getSortOrder()) {
+            Comparator<UserMedia> columnOrder = model.getSortOrder(sortColumns.get(column));
+            if (column.getSortType() == TableColumn.SortType.DESCENDING) {
+                columnOrder = columnOrder.reversed();
+            }
+            order = order == null ? columnOrder : order.thenComparing(columnOrder);
+        }
+        return order;
+    }
+
+    /**
+     * Sets up the category filter: every category is listed with its number of songs, and choosing one shows only its songs.
+     * Escape or Delete shows every category again
+     */
+    private void setUpCategoryFilter() {
+        categoryFilterComboBox.setItems(model.getCategories());
+        categoryFilterComboBox.setCellFactory(list -> new ListCell<String>() {
+            @Override
+            protected void updateItem(String category, boolean empty) {
+                super.updateItem(category, empty);
+                textProperty().unbind();
+                if (empty || category == null) {
+                    setText(null);
+                }
+                else {  //The count follows the changes of the library
+                    textProperty().bind(Bindings.createStringBinding(() ->
+                            category + " (" + model.getCategoryCounts().getOrDefault(category, 0) + ")", model.getCategoryCounts()));
+                }
+            }
+        });
+        categoryFilterComboBox.valueProperty().addListener((observable, oldValue, newValue) ->
+        {
+            model.filterByCategory(newValue);
+            isFilterActive = newValue != null || !searchField.getText().isEmpty();
+            search.setImage(isFilterActive ? img_clearSeach : img_search);
+        });
+        model.categoryFilterProperty().addListener((observable, oldValue, newValue) ->
+        {
+            if (newValue == null) { //The last song of the shown category has been removed
+                categoryFilterComboBox.setValue(null);
+            }
+        });
+        categoryFilterComboBox.setOnKeyPressed(event ->
+        {
+            if (event.getCode() == KeyCode.ESCAPE || event.getCode() == KeyCode.DELETE) {
+                categoryFilterComboBox.setValue(null);
+            }
+        });
+    }
+
     /**
      * Updates the list view that contains the songs found in play list whenever
      * a new play list is selected
@@ -174,16 +272,16 @@ public class MainController implements Initializable {
     }
 
     /**
-     * Load data from the database
+     * Load data from the database in the background
      */
     private void loadMedia() {
-        try {
-            model.loadDataFromDB();
-        }
-        catch (ModelException ex) {
+        Task<Void> loading = model.loadDataFromDB();
+        loading.setOnFailed(event ->
+        {
+            Exception ex = (Exception) loading.getException();
             Logger.getLogger(MainController.class.getName()).log(Level.SEVERE, null, ex);
             showAlert(ex);
-        }
+        });
     }
 
     /**
@@ -200,11 +298,16 @@ public class MainController implements Initializable {
         }
         );
 
-        //Add a new event handler, so that search can be performed by pressing enter
+        //Search while typing, once no key has been pressed for a moment
+        searchDelay.setOnFinished(event -> searchForString(searchField.getText()));
+        searchField.textProperty().addListener((observable, oldValue, newValue) -> searchDelay.playFromStart());
+
+        //Add a new event handler, so that search can be performed by pressing enter without waiting
         searchField.setOnKeyPressed(new EventHandler<KeyEvent>() {
             @Override
             public void handle(KeyEvent event) {
                 if (event.getCode() == KeyCode.ENTER) {
+                    searchDelay.stop();
                     String searchString = searchField.getText();
                     searchForString(searchString);
                 }
@@ -345,8 +448,10 @@ public class MainController implements Initializable {
         if (isFilterActive)
         {
             searchField.setText("");
+            categoryFilterComboBox.setValue(null);
         }
         
+        searchDelay.stop();
         String searchString = searchField.getText();
         searchForString(searchString);
     }
@@ -407,38 +512,49 @@ public class MainController implements Initializable {
     }
 
     /**
-     * Move the selected media up in the selected list (UI only)
+     * Move the selected songs up in the selected list
      */
     @FXML
     private void upArrowClicked(MouseEvent event) {
-        UserMedia selected = playlistSongsListView.getSelectionModel().getSelectedItem();
+        List<UserMedia> selected = new ArrayList<>(playlistSongsListView.getSelectionModel().getSelectedItems());
         PlayList list = playlistTableView.getSelectionModel().getSelectedItem();
         try {
-            model.moveSongUp(selected, list);
-            playlistSongsListView.getSelectionModel().select(selected);
+            model.moveSongsUp(selected, list);
         }
         catch (ModelException ex) {
             Logger.getLogger(MainController.class.getName()).log(Level.SEVERE, null, ex);
             showAlert(ex);
         }
+        reselect(selected);
     }
 
     /**
-     * Move the selected media down in the selected list (UI only)
+     * Move the selected songs down in the selected list
      */
     @FXML
     private void downArrowClicked(MouseEvent event) {
-        UserMedia selected = playlistSongsListView.getSelectionModel().getSelectedItem();
+        List<UserMedia> selected = new ArrayList<>(playlistSongsListView.getSelectionModel().getSelectedItems());
         PlayList list = playlistTableView.getSelectionModel().getSelectedItem();
 
         try {
-            model.moveSongDown(selected, list);
-            playlistSongsListView.getSelectionModel().select(selected);
+            model.moveSongsDown(selected, list);
         }
         catch (ModelException ex) {
             Logger.getLogger(MainController.class.getName()).log(Level.SEVERE, null, ex);
             showAlert(ex);
         }
+        reselect(selected);
+    }
+
+    /**
+     * Select the given songs in the list view containing the songs of the play list (after they have been moved)
+     * @param selected The songs that will be selected
+     */
+    private void reselect(List<UserMedia> selected) {
+        playlistSongsListView.getSelectionModel().clearSelection();
+        for (UserMedia media : selected) {
+            playlistSongsListView.getSelectionModel().select(media);
+        }
     }
 
 //******************************************************************************************************************************************************************//
@@ -485,6 +601,7 @@ public class MainController implements Initializable {
             
             songsTableView.refresh();   //Udate the songs table view
             playlistTableView.refresh();    //Update the play list (in case some play lists contain the edited song)
+            playlistSongsListView.refresh();    //The play lists share the edited instance, redraw it with the new data
         }
         catch (IOException | ModelException ex) {
             Logger.getLogger(MainController.class.getName()).log(Level.SEVERE, null, ex);
@@ -559,6 +676,118 @@ public class MainController implements Initializable {
         }
     }
 
+    /**
+     * Choose a folder, and import every song in it and its sub folders in the background.
+     * While an import is running, the button cancels it instead
+     */
+    @FXML
+    private void importFolderClicked(ActionEvent event) {
+        if (importing != null && importing.isRunning()) {
+            importing.cancel();
+            return;
+        }
+        DirectoryChooser chooser = new DirectoryChooser();
+        File folder = chooser.showDialog(play.getScene().getWindow());
+        if (folder == null) {
+            return;
+        }
+        importing = model.importFolder(folder);
+        importing.setOnSucceeded(e ->
+        {
+            Alert a = new Alert(Alert.AlertType.INFORMATION, importing.getValue() + " songs have been imported.", ButtonType.OK);
+            a.show();
+        });
+        importing.setOnFailed(e ->
+        {
+            Exception ex = (Exception) importing.getException();
+            Logger.getLogger(MainController.class.getName()).log(Level.SEVERE, null, ex);
+            showAlert(ex);
+        });
+        importing.setOnCancelled(e ->
+        {
+            Alert a = new Alert(Alert.AlertType.INFORMATION, "The import has been cancelled, the songs imported so far have been kept.", ButtonType.OK);
+            a.show();
+        });
+    }
+
+    /**
+     * Show the progress and the speed of the running import on the import button
+     */
+    private void bindImportButton() {
+        btnImportFolder.textProperty().bind(Bindings.when(model.importingProperty())
+                .then(Bindings.createStringBinding(() ->
+                {
+                    double progress = model.importProgressProperty().get();
+                    String done = progress < 0 ? "..." : String.format("%.0f%%", progress * 100);
+                    return String.format("Cancel %s (%.0f/s)", done, model.importThroughputProperty().get());
+                }, model.importProgressProperty(), model.importThroughputProperty()))
+                .otherwise("Import folder"));
+    }
+
+    /**
+     * Show the songs whose files cannot be found on this computer, and let the user map the folder they were stored in to a folder on this computer
+     */
+    @FXML
+    private void missingFilesClicked(ActionEvent event) {
+        List<UserMedia> unresolved = new ArrayList<>(model.getUnresolvedMedia());
+        if (unresolved.isEmpty()) {
+            return;
+        }
+        StringBuilder paths = new StringBuilder();
+        for (int i = 0; i < Math.min(MISSING_FILES_SHOWN, unresolved.size()); i++) {
+            paths.append(unresolved.get(i).getPath()).append('\n');
+        }
+        if (unresolved.size() > MISSING_FILES_SHOWN) {
+            paths.append("...");
+        }
+        ButtonType mapFolder = new ButtonType("Map folder");
+        ButtonType checkAgain = new ButtonType("Check again");
+        Alert a = new Alert(Alert.AlertType.INFORMATION, paths.toString(), mapFolder, checkAgain, ButtonType.CLOSE);
+        a.setHeaderText(unresolved.size() + " songs cannot be found on this computer");
+        ButtonType answer = a.showAndWait().orElse(ButtonType.CLOSE);
+        if (answer == checkAgain) {
+            model.checkPaths();
+        }
+        else if (answer == mapFolder) {
+            mapFolder(unresolved.get(0).getPath());
+        }
+    }
+
+    /**
+     * Ask for the beginning of the stored paths and the folder on this computer it stands for, and remember the mapping
+     * @param example A stored path that cannot be found, its folder is offered as the stored folder
+     */
+    private void mapFolder(String example) {
+        String name = model.getFileName(example);
+        String folder = example.substring(0, Math.max(example.length() - name.length() - 1, 0));
+        TextInputDialog storedDialog = new TextInputDialog(folder);
+        storedDialog.setHeaderText("The folder as it is stored in the library");
+        String stored = storedDialog.showAndWait().orElse("").trim();
+        if (stored.isEmpty()) {
+            return;
+        }
+        DirectoryChooser chooser = new DirectoryChooser();
+        chooser.setTitle("The same folder on this computer");
+        File local = chooser.showDialog(play.getScene().getWindow());
+        if (local == null) {
+            return;
+        }
+        try {
+            model.setRootMapping(stored, local.getPath());
+        }
+        catch (ModelException ex) {
+            showAlert(ex);
+        }
+    }
+
+    /**
+     * Show the number of songs whose files cannot be found on the missing files button, and hide it while there are none
+     */
+    private void bindMissingFilesButton() {
+        btnMissingFiles.textProperty().bind(Bindings.createStringBinding(() -> "Missing files (" + model.getUnresolvedMedia().size() + ")", model.getUnresolvedMedia()));
+        btnMissingFiles.visibleProperty().bind(Bindings.isNotEmpty(model.getUnresolvedMedia()));
+    }
+
 //******************************************************************************************************************************************************************//
 //Helper methods
     /**
@@ -575,9 +804,9 @@ public class MainController implements Initializable {
         }
         else
         {
-            search.setImage(img_search);
             model.searchString(searchString);
-            isFilterActive = false;
+            isFilterActive = categoryFilterComboBox.getValue() != null;   //The category can still be filtered
+            search.setImage(isFilterActive ? img_clearSeach : img_search);
         }
     }
 
@@ -20,7 +20,6 @@ import javafx.scene.control.ContextMenu;
 import javafx.scene.control.TextField;
 import javafx.scene.input.KeyCode;
 import javafx.scene.input.KeyEvent;
-import javafx.scene.media.Media;
 import javafx.stage.FileChooser;
 import javafx.stage.Stage;
 import mytunes.be.UserMedia;
@@ -86,9 +85,7 @@ public class NewSongController implements Initializable {
         FileChooser fc = new FileChooser();
         URI uri = fc.showOpenDialog(new ContextMenu()).toURI();
         
-        workingUserMedia = getMetaData(uri);    //Get the meta data of the selected file
-        Media media = new Media(uri.toString()); //Create a Media object from the selected file
-        workingUserMedia.setMedia(media);   
+        workingUserMedia = getMetaData(uri);    //Get the meta data of the selected file, the Media object is created from its path when it is played
         fillData(); //Fill out the text fields using the data previously retrieved
     }
 
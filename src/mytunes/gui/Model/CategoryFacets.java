@@ -0,0 +1,159 @@
+package mytunes.gui.Model;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import javafx.collections.FXCollections;
+import javafx.collections.ObservableList;
+import javafx.collections.ObservableMap;
+import mytunes.be.UserMedia;
+
+/**
+ * The songs of the library grouped by their category, with the number of songs in every category.
+ * It is updated song by song whenever a song is added, edited or removed, so the songs of a category and their number are always at hand,
+ * without looking at the rest of the library. It also keeps the list of the categories up to date: a category is added with its first song,
+ * and removed with its last one, unless the user has added it by hand. Used on the JavaFX thread only
+ * @author sebok
+ */
+class CategoryFacets {
+
+    private final Map<UserMedia, String> indexed = new HashMap<>();     //The category every song is counted in
+    private final Map<String, Set<UserMedia>> songs = new HashMap<>();  //The songs of every category
+    private final ObservableMap<String, Integer> counts = FXCollections.observableHashMap();    //The number of songs in every category
+    private final ObservableMap<String, Integer> readOnlyCounts = FXCollections.unmodifiableObservableMap(counts);     //Handed out to the user interface
+    private final Set<String> addedByHand = new HashSet<>();    //Stay in the list without songs
+    private final ObservableList<String> categories;
+
+    /**
+     * Create an empty index
+     * @param categories The list of the categories shown to the user, kept up to date by the index
+     */
+    CategoryFacets(ObservableList<String> categories) {
+        this.categories = categories;
+    }
+
+    /**
+     * Count a new song in its category
+     * @param media The added song
+     */
+    void add(UserMedia media) {
+        if (indexed.containsKey(media)) {
+            update(media);
+            return;
+        }
+        String category = categoryOf(media);
+        indexed.put(media, category);
+        addToCategory(category, media);
+    }
+
+    /**
+     * Stop counting a removed song
+     * @param media The removed song
+     */
+    void remove(UserMedia media) {
+        if (indexed.containsKey(media)) {
+            removeFromCategory(indexed.remove(media), media);
+        }
+    }
+
+    /**
+     * Move an edited song to its current category
+     * @param media The edited song
+     */
+    void update(UserMedia media) {
+        if (!indexed.containsKey(media)) {
+            return;
+        }
+        String category = categoryOf(media);
+        String old = indexed.put(media, category);
+        if (category == null ? old != null : !category.equals(old)) {
+            removeFromCategory(old, media);
+            addToCategory(category, media);
+        }
+    }
+
+    /**
+     * Add a category that has no songs yet. It stays in the list even when it has no songs
+     * @param category The new category
+     */
+    void addCategory(String category) {
+        addedByHand.add(category);
+        if (!categories.contains(category)) {
+            categories.add(category);
+            counts.put(category, 0);
+        }
+    }
+
+    /**
+     * Check if a song is in a category
+     * @param category The category
+     * @param media The song to check
+     * @return True if the song is counted in the category
+     */
+    boolean contains(String category, UserMedia media) {
+        Set<UserMedia> inCategory = songs.get(category);
+        return inCategory != null && inCategory.contains(media);
+    }
+
+    /**
+     * Get the songs of a category
+     * @param category The category
+     * @return The songs in the category, a view that follows the later changes while the category has songs
+     */
+    Set<UserMedia> getSongs(String category) {
+        return Collections.unmodifiableSet(songs.getOrDefault(category, Collections.emptySet()));
+    }
+
+    /**
+     * Get the number of songs in every category
+     * @return A read only map of the categories and their number of songs, changed whenever a song is added, edited or removed
+     */
+    ObservableMap<String, Integer> getCounts() {
+        return readOnlyCounts;
+    }
+
+//******************************************************************************************************************************************************************//
+//Helper methods
+    private void addToCategory(String category, UserMedia media) {
+        if (category == null) {
+            return;
+        }
+        Set<UserMedia> inCategory = songs.computeIfAbsent(category, c -> new HashSet<>());
+        if (inCategory.add(media)) {
+            counts.put(category, inCategory.size());
+            if (inCategory.size() == 1 && !addedByHand.contains(category)) {    //A new category of the library
+                categories.add(category);
+            }
+        }
+    }
+
+    private void removeFromCategory(String category, UserMedia media) {
+        Set<UserMedia> inCategory = category == null ? null : songs.get(category);
+        if (inCategory == null || !inCategory.remove(media)) {
+            return;
+        }
+        if (!inCategory.isEmpty()) {
+            counts.put(category, inCategory.size());
+            return;
+        }
+        songs.remove(category);
+        if (addedByHand.contains(category)) {
+            counts.put(category, 0);
+        }
+        else {  //The last song of the category is gone
+            counts.remove(category);
+            categories.remove(category);
+        }
+    }
+
+    /**
+     * Get the category a song is counted in
+     * @return The category, or null if the song has none
+     */
+    private static String categoryOf(UserMedia media) {
+        String category = media.getCategory();
+        return category == null || category.trim().isEmpty() ? null : category;
+    }
+}
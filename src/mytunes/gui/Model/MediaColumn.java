@@ -0,0 +1,13 @@
+package mytunes.gui.Model;
+
+/**
+ * Represents a column of the songs the table can be sorted by
+ * @author sebok
+ */
+public enum MediaColumn
+{
+    TITLE,
+    ARTIST,
+    CATEGORY,
+    TIME
+}
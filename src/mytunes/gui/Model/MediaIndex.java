@@ -0,0 +1,740 @@
+package mytunes.gui.Model;
+
+import java.text.Normalizer;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.NavigableMap;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.regex.Pattern;
+import mytunes.be.UserMedia;
+import mytunes.gui.Model.MediaQuery.Clause;
+
+/**
+ * An inverted index of the trigrams (every three consecutive characters) of the title, artist and category of the songs, for substring search.
+ * A song can only contain the query if it contains every trigram of the query, so only the songs in the shortest matching posting set are checked,
+ * instead of every song of the library. The index is updated song by song when songs are added, edited or removed.
+ * Queries shorter than a trigram match a large part of the library anyway, so they are answered by checking every song.
+ * The texts are normalised: lower case, without accents, and every other character than letters and digits is a space.
+ * <p>
+ * A structured query is searched clause by clause: the number of songs every clause can match is estimated from the index (the shortest posting set of a text,
+ * the songs in the range of a time), the candidates of the most selective clause are collected, and only those are checked against the other clauses,
+ * the most selective ones first, so most candidates fail early.
+ * <p>
+ * For misspelled queries there is a fuzzy search over the words of the library. The distinct words have their own trigram index,
+ * so the words within a small edit distance of a query word are found without looking at every word, and then only the songs containing those words are scored.
+ * <p>
+ * A whole index is built on a background thread from the values of the songs copied on the JavaFX thread (see MediaValues), and then handed to the JavaFX thread,
+ * which only applies the changes of single songs. The index is searched on another background thread under a read lock. The JavaFX thread never waits for a search:
+ * it only tries to take the write lock, and if a search holds the index, the changes are kept and applied by the next search, or once the search has finished (see applyPending).
+ * A search checks often if its thread has been interrupted, so a search that is no longer needed releases the index quickly
+ * @author sebok
+ */
+class MediaIndex {
+
+    private static final int GRAM = 3;
+    private static final char FIELD_SEPARATOR = '\n';   //Not left by the normalisation, so no match spans two fields
+    private static final char WORD_BOUNDARY = '$';  //Pads the words, so their first and last letters are in as many trigrams as the others
+    private static final int CANCEL_CHECK_INTERVAL = 256;   //The songs checked between two checks of the interrupted flag
+    private static final Pattern ACCENTS = Pattern.compile("\\p{M}+");
+    private static final Pattern NOT_WORD = Pattern.compile("[^\\p{L}\\p{N}]+");
+
+    private static final double EXACT_SCORE = 1;
+    private static final double PREFIX_SCORE = 0.75;    //Plus a part of the remaining 0.25, depending on how much of the word is typed
+    private static final double TYPO_SCORE = 0.7;   //For one edit, every further edit costs TYPO_PENALTY
+    private static final double TYPO_PENALTY = 0.2;
+
+    /**
+     * The indexed text of a song, its fields, its words, its length, and its position in the order the songs were added
+     */
+    private static class Entry {
+
+        private final long order;
+        private String text;
+        private String[] fields;    //The normalised title, artist and category
+        private Set<String> words;
+        private double time;
+
+        Entry(long order, String text, double time) {
+            this.order = order;
+            this.time = time;
+            setText(text);
+        }
+
+        final void setText(String text) {
+            this.text = text;
+            fields = text.split(String.valueOf(FIELD_SEPARATOR), -1);
+            words = words(text);
+        }
+    }
+
+    /**
+     * A song found by the fuzzy search, with the quality of the match
+     */
+    private static class Scored {
+
+        private final UserMedia media;
+        private final double score;
+        private final long order;
+
+        Scored(UserMedia media, double score, long order) {
+            this.media = media;
+            this.score = score;
+            this.order = order;
+        }
+    }
+
+    private static final Comparator<Scored> WORST_FIRST = Comparator.<Scored>comparingDouble(s -> s.score).thenComparing(s -> -s.order);
+
+    private final Map<UserMedia, Entry> entries = new LinkedHashMap<>();    //In the order the songs were added
+    private final Map<String, Set<UserMedia>> postings = new HashMap<>();   //The songs containing each trigram
+    private final Map<String, Set<UserMedia>> wordPostings = new HashMap<>();  //The songs containing each word
+    private final Map<String, Set<String>> wordGrams = new HashMap<>();     //The words of the library containing each padded trigram
+    private final NavigableMap<Double, Set<UserMedia>> lengths = new TreeMap<>();   //The songs by their length
+    private long nextOrder;
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();   //Read by the searches, written by the JavaFX thread only if it is free
+    private final Map<UserMedia, MediaValues> pending = new LinkedHashMap<>();     //The changes waiting for the searches to release the index, null removes the song. Guarded by itself
+
+    /**
+     * Add a song to the index, or index its current values if it is already indexed. Called on the JavaFX thread, which never waits for a running search
+     * @param media The new or edited song
+     */
+    void add(UserMedia media) {
+        synchronized (pending) {
+            pending.put(media, MediaValues.of(media));
+        }
+        applyPending();
+    }
+
+    /**
+     * Remove a song from the index. Called on the JavaFX thread, which never waits for a running search
+     * @param media The song to remove
+     */
+    void remove(UserMedia media) {
+        synchronized (pending) {
+            pending.put(media, null);
+        }
+        applyPending();
+    }
+
+    /**
+     * Apply the changes kept while a search was holding the index. Nothing is done if a search is still running.
+     * Called on the JavaFX thread after every search
+     */
+    void applyPending() {
+        if (!lock.writeLock().tryLock()) {
+            return;
+        }
+        try {
+            applyPendingLocked();
+        }
+        finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Apply the kept changes, holding the write lock
+     */
+    private void applyPendingLocked() {
+        Map<UserMedia, MediaValues> changes;
+        synchronized (pending) {
+            if (pending.isEmpty()) {
+                return;
+            }
+            changes = new LinkedHashMap<>(pending);
+            pending.clear();
+        }
+        for (Map.Entry<UserMedia, MediaValues> change : changes.entrySet()) {
+            if (change.getValue() == null) {
+                removeEntry(change.getKey());
+            }
+            else {
+                add(change.getValue());
+            }
+        }
+    }
+
+    /**
+     * Take the read lock for a search. The changes kept so far are applied first, so the search sees every change made before it started.
+     * Only the search thread waits here, the JavaFX thread never holds the write lock for long
+     */
+    private void lockForSearch() {
+        lock.writeLock().lock();
+        try {
+            applyPendingLocked();
+            lock.readLock().lock();     //Taken before the write lock is released, so no change comes in between
+        }
+        finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Add many songs to the index, when an index is built on a background thread
+     * @param songs The copied values of the songs, in the order of the library
+     */
+    void addAll(Collection<MediaValues> songs) {
+        lock.writeLock().lock();
+        try {
+            for (MediaValues values : songs) {
+                add(values);
+            }
+        }
+        finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Add the copied values of a song to the index. A song that is already indexed is updated instead
+     */
+    private void add(MediaValues values) {
+        UserMedia media = values.getMedia();
+        Entry entry = entries.get(media);
+        if (entry != null) {
+            update(values);
+            return;
+        }
+        String text = text(values);
+        entry = new Entry(nextOrder++, text, values.getTime());
+        entries.put(media, entry);
+        for (String gram : grams(text)) {
+            postings.computeIfAbsent(gram, g -> new HashSet<>()).add(media);
+        }
+        for (String word : entry.words) {
+            addWord(word, media);
+        }
+        lengths.computeIfAbsent(entry.time, t -> new HashSet<>()).add(media);
+    }
+
+    /**
+     * Remove a song and its postings from the index
+     */
+    private void removeEntry(UserMedia media) {
+        Entry entry = entries.remove(media);
+        if (entry != null) {
+            for (String gram : grams(entry.text)) {
+                removePosting(postings, gram, media);
+            }
+            for (String word : entry.words) {
+                removeWord(word, media);
+            }
+            removePosting(lengths, entry.time, media);
+        }
+    }
+
+    /**
+     * Index the current title, artist, category and length of a song that has been edited. Only the trigrams and words that have changed are touched
+     */
+    private void update(MediaValues values) {
+        UserMedia media = values.getMedia();
+        Entry entry = entries.get(media);
+        if (entry == null) {
+            return;
+        }
+        if (entry.time != values.getTime()) {
+            removePosting(lengths, entry.time, media);
+            entry.time = values.getTime();
+            lengths.computeIfAbsent(entry.time, t -> new HashSet<>()).add(media);
+        }
+        String text = text(values);
+        if (text.equals(entry.text)) {
+            return;
+        }
+        Set<String> oldGrams = grams(entry.text);
+        Set<String> newGrams = grams(text);
+        for (String gram : oldGrams) {
+            if (!newGrams.contains(gram)) {
+                removePosting(postings, gram, media);
+            }
+        }
+        for (String gram : newGrams) {
+            if (!oldGrams.contains(gram)) {
+                postings.computeIfAbsent(gram, g -> new HashSet<>()).add(media);
+            }
+        }
+        Set<String> oldWords = entry.words;
+        entry.setText(text);
+        for (String word : oldWords) {
+            if (!entry.words.contains(word)) {
+                removeWord(word, media);
+            }
+        }
+        for (String word : entry.words) {
+            if (!oldWords.contains(word)) {
+                addWord(word, media);
+            }
+        }
+    }
+
+    /**
+     * Find the songs matching a query, ignoring the case and the accents of the texts.
+     * Every group of the query is searched starting from the candidates of its most selective clause
+     * @param query The parsed query
+     * @return The matching songs, in no particular order
+     * @throws CancellationException If the thread of the search has been interrupted
+     */
+    Set<UserMedia> search(MediaQuery query) {
+        lockForSearch();
+        try {
+            Set<UserMedia> found = new HashSet<>();
+            for (List<Clause> group : query.getGroups()) {
+                found.addAll(searchGroup(group));
+            }
+            return found;
+        }
+        finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Find the songs that match every word of the query, allowing typos: a word of the song can be the same as the query word,
+     * start with it, or differ from it in one edit (two for longer words). Only the songs containing a word matching the rarest query word are scored,
+     * the best matching words first, and the scoring stops once no other song can get into the top
+     * @param query The text to search for
+     * @param limit The maximum number of songs returned
+     * @return The best matching songs, the best match first
+     * @throws CancellationException If the thread of the search has been interrupted
+     */
+    List<UserMedia> fuzzySearch(String query, int limit) {
+        lockForSearch();
+        try {
+            return fuzzySearchLocked(query, limit);
+        }
+        finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    private List<UserMedia> fuzzySearchLocked(String query, int limit) {
+        List<Map<String, Double>> matches = new ArrayList<>();    //For every query word: the matching words of the library, and how well they match
+        Map<String, Double> rarest = null;
+        int rarestSongs = Integer.MAX_VALUE;
+        for (String queryWord : words(normalize(query))) {
+            Map<String, Double> similar = similarWords(queryWord);
+            if (similar.isEmpty()) {
+                return new ArrayList<>();   //No song can match every word
+            }
+            int songs = 0;
+            for (String word : similar.keySet()) {
+                songs += wordPostings.get(word).size();
+            }
+            if (songs < rarestSongs) {
+                rarestSongs = songs;
+                rarest = similar;
+            }
+            matches.add(similar);
+        }
+        if (rarest == null) {
+            return new ArrayList<>();
+        }
+
+        double othersBest = 0;  //The best score a song can get for the other query words
+        for (Map<String, Double> similar : matches) {
+            othersBest += Collections.max(similar.values());
+        }
+        othersBest -= Collections.max(rarest.values());
+        List<Map.Entry<String, Double>> candidates = new ArrayList<>(rarest.entrySet());
+        candidates.sort(Map.Entry.<String, Double>comparingByValue().reversed());    //The best matching words first
+
+        PriorityQueue<Scored> best = new PriorityQueue<>(limit + 1, WORST_FIRST);     //The top songs so far, the worst one on top
+        Set<UserMedia> scored = new HashSet<>();
+        int checked = 0;
+        nextWord:
+        for (Map.Entry<String, Double> candidate : candidates) {
+            double bound = candidate.getValue() + othersBest;   //No song of this word can score more
+            for (UserMedia media : wordPostings.get(candidate.getKey())) {
+                if (best.size() >= limit && best.peek().score >= bound) {   //The rest of the songs cannot make it into the top
+                    continue nextWord;
+                }
+                checkCancelled(++checked);
+                if (!scored.add(media)) {
+                    continue;
+                }
+                Entry entry = entries.get(media);
+                double score = score(entry.words, matches);
+                if (score > 0) {
+                    best.add(new Scored(media, score, entry.order));
+                    if (best.size() > limit) {
+                        best.poll();
+                    }
+                }
+            }
+        }
+        List<UserMedia> result = new ArrayList<>(best.size());
+        while (!best.isEmpty()) {
+            result.add(best.poll().media);
+        }
+        Collections.reverse(result);
+        return result;
+    }
+
+    /**
+     * Check if a song matches a query by its current values, without looking at the index, so it also works for the songs an index being built does not have yet
+     * @param media The song to check
+     * @param query The parsed query
+     * @return True if the song matches every clause of one of the groups of the query
+     */
+    static boolean matches(UserMedia media, MediaQuery query) {
+        MediaValues values = MediaValues.of(media);
+        Entry entry = new Entry(0, text(values), values.getTime());
+        nextGroup:
+        for (List<Clause> group : query.getGroups()) {
+            for (Clause clause : group) {
+                if (!test(clause, entry)) {
+                    continue nextGroup;
+                }
+            }
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Bring a text to the form the index stores: lower case, without accents, and with a single space between the words
+     * @param text The text to normalise
+     * @return The normalised text
+     */
+    static String normalize(String text) {
+        StringBuilder normalized = new StringBuilder(text.length());
+        boolean space = true;   //No space at the start
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (c >= 128) {     //Not plain ASCII, let the slower way take care of the accents
+                String plain = ACCENTS.matcher(Normalizer.normalize(text, Normalizer.Form.NFD)).replaceAll("");
+                return NOT_WORD.matcher(plain.toLowerCase(Locale.ROOT)).replaceAll(" ").trim();
+            }
+            if ((c >= 'a' && c <= 'z') || (c >= '0' && c <= '9')) {
+                normalized.append(c);
+                space = false;
+            }
+            else if (c >= 'A' && c <= 'Z') {
+                normalized.append((char) (c + ('a' - 'A')));
+                space = false;
+            }
+            else if (!space) {
+                normalized.append(' ');
+                space = true;
+            }
+        }
+        int end = normalized.length();
+        return space && end > 0 ? normalized.substring(0, end - 1) : normalized.toString();
+    }
+
+//******************************************************************************************************************************************************************//
+//Query clauses
+    /**
+     * Find the songs matching every clause of a group. The clauses are ordered by the number of songs they can match,
+     * the songs the first one can match are the candidates, and every candidate is checked against the clauses in that order.
+     * Negated clauses cannot give candidates, they are checked last
+     */
+    private List<UserMedia> searchGroup(List<Clause> group) {
+        Map<Clause, Integer> estimates = new HashMap<>();
+        for (Clause clause : group) {
+            estimates.put(clause, clause.isNegated() ? Integer.MAX_VALUE : estimate(clause));
+        }
+        List<Clause> plan = new ArrayList<>(group);
+        plan.sort(Comparator.comparingInt(estimates::get));
+        List<UserMedia> result = new ArrayList<>();
+        int smallest = estimates.get(plan.get(0));
+        if (smallest == 0) {
+            return result;
+        }
+        Collection<UserMedia> candidates = smallest < entries.size() ? candidates(plan.get(0)) : entries.keySet();   //Nothing better than every song
+        int checked = 0;
+        nextCandidate:
+        for (UserMedia media : candidates) {
+            checkCancelled(++checked);
+            Entry entry = entries.get(media);
+            for (Clause clause : plan) {
+                if (!test(clause, entry)) {
+                    continue nextCandidate;
+                }
+            }
+            result.add(media);
+        }
+        return result;
+    }
+
+    /**
+     * Estimate the number of songs a clause can match, from the index only
+     * @return At least the number of matching songs, or the number of all songs if the index cannot tell
+     */
+    private int estimate(Clause clause) {
+        if (clause.getField() == MediaQuery.Field.TIME) {
+            int count = 0;
+            for (Set<UserMedia> songs : lengthRange(clause).values()) {
+                count += songs.size();
+            }
+            return count;
+        }
+        String text = clause.getText();
+        if (text.length() < GRAM) {
+            return entries.size();
+        }
+        int smallest = entries.size();
+        for (String gram : grams(text)) {
+            Set<UserMedia> posting = postings.get(gram);
+            if (posting == null) {
+                return 0;   //No song contains this part of the text
+            }
+            smallest = Math.min(smallest, posting.size());
+        }
+        return smallest;
+    }
+
+    /**
+     * Collect the songs a clause can match. They still have to be checked, the trigrams of a text can be in a different order or in another field
+     */
+    private Collection<UserMedia> candidates(Clause clause) {
+        if (clause.getField() == MediaQuery.Field.TIME) {
+            List<UserMedia> candidates = new ArrayList<>();
+            for (Set<UserMedia> songs : lengthRange(clause).values()) {
+                candidates.addAll(songs);
+            }
+            return candidates;
+        }
+        Set<UserMedia> smallest = null;
+        for (String gram : grams(clause.getText())) {
+            Set<UserMedia> posting = postings.get(gram);
+            if (smallest == null || posting.size() < smallest.size()) {
+                smallest = posting;
+            }
+        }
+        return smallest;
+    }
+
+    /**
+     * Check a song against a clause
+     * @return True if the song matches the clause (or does not match it, if it is negated)
+     */
+    private static boolean test(Clause clause, Entry entry) {
+        boolean matches;
+        switch (clause.getField()) {
+            case TIME:
+                matches = clause.compare(entry.time);
+                break;
+            case ANY:
+                matches = entry.text.contains(clause.getText());
+                break;
+            default:
+                matches = entry.fields[clause.getField().ordinal()].contains(clause.getText());    //TITLE, ARTIST and CATEGORY are in the order of the fields
+        }
+        return matches != clause.isNegated();
+    }
+
+    /**
+     * Get the lengths a time clause accepts, with their songs
+     */
+    private NavigableMap<Double, Set<UserMedia>> lengthRange(Clause clause) {
+        double seconds = clause.getSeconds();
+        switch (clause.getComparison()) {
+            case LESS:
+                return lengths.headMap(seconds, false);
+            case LESS_OR_EQUAL:
+                return lengths.headMap(seconds, true);
+            case GREATER_OR_EQUAL:
+                return lengths.tailMap(seconds, true);
+            case GREATER:
+                return lengths.tailMap(seconds, false);
+            default:
+                return lengths.subMap(Math.floor(seconds), true, Math.floor(seconds) + 1, false);
+        }
+    }
+
+//******************************************************************************************************************************************************************//
+//Fuzzy matching
+    /**
+     * Find the words of the library that are similar to a query word. A word within k edits of the query word shares at least
+     * all but 3k of its padded trigrams, so only the words sharing enough trigrams are compared letter by letter.
+     * The words starting with the query word share its first padded trigram, so they are found the same way
+     * @return The similar words, and how well they match
+     */
+    private Map<String, Double> similarWords(String queryWord) {
+        Map<String, Double> similar = new HashMap<>();
+        int maxEdits = queryWord.length() <= 3 ? 0 : queryWord.length() <= 6 ? 1 : 2;
+        Set<String> queryGrams = paddedGrams(queryWord);
+        int needed = Math.max(1, queryGrams.size() - GRAM * maxEdits);
+
+        Map<String, Integer> shared = new HashMap<>();
+        int checked = 0;
+        for (String gram : queryGrams) {
+            for (String word : wordGrams.getOrDefault(gram, Collections.emptySet())) {
+                checkCancelled(++checked);
+                shared.merge(word, 1, Integer::sum);
+            }
+        }
+        for (Map.Entry<String, Integer> candidate : shared.entrySet()) {
+            checkCancelled(++checked);
+            String word = candidate.getKey();
+            if (word.equals(queryWord)) {
+                similar.put(word, EXACT_SCORE);
+            }
+            else if (word.startsWith(queryWord)) {  //The rest of the word has not been typed yet
+                similar.put(word, PREFIX_SCORE + (1 - PREFIX_SCORE) * queryWord.length() / word.length());
+            }
+            else if (candidate.getValue() >= needed && Math.abs(word.length() - queryWord.length()) <= maxEdits) {
+                int edits = editDistance(queryWord, word, maxEdits);
+                if (edits <= maxEdits) {
+                    similar.put(word, TYPO_SCORE - TYPO_PENALTY * (edits - 1));
+                }
+            }
+        }
+        return similar;
+    }
+
+    /**
+     * Score a song against the query words
+     * @return The sum of the best match of every query word among the words of the song, or 0 if a query word has no match
+     */
+    private static double score(Set<String> words, List<Map<String, Double>> matches) {
+        double total = 0;
+        for (Map<String, Double> similar : matches) {
+            double best = 0;
+            for (String word : words) {
+                best = Math.max(best, similar.getOrDefault(word, 0.0));
+            }
+            if (best == 0) {
+                return 0;
+            }
+            total += best;
+        }
+        return total;
+    }
+
+    /**
+     * Count the edits (insertions, deletions, substitutions, and swaps of neighbouring letters) between two words
+     * @return The number of edits, or max + 1 if it is more than max
+     */
+    private static int editDistance(String a, String b, int max) {
+        int[] previous2 = new int[b.length() + 1];
+        int[] previous = new int[b.length() + 1];
+        int[] current = new int[b.length() + 1];
+        for (int j = 0; j <= b.length(); j++) {
+            previous[j] = j;
+        }
+        for (int i = 1; i <= a.length(); i++) {
+            current[0] = i;
+            int rowMin = current[0];
+            for (int j = 1; j <= b.length(); j++) {
+                int cost = a.charAt(i - 1) == b.charAt(j - 1) ? 0 : 1;
+                current[j] = Math.min(Math.min(previous[j] + 1, current[j - 1] + 1), previous[j - 1] + cost);
+                if (i > 1 && j > 1 && a.charAt(i - 1) == b.charAt(j - 2) && a.charAt(i - 2) == b.charAt(j - 1)) {
+                    current[j] = Math.min(current[j], previous2[j - 2] + 1);
+                }
+                rowMin = Math.min(rowMin, current[j]);
+            }
+            if (rowMin > max) {     //Every path is already too long
+                return max + 1;
+            }
+            int[] recycled = previous2;
+            previous2 = previous;
+            previous = current;
+            current = recycled;
+        }
+        return Math.min(previous[b.length()], max + 1);
+    }
+
+//******************************************************************************************************************************************************************//
+//Helper methods
+    private void addWord(String word, UserMedia media) {
+        Set<UserMedia> songs = wordPostings.computeIfAbsent(word, w -> new HashSet<>());
+        if (songs.isEmpty()) {  //A new word of the library
+            for (String gram : paddedGrams(word)) {
+                wordGrams.computeIfAbsent(gram, g -> new HashSet<>()).add(word);
+            }
+        }
+        songs.add(media);
+    }
+
+    private void removeWord(String word, UserMedia media) {
+        Set<UserMedia> songs = wordPostings.get(word);
+        if (songs != null && songs.remove(media) && songs.isEmpty()) {     //No song has this word any more
+            wordPostings.remove(word);
+            for (String gram : paddedGrams(word)) {
+                Set<String> words = wordGrams.get(gram);
+                if (words != null) {
+                    words.remove(word);
+                    if (words.isEmpty()) {
+                        wordGrams.remove(gram);
+                    }
+                }
+            }
+        }
+    }
+
+    private static <K, T> void removePosting(Map<K, Set<T>> index, K key, T value) {
+        Set<T> posting = index.get(key);
+        if (posting != null) {
+            posting.remove(value);
+            if (posting.isEmpty()) {
+                index.remove(key);
+            }
+        }
+    }
+
+    private static void checkCancelled(int checked) {
+        if (checked % CANCEL_CHECK_INTERVAL == 0 && Thread.currentThread().isInterrupted()) {
+            throw new CancellationException("A newer search has started");
+        }
+    }
+
+    /**
+     * Get the distinct trigrams of a text, leaving out the ones that span two fields
+     */
+    private static Set<String> grams(String text) {
+        Set<String> grams = new HashSet<>();
+        for (int i = 0; i + GRAM <= text.length(); i++) {
+            String gram = text.substring(i, i + GRAM);
+            if (gram.indexOf(FIELD_SEPARATOR) < 0) {
+                grams.add(gram);
+            }
+        }
+        return grams;
+    }
+
+    /**
+     * Get the trigrams of a word padded with boundary characters, so even a word of one letter has one
+     */
+    private static Set<String> paddedGrams(String word) {
+        return grams(WORD_BOUNDARY + word + WORD_BOUNDARY);
+    }
+
+    /**
+     * Get the distinct words of a normalised text
+     */
+    private static Set<String> words(String text) {
+        Set<String> words = new HashSet<>();
+        for (String word : text.split("[ \\n]+")) {
+            if (!word.isEmpty()) {
+                words.add(word);
+            }
+        }
+        return words;
+    }
+
+    /**
+     * Get the searchable text of a song: its normalised title, artist and category
+     */
+    private static String text(MediaValues values) {
+        return normalize(nullToEmpty(values.getTitle())) + FIELD_SEPARATOR + normalize(nullToEmpty(values.getArtist())) + FIELD_SEPARATOR
+                + normalize(nullToEmpty(values.getCategory()));
+    }
+
+    private static String nullToEmpty(String value) {
+        return value == null ? "" : value;
+    }
+}
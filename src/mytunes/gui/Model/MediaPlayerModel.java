@@ -1,15 +1,49 @@
 package mytunes.gui.Model;
 
+import java.io.File;
 import java.net.URI;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javafx.application.Platform;
+import javafx.beans.Observable;
 import javafx.beans.property.BooleanProperty;
+import javafx.beans.property.ReadOnlyBooleanProperty;
+import javafx.beans.property.ReadOnlyBooleanWrapper;
+import javafx.beans.property.ReadOnlyDoubleProperty;
+import javafx.beans.property.ReadOnlyDoubleWrapper;
+import javafx.beans.property.ReadOnlyIntegerProperty;
+import javafx.beans.property.ReadOnlyIntegerWrapper;
+import javafx.beans.property.ReadOnlyObjectProperty;
+import javafx.beans.property.ReadOnlyObjectWrapper;
 import javafx.beans.property.StringProperty;
 import javafx.collections.FXCollections;
 import javafx.collections.ListChangeListener;
 import javafx.collections.ObservableList;
+import javafx.collections.ObservableMap;
+import javafx.collections.transformation.FilteredList;
+import javafx.collections.transformation.SortedList;
+import javafx.concurrent.ScheduledService;
+import javafx.concurrent.Task;
+import javafx.util.Duration;
 import mytunes.BLL.BLLException;
 import mytunes.BLL.BLLManager;
+import mytunes.be.FolderChanges;
+import mytunes.be.LibraryChanges;
 import mytunes.be.PlayList;
 import mytunes.be.UserMedia;
 import mytunes.gui.Controller.Mode;
@@ -20,32 +54,246 @@ import mytunes.gui.Controller.Mode;
  */
 public class MediaPlayerModel {
 
-    private ObservableList<UserMedia> allMedia = FXCollections.observableArrayList();   //Contains all the songs
-    private ObservableList<UserMedia> filteredList = FXCollections.observableArrayList();   //Contains the songs that match the current filter (if there is one)
+    private ObservableList<UserMedia> allMedia = FXCollections.observableArrayList(media ->
+            new Observable[]{media.titleProperty(), media.artistProperty(), media.categoryProperty(), media.timeProperty()});   //Contains all the songs, edits of the searchable and sorted fields are reported as updates
+    private final FilteredList<UserMedia> filteredList;     //Contains the songs that match the current filter (if there is one), follows allMedia change by change
+    private final SortedList<UserMedia> sortedList;     //The filtered songs in the order of the table
     private ObservableList<PlayList> playlists = FXCollections.observableArrayList();   //Contains the play lists
     private ObservableList<String> categories = FXCollections.observableArrayList();    //Contains the categories
+    private ObservableList<UserMedia> unresolvedMedia = FXCollections.observableArrayList();   //Contains the songs whose files cannot be found on this computer
+    private MediaIndex mediaIndex = new MediaIndex();     //The songs of allMedia by the trigrams of their title, artist and category, replaced when it is built again
+    private final Map<MediaColumn, SortIndex> sortIndexes = new EnumMap<>(MediaColumn.class);  //The songs of allMedia sorted by every column of the table, replaced together with the search index
+    private final ReadOnlyIntegerWrapper sortVersion = new ReadOnlyIntegerWrapper();   //Changed whenever the sort indexes are replaced
+    private final ExecutorService indexExecutor = Executors.newSingleThreadExecutor(r -> {
+        Thread thread = new Thread(r, "Index builder");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private boolean indexBuilding;  //New search and sort indexes are being built from a copy of the songs
+    private final Map<UserMedia, Boolean> changedDuringBuild = new LinkedHashMap<>();   //Applied to the new indexes once they are built, true if the song is in the library
+    private final CategoryFacets categoryFacets = new CategoryFacets(categories);   //The songs of allMedia by their category, keeps the categories up to date
+    private final ReadOnlyObjectWrapper<String> categoryFilter = new ReadOnlyObjectWrapper<>();  //Only the songs of this category are shown, null for every category
+    private MediaQuery searchQuery;     //The current filter parsed, null if every song is shown
+    private Set<UserMedia> searchMatches = new HashSet<>();  //The songs matching the current filter
+    private Map<UserMedia, Integer> searchRanks;    //The places of the songs found by a fuzzy search, null if the filter matched exactly
+    private String searchText;  //The text of the current filter, searched again when songs change while fuzzy results are shown
+    private boolean searchAgainScheduled;
+    private final ReadOnlyObjectWrapper<Comparator<UserMedia>> searchOrder = new ReadOnlyObjectWrapper<>();    //Orders the fuzzy results by how well they match
+    private final ExecutorService searchExecutor = Executors.newSingleThreadExecutor(r -> {
+        Thread thread = new Thread(r, "Search");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private Future<?> runningSearch;    //The search whose result has not been shown yet, null if there is none
+    private long searchGeneration;  //Only the result of the latest search is shown
+    private final Map<UserMedia, Boolean> changedDuringSearch = new HashMap<>();    //Checked again when the running search finishes, true if the song is in the library
 
     private final BLLManager bllManager = new BLLManager();
     private static MediaPlayerModel instance;
 
+    private static final int PAGE_SIZE = 500;   //The number of songs read from the database at once
+    private static final long CLOSE_TIMEOUT_MILLIS = 10000;    //The maximum time to wait for the pending changes on exit
+    private static final Duration REFRESH_PERIOD = Duration.seconds(5);    //How often the changes of other clients are read
+    private static final int FUZZY_LIMIT = 200;     //The most songs shown when nothing matches exactly
+    private static final int INDEX_DELTA_LIMIT = 100;   //The most songs added at once that are indexed on the JavaFX thread, more songs are indexed by building a new index in the background
+
+    private final ReadOnlyBooleanWrapper importing = new ReadOnlyBooleanWrapper();     //True while a folder is being imported
+    private final Set<Integer> importedIds = ConcurrentHashMap.newKeySet();    //The ids of the imported songs on their way to the list
+    private final ReadOnlyDoubleWrapper importProgress = new ReadOnlyDoubleWrapper();  //The part of the import that is done, -1 if not known yet
+    private final ReadOnlyDoubleWrapper importThroughput = new ReadOnlyDoubleWrapper();    //Files per second
+    private final ReadOnlyIntegerWrapper pathQueueDepth = new ReadOnlyIntegerWrapper();    //Found files waiting for their tags to be read
+    private final ReadOnlyIntegerWrapper mediaQueueDepth = new ReadOnlyIntegerWrapper();   //Read songs waiting to be saved
+    private final ReadOnlyObjectWrapper<ModelException> writeFailure = new ReadOnlyObjectWrapper<>();  //The last change that could not be written to the database yet
+
+    private volatile long syncToken;    //The changes after this token have not been applied yet
+    private ScheduledService<LibraryChanges> refreshService;
+
     private Mode mediaMode;
     private Mode playListMode;
 
     /**
-     * Set up a change listener so that the filtered list can be updated automatically whenever the main list is changed
+     * Set up a change listener so that the search index, the categories, the sort indexes and the matches of the current filter are updated whenever the main list is changed.
+     * The listener is added before the filtered list is created, so the filtered list sees the updated matches when it applies the same change.
+     * When many songs are added at once (loading the library, importing), the search and sort indexes are built again on a background thread instead
      */
     public MediaPlayerModel()
     {
+        for (MediaColumn column : MediaColumn.values()) {
+            sortIndexes.put(column, new SortIndex(column));
+        }
+        categories.addListener((ListChangeListener.Change<? extends String> c) ->
+        {
+            while (c.next()) {
+                if (c.wasRemoved() && c.getRemoved().contains(categoryFilter.get())) {  //The last song of the shown category is gone
+                    Platform.runLater(this::resetCategoryFilter);    //After the song lists have applied the change
+                }
+            }
+        });
         allMedia.addListener(new ListChangeListener<UserMedia>()
         {
             @Override
             public void onChanged(ListChangeListener.Change<? extends UserMedia> c)
             {
-                filteredList.clear();
-                filteredList.addAll(allMedia);
+                boolean rebuild = !indexBuilding && addedSize(c) > INDEX_DELTA_LIMIT;
+                indexBuilding |= rebuild;   //The changes are collected, and left out once the copy of the songs has been taken
+                while (c.next()) {  //Only the changed songs are indexed and checked again
+                    if (c.wasUpdated()) {
+                        for (int i = c.getFrom(); i < c.getTo(); i++) {
+                            indexChanged(c.getList().get(i), true);
+                            categoryFacets.update(c.getList().get(i));
+                            updateMatch(c.getList().get(i));
+                        }
+                        continue;
+                    }
+                    for (UserMedia media : c.getRemoved()) {
+                        indexChanged(media, false);
+                        categoryFacets.remove(media);
+                        searchMatches.remove(media);
+                        if (runningSearch != null) {
+                            changedDuringSearch.put(media, false);
+                        }
+                    }
+                    for (UserMedia media : c.getAddedSubList()) {
+                        indexChanged(media, true);
+                        categoryFacets.add(media);
+                        updateMatch(media);
+                    }
+                }
+                if (rebuild) {
+                    buildIndex();
+                }
+            }
+        });
+        filteredList = new FilteredList<>(allMedia);
+        sortedList = new SortedList<>(filteredList);
+        bllManager.setWriteFailureHandler(ex -> Platform.runLater(() -> writeFailure.set(new ModelException(ex))));
+    }
+
+    /**
+     * Apply the change of a song to the search and sort indexes, or keep it for the indexes being built.
+     * While they are built, the current indexes are left as they are, so the order of the table stays consistent until they are replaced
+     * @param media The changed song
+     * @param present True if the song is in the library, false if it has been removed
+     */
+    private void indexChanged(UserMedia media, boolean present) {
+        if (indexBuilding) {
+            changedDuringBuild.put(media, present);
+        }
+        else if (present) {
+            mediaIndex.add(media);  //Updated if it is already indexed
+            for (SortIndex sortIndex : sortIndexes.values()) {
+                sortIndex.add(media);
+            }
+        }
+        else {
+            mediaIndex.remove(media);
+            for (SortIndex sortIndex : sortIndexes.values()) {
+                sortIndex.remove(media);
+            }
+        }
+    }
+
+    /**
+     * Build a new search index and new sort indexes from a copy of the songs on a background thread. Once they are built, they replace the current ones
+     * on the JavaFX thread, and the changes made in the meantime are applied to them. The current indexes are used until then
+     */
+    private void buildIndex() {
+        indexBuilding = true;
+        List<MediaValues> songs = new ArrayList<>(allMedia.size());
+        for (UserMedia media : allMedia) {
+            songs.add(MediaValues.of(media));
+        }
+        changedDuringBuild.clear();     //The copy has them
+        indexExecutor.execute(() ->
+        {
+            MediaIndex built = new MediaIndex();
+            built.addAll(songs);
+            Map<MediaColumn, SortIndex> builtSorts = new EnumMap<>(MediaColumn.class);
+            for (MediaColumn column : MediaColumn.values()) {
+                SortIndex sortIndex = new SortIndex(column);
+                sortIndex.addAll(songs);
+                builtSorts.put(column, sortIndex);
+            }
+            Platform.runLater(() -> indexBuilt(built, builtSorts));
+        });
+    }
+
+    /**
+     * Start using the new indexes, and apply the changes made while they were built. If there are many of them, the indexes are built again.
+     * The tables sorting by a column sort again, because the ranks of the songs have changed
+     * @param built The new search index
+     * @param builtSorts The new sort indexes
+     */
+    private void indexBuilt(MediaIndex built, Map<MediaColumn, SortIndex> builtSorts) {
+        mediaIndex = built;
+        sortIndexes.putAll(builtSorts);
+        sortVersion.set(sortVersion.get() + 1);
+        indexBuilding = false;
+        if (changedDuringBuild.size() > INDEX_DELTA_LIMIT) {
+            buildIndex();
+            return;
+        }
+        for (Map.Entry<UserMedia, Boolean> changed : changedDuringBuild.entrySet()) {
+            indexChanged(changed.getKey(), changed.getValue());
+        }
+        changedDuringBuild.clear();
+        if (searchRanks != null) {  //The fuzzy results did not score the songs of the new index
+            searchAgain();
+        }
+    }
+
+    /**
+     * Count the songs added by a change of the list
+     */
+    private static int addedSize(ListChangeListener.Change<? extends UserMedia> c) {
+        int added = 0;
+        while (c.next()) {
+            added += c.getAddedSize();
+        }
+        c.reset();
+        return added;
+    }
+
+    /**
+     * Search the current filter again once the current changes are done, so the fuzzy results are ranked by the current values of the songs.
+     * Many changes at once cause only one search
+     */
+    private void searchAgain() {
+        if (searchAgainScheduled) {
+            return;
+        }
+        searchAgainScheduled = true;
+        Platform.runLater(() ->
+        {
+            searchAgainScheduled = false;
+            if (searchRanks != null) {
+                searchString(searchText);
             }
         });
     }
+
+    /**
+     * Check if a new or edited song matches the current filter
+     * @param media The changed song
+     */
+    private void updateMatch(UserMedia media) {
+        if (runningSearch != null) {
+            changedDuringSearch.put(media, true);
+        }
+        if (searchRanks != null) {  //The song might score differently now, the fuzzy results are ranked again
+            searchAgain();
+            return;
+        }
+        if (searchQuery == null) {
+            return;
+        }
+        if (MediaIndex.matches(media, searchQuery)) {
+            searchMatches.add(media);
+        }
+        else {
+            searchMatches.remove(media);
+        }
+    }
     
     /**
      * If the model already have an instance return it.
@@ -63,24 +311,291 @@ public class MediaPlayerModel {
 //******************************************************************************************************************************************************************//
 //Load data
     /**
-     * Attempt to load the information from the DB
-     * @throws ModelException If an error occurs during loading
+     * Attempt to load the information from the DB on a background thread.
+     * The songs are added to the list page by page, so the table fills up while the rest of the library is being read.
+     * The play lists are added once every song has been loaded, the categories are collected from the songs as they are added
+     * @return The task loading the data, which can be used to handle errors
      */
-    public void loadDataFromDB() throws ModelException {
+    public Task<Void> loadDataFromDB() {
+        Task<Void> task = new Task<Void>()
+        {
+            @Override
+            protected Void call() throws Exception
+            {
+                long token = bllManager.getSyncToken();     //Read before the data, so changes made during loading are applied later
+                List<UserMedia> loadedMedia = new ArrayList<>();
+                bllManager.loadMedia(PAGE_SIZE, page ->     //Load the songs
+                {
+                    loadedMedia.addAll(page);
+                    Platform.runLater(() -> allMedia.addAll(page));
+                });
+                List<PlayList> loadedPlayLists = bllManager.loadPlayLists();    //Load the play lists
+                List<UserMedia> unresolved = bllManager.getUnresolvedMedia(loadedMedia, false);     //One check for every folder, not for every song
+                if (!unresolved.isEmpty()) {
+                    Logger.getLogger(MediaPlayerModel.class.getName()).log(Level.WARNING, "{0} songs cannot be found on this computer, their folders can be mapped to local ones", unresolved.size());
+                }
+                Platform.runLater(() ->
+                {
+                    playlists.addAll(loadedPlayLists);
+                    unresolvedMedia.setAll(unresolved);
+                    syncToken = token;
+                    startRefresh();
+                    startWatching();
+                    bllManager.analyseLoudness();
+                });
+                return null;
+            }
+        };
+        Thread loader = new Thread(task, "Library loader");
+        loader.setDaemon(true);
+        loader.start();
+        return task;
+    }
+
+    /**
+     * Start reading the changes made by other clients periodically in the background
+     */
+    private void startRefresh() {
+        if (refreshService != null) {
+            return;
+        }
+        refreshService = new ScheduledService<LibraryChanges>()
+        {
+            @Override
+            protected Task<LibraryChanges> createTask()
+            {
+                long token = syncToken;
+                return new Task<LibraryChanges>()
+                {
+                    @Override
+                    protected LibraryChanges call() throws Exception
+                    {
+                        return bllManager.getLibraryChanges(token);
+                    }
+                };
+            }
+        };
+        refreshService.setPeriod(REFRESH_PERIOD);
+        refreshService.setOnSucceeded(e -> applyChanges(refreshService.getValue()));
+        refreshService.start();
+    }
+
+    /**
+     * Start watching the library folders, so new, changed and deleted files show up in the library without an import
+     */
+    private void startWatching() {
         try {
-            allMedia.addAll(bllManager.loadMedia());    //Load the songs
-            playlists.addAll(bllManager.loadPlayLists());   //Load the play lists
-            categories.addAll(bllManager.getCategories());  //Load the categories
+            bllManager.watchFolders(changes -> Platform.runLater(() -> applyFolderChanges(changes)));
         }
         catch (BLLException ex) {
-            throw new ModelException(ex);
+            Logger.getLogger(MediaPlayerModel.class.getName()).log(Level.WARNING, "The library folders cannot be watched", ex);
+        }
+    }
+
+    /**
+     * Apply the changes of the watched folders to the library. Only the songs of the changed files are touched.
+     * A deleted file with a new file of the same name is treated as a move, so the song keeps its place in the play lists
+     * @param changes The changes of the files since the previous update
+     */
+    private void applyFolderChanges(FolderChanges changes) {
+        Map<String, UserMedia> mediaByPath = new HashMap<>();
+        for (UserMedia media : allMedia) {
+            mediaByPath.put(media.getPath(), media);
+        }
+
+        Map<String, UserMedia> movedByName = new HashMap<>();   //The songs of the deleted files, by file name
+        Set<UserMedia> deleted = new HashSet<>();
+        for (String path : changes.getDeletedPaths()) {
+            UserMedia media = mediaByPath.get(path);
+            if (media != null) {
+                movedByName.put(bllManager.getFileName(path), media);
+                deleted.add(media);
+            }
+            else {  //Probably a folder, every song under it is gone
+                for (Map.Entry<String, UserMedia> entry : mediaByPath.entrySet()) {
+                    String songPath = entry.getKey();
+                    if (songPath != null && songPath.length() > path.length() && songPath.startsWith(path)
+                            && (songPath.charAt(path.length()) == '/' || songPath.charAt(path.length()) == '\\')) {
+                        deleted.add(entry.getValue());
+                    }
+                }
+            }
+        }
+
+        try {
+            for (UserMedia read : changes.getMedia()) {
+                UserMedia media = mediaByPath.get(read.getPath());
+                if (media == null) {
+                    media = movedByName.remove(bllManager.getFileName(read.getPath()));
+                    if (media != null) {
+                        deleted.remove(media);
+                    }
+                }
+                if (media == null) {
+                    addNewMedia(read);
+                    mediaByPath.put(read.getPath(), read);
+                }
+                else {
+                    updateFromFile(media, read);
+                }
+            }
+            for (UserMedia media : deleted) {
+                removeMedia(media);
+            }
+        }
+        catch (ModelException ex) {
+            Logger.getLogger(MediaPlayerModel.class.getName()).log(Level.WARNING, "The folder changes could not be saved", ex);
+        }
+        bllManager.analyseLoudness();   //The new and changed files
+    }
+
+    /**
+     * Copy the data read from a file to a song of the library, and save it.
+     * The existing instance is updated, because the play lists and the tables refer to it
+     * @param media The song in the library
+     * @param read The song read from the file
+     * @throws ModelException If the song cannot be saved
+     */
+    private void updateFromFile(UserMedia media, UserMedia read) throws ModelException {
+        media.setTitle(read.getTitle());
+        media.setArtist(read.getArtist());
+        media.setCategory(read.getCategory());
+        media.setPath(read.getPath());
+        media.setTime(read.getTime());
+        if (media.getAudioSize() != read.getAudioSize()) {  //New audio data, the database forgets the loudness too
+            media.setLoudness(null);
+            media.setPeak(null);
+        }
+        media.setAudioSize(read.getAudioSize());
+        media.setContentHash(read.getContentHash());
+        updateMedia(media);
+    }
+
+    /**
+     * Apply the changes read from the database to the lists. Only the changed songs and play lists are touched.
+     * The songs and play lists with changes of our own waiting to be written are skipped, because the database does not contain them yet.
+     * Once they are written, the database sends them back as changes. A deletion is applied anyway, and our pending changes of the object are dropped.
+     * The changes are not applied while an import is saving a batch, whose songs might not have reached the lists yet.
+     * In that case the token is not moved, so the same changes are read again next time. The imported songs already handed to the list are skipped
+     * @param changes The changes since the current sync token
+     */
+    private void applyChanges(LibraryChanges changes) {
+        if (changes == null || bllManager.isImportWriting()) {
+            return;
+        }
+        if (!changes.isEmpty()) {
+            Map<Integer, UserMedia> mediaById = new HashMap<>();
+            for (UserMedia media : allMedia) {
+                mediaById.put(media.getId(), media);
+            }
+            applyMediaChanges(changes, mediaById);
+            applyPlayListChanges(changes, mediaById);
+        }
+        syncToken = changes.getToken();
+    }
+
+    /**
+     * Add the new songs, update the changed ones and remove the deleted ones
+     * @param changes The changes read from the database
+     * @param mediaById Every loaded song by its id, the new songs are added to it
+     */
+    private void applyMediaChanges(LibraryChanges changes, Map<Integer, UserMedia> mediaById) {
+        List<UserMedia> added = new ArrayList<>();
+        for (UserMedia stored : changes.getMedia()) {
+            UserMedia media = mediaById.get(stored.getId());
+            if (media == null) {
+                if (bllManager.isSavingMedia(stored.getId()) || importedIds.contains(stored.getId())) {   //Our own new song, it has not reached the list or its id yet
+                    continue;
+                }
+                added.add(stored);
+                mediaById.put(stored.getId(), stored);
+            }
+            else if (!bllManager.hasPendingWrites(media)) {  //Update the existing instance, the play lists and the tables refer to it
+                media.setTitle(stored.getTitle());
+                media.setArtist(stored.getArtist());
+                media.setCategory(stored.getCategory());
+                media.setPath(stored.getPath());
+                media.setTime(stored.getTime());
+                media.setAudioSize(stored.getAudioSize());
+                media.setContentHash(stored.getContentHash());
+                updatePlayListTimes(media);
+            }
+        }
+        allMedia.addAll(added);
+
+        Set<UserMedia> deleted = new HashSet<>();
+        for (int id : changes.getDeletedMediaIds()) {
+            UserMedia media = mediaById.remove(id);
+            if (media != null) {
+                bllManager.dropPendingWrites(media);
+                deleted.add(media);
+            }
+        }
+        if (!deleted.isEmpty()) {
+            for (PlayList list : playlists) {
+                for (UserMedia media : deleted) {
+                    if (list.containsMedia(media)) {
+                        list.removeMedia(media);
+                    }
+                }
+            }
+            allMedia.removeAll(deleted);
+        }
+    }
+
+    /**
+     * Add the new play lists, rename the changed ones, remove the deleted ones, and replace the songs of the play lists whose content has changed
+     * @param changes The changes read from the database
+     * @param mediaById Every loaded song by its id
+     */
+    private void applyPlayListChanges(LibraryChanges changes, Map<Integer, UserMedia> mediaById) {
+        Map<Integer, PlayList> listById = new HashMap<>();
+        for (PlayList list : playlists) {
+            listById.put(list.getId(), list);
+        }
+        for (PlayList stored : changes.getPlayLists()) {
+            PlayList list = listById.get(stored.getId());
+            if (list == null) {
+                if (!bllManager.isSavingPlayList(stored.getId())) {
+                    playlists.add(stored);
+                    listById.put(stored.getId(), stored);
+                }
+            }
+            else if (!bllManager.hasPendingWrites(list)) {
+                list.setTitle(stored.getTitle());
+            }
+        }
+
+        Set<PlayList> deleted = new HashSet<>();
+        for (int id : changes.getDeletedPlayListIds()) {
+            PlayList list = listById.remove(id);
+            if (list != null) {
+                bllManager.dropPendingWrites(list);
+                deleted.add(list);
+            }
+        }
+        playlists.removeAll(deleted);
+
+        for (Map.Entry<Integer, LinkedHashMap<Integer, Long>> entry : changes.getMembers().entrySet()) {
+            PlayList list = listById.get(entry.getKey());
+            if (list == null || bllManager.hasPendingWrites(list)) {    //The songs we have added, removed or moved are not stored yet
+                continue;
+            }
+            LinkedHashMap<UserMedia, Long> ordered = new LinkedHashMap<>();
+            for (Map.Entry<Integer, Long> member : entry.getValue().entrySet()) {
+                UserMedia media = mediaById.get(member.getKey());
+                if (media != null) {
+                    ordered.put(media, member.getValue());
+                }
+            }
+            list.replaceMedia(ordered);
         }
     }
 
 //******************************************************************************************************************************************************************//
 //Save data
     /**
-     * Add a new category to the list
+     * Add a new category to the list. It stays in the list even while no song is in it
      *
      * @param category The category that will be added to the list
      * @throws ModelException If the parameter is an empty string
@@ -98,7 +613,7 @@ public class MediaPlayerModel {
             throw new ModelException("Category is already in the list!");
         }
 
-        categories.add(category);
+        categoryFacets.addCategory(category);
     }
 
     /**
@@ -142,6 +657,209 @@ public class MediaPlayerModel {
         }
     }
 
+    /**
+     * Import every audio file in a folder and its sub folders on a background thread.
+     * The songs are added to the list as they are read, files already in the library and copies of songs in it are skipped,
+     * and songs whose file has been moved into the folder are updated instead of being added again.
+     * The folder is watched afterwards, so files added to it later are imported automatically
+     *
+     * The progress of the import is shown by the import properties of the model. Cancelling the task stops the import, keeping the songs imported so far
+     *
+     * @param folder The folder to import
+     * @return The task importing the folder, its value is the number of imported songs
+     */
+    public Task<Integer> importFolder(File folder) {
+        Set<String> knownPaths = new HashSet<>();
+        for (UserMedia media : allMedia) {
+            knownPaths.add(media.getPath());
+        }
+        Task<Integer> task = new Task<Integer>()
+        {
+            @Override
+            protected Integer call() throws Exception
+            {
+                try {
+                    bllManager.addWatchedFolder(folder.toPath());   //Later changes of the folder are picked up by the watcher
+                    return bllManager.importFolder(folder.toPath(), knownPaths, songs -> addImported(songs), moved -> Platform.runLater(() -> applyMovedFiles(moved)), progress -> Platform.runLater(() ->
+                    {
+                        importProgress.set(progress.getProgress());
+                        importThroughput.set(progress.getFilesPerSecond());
+                        pathQueueDepth.set(progress.getPathQueueSize());
+                        mediaQueueDepth.set(progress.getMediaQueueSize());
+                    }));
+                }
+                finally {
+                    Platform.runLater(() -> importing.set(false));  //After the songs, they were queued earlier
+                    bllManager.analyseLoudness();
+                }
+            }
+        };
+        importProgress.set(-1);
+        importThroughput.set(0);
+        importing.set(true);
+        Thread importer = new Thread(task, "Folder import");
+        importer.setDaemon(true);
+        importer.start();
+        return task;
+    }
+
+    /**
+     * Add a saved batch of imported songs to the list. Until they are added, the same songs read back from the database are skipped
+     * @param songs The saved songs, called on the import thread
+     */
+    private void addImported(List<UserMedia> songs) {
+        List<Integer> ids = new ArrayList<>(songs.size());
+        for (UserMedia media : songs) {
+            ids.add(media.getId());
+        }
+        importedIds.addAll(ids);
+        Platform.runLater(() ->
+        {
+            allMedia.addAll(songs);
+            importedIds.removeAll(ids);
+        });
+    }
+
+    /**
+     * Map the beginning of the stored paths to a folder on this computer, then check the songs again
+     *
+     * @param storedPrefix The beginning of the paths as they are stored in the library
+     * @param localPrefix The same folder on this computer
+     * @throws ModelException If one of the folders is missing
+     */
+    public void setRootMapping(String storedPrefix, String localPrefix) throws ModelException {
+        try {
+            bllManager.setRootMapping(storedPrefix, localPrefix);
+        }
+        catch (BLLException ex) {
+            throw new ModelException(ex);
+        }
+        checkPaths();
+    }
+
+    /**
+     * Remove a root mapping, then check the songs again
+     *
+     * @param storedPrefix The stored prefix of the mapping
+     */
+    public void removeRootMapping(String storedPrefix) {
+        bllManager.removeRootMapping(storedPrefix);
+        checkPaths();
+    }
+
+    /**
+     * Get the root mappings
+     *
+     * @return The local folders by the stored prefixes they replace
+     */
+    public Map<String, String> getRootMappings() {
+        return bllManager.getRootMappings();
+    }
+
+    /**
+     * Check on a background thread which songs cannot be found on this computer, and update the list of unresolved songs
+     */
+    public void checkPaths() {
+        List<UserMedia> snapshot = new ArrayList<>(allMedia);
+        Thread checker = new Thread(() ->
+        {
+            List<UserMedia> unresolved = bllManager.getUnresolvedMedia(snapshot, true);
+            Platform.runLater(() -> unresolvedMedia.setAll(unresolved));
+            bllManager.analyseLoudness();   //The songs found now can be analysed
+        }, "Path check");
+        checker.setDaemon(true);
+        checker.start();
+    }
+
+    /**
+     * Get the name of the file from a stored path, which might use the separator of another system
+     *
+     * @param path The stored path
+     * @return The name of the file, without its folders
+     */
+    public String getFileName(String path) {
+        return bllManager.getFileName(path);
+    }
+
+    /**
+     * Get the songs whose files cannot be found on this computer
+     *
+     * @return The list of unresolved songs, updated after loading and whenever the root mappings change
+     */
+    public ObservableList<UserMedia> getUnresolvedMedia() {
+        return unresolvedMedia;
+    }
+
+    /**
+     * Get the property showing if a folder is being imported
+     * @return True while an import is running
+     */
+    public ReadOnlyBooleanProperty importingProperty() {
+        return importing.getReadOnlyProperty();
+    }
+
+    /**
+     * Get the progress of the running import
+     * @return The part of the import that is done between 0 and 1, or -1 while the number of files is not known yet
+     */
+    public ReadOnlyDoubleProperty importProgressProperty() {
+        return importProgress.getReadOnlyProperty();
+    }
+
+    /**
+     * Get the throughput of the running import
+     * @return The number of files handled per second recently
+     */
+    public ReadOnlyDoubleProperty importThroughputProperty() {
+        return importThroughput.getReadOnlyProperty();
+    }
+
+    /**
+     * Get the number of found files waiting for their tags to be read
+     * @return The depth of the queue between the folder walk and the tag readers
+     */
+    public ReadOnlyIntegerProperty pathQueueDepthProperty() {
+        return pathQueueDepth.getReadOnlyProperty();
+    }
+
+    /**
+     * Get the number of read songs waiting to be saved
+     * @return The depth of the queue between the tag readers and the database writer
+     */
+    public ReadOnlyIntegerProperty mediaQueueDepthProperty() {
+        return mediaQueueDepth.getReadOnlyProperty();
+    }
+
+    /**
+     * Get the changes that keep failing to be written to the database. They are not lost, they are written once the database is available again
+     * @return The error of the last such change, set again for every new failure
+     */
+    public ReadOnlyObjectProperty<ModelException> writeFailureProperty() {
+        return writeFailure.getReadOnlyProperty();
+    }
+
+    /**
+     * Point the songs whose files have been moved to their new files. The songs keep their place in the play lists
+     * @param moved The songs read from the new files, with the ids of the songs they belong to
+     */
+    private void applyMovedFiles(List<UserMedia> moved) {
+        Map<Integer, UserMedia> mediaById = new HashMap<>();
+        for (UserMedia media : allMedia) {
+            mediaById.put(media.getId(), media);
+        }
+        try {
+            for (UserMedia read : moved) {
+                UserMedia media = mediaById.get(read.getId());
+                if (media != null) {
+                    updateFromFile(media, read);
+                }
+            }
+        }
+        catch (ModelException ex) {
+            Logger.getLogger(MediaPlayerModel.class.getName()).log(Level.WARNING, "The moved files could not be saved", ex);
+        }
+    }
+
     /**
      * Attempt to add the selected media to the selected play list
      *
@@ -160,14 +878,15 @@ public class MediaPlayerModel {
             }
         }
 
+        selectedPlayList.addMedia(selectedMedia);   //Add it first, so it gets a position in the play list
+
         try {
             bllManager.addMediaToPlayList(selectedMedia, selectedPlayList);
         }
         catch (BLLException ex) {
+            selectedPlayList.removeMedia(selectedMedia);
             throw new ModelException(ex);
         }
-
-        selectedPlayList.addMedia(selectedMedia);
     }
 
 //******************************************************************************************************************************************************************//
@@ -200,13 +919,17 @@ public class MediaPlayerModel {
         catch (BLLException ex) {
             throw new ModelException(ex);
         }
-                    
-        for (PlayList list : playlists)
-        {
-            if (list.containsMedia(editMedia))  //Manually update the the list in the model
-            {
-                list.removeMedia(editMedia);
-                list.addMedia(editMedia);
+        updatePlayListTimes(editMedia);    //The play lists contain the same instance, only their total time has to be updated
+    }
+
+    /**
+     * Add up the length of the play lists containing a song again, after the length of the song may have changed
+     * @param media The changed song
+     */
+    private void updatePlayListTimes(UserMedia media) {
+        for (PlayList list : playlists) {
+            if (list.containsMedia(media)) {
+                list.updateTotalTime();
             }
         }
     }
@@ -267,18 +990,7 @@ public class MediaPlayerModel {
      * @throws ModelException If an error occurs during delete
      */
     public void removePlayList(PlayList selected) throws ModelException {
-        if (selected != null) {
-            List<UserMedia> inList = new ArrayList<>();
-
-            inList.addAll(selected.getMediaList());
-
-            for (UserMedia userMedia : inList) //Remove the UserMedia objects found in the play list before deleting it
-            {
-                removeMediaFromPlayList(userMedia, selected);
-            }
-        }
-
-        try {
+        try {   //The songs of the play list are removed together with it
             bllManager.deletePlayList(selected);
         }
         catch (BLLException ex) {
@@ -292,12 +1004,12 @@ public class MediaPlayerModel {
 //Getters and setters
     
     /**
-     * Returns the ObservableList containing the filtered songs
+     * Returns the list containing the filtered songs. Its comparator can be bound to the comparator of a table, so the table can sort it
      *
-     * @return An ObservableList containing the songs that match the filter
+     * @return A SortedList containing the songs that match the filter
      */
-    public ObservableList<UserMedia> getMedia() {
-        return this.filteredList;
+    public SortedList<UserMedia> getMedia() {
+        return this.sortedList;
     }
 
     /**
@@ -318,6 +1030,36 @@ public class MediaPlayerModel {
         return this.categories;
     }
 
+    /**
+     * Returns the order of the songs by a column, taken from the sort index of the column. This is a rank comparator, the rows are not served in the order
+     * of the index: the table still sorts them in O(N log N) whenever its comparator is replaced, but every comparison looks up the ranks of the two songs
+     * in the index, instead of reading their properties and comparing their texts.
+     * The comparator belongs to the current index, a new one should be taken whenever sortVersionProperty changes
+     *
+     * @param column The column to sort by
+     * @return A Comparator ordering the songs by the column, in ascending order
+     */
+    public Comparator<UserMedia> getSortOrder(MediaColumn column) {
+        return sortIndexes.get(column).comparator();
+    }
+
+    /**
+     * Get the version of the sort indexes. It changes when the indexes are built again in the background, and the ranks of the songs change with them
+     * @return The property holding the version, the sorted tables should take their comparators again when it changes
+     */
+    public ReadOnlyIntegerProperty sortVersionProperty() {
+        return sortVersion.getReadOnlyProperty();
+    }
+
+    /**
+     * Returns the number of songs in every category, updated whenever a song is added, edited or removed
+     *
+     * @return A read only ObservableMap of the categories and their number of songs
+     */
+    public ObservableMap<String, Integer> getCategoryCounts() {
+        return categoryFacets.getCounts();
+    }
+
     /**
      * Get the mode in which an editor window was opened (EDIT or NEW). Used when opening a NewSong window, to decide if we need create a new UserMEdia object, or edit an existing one
      * @return The mode in which the editor window was opened
@@ -431,27 +1173,164 @@ public class MediaPlayerModel {
 //Other methods
  
     /**
-     * Filter the songs based on the supplied string
+     * Filter the songs based on the supplied query. The query can search the fields, like artist:queen category:rock time:>300 (see MediaQuery),
+     * and plain words are searched in the title, artist and category. The query is parsed once, and the songs are found using the search index,
+     * on a background thread. If no song contains plain words, they are probably misspelled, and the best fuzzy matches are shown instead, ordered by how well they match.
+     * A search that is still running when a new one starts is cancelled, and only the result of the latest search is shown,
+     * as one change of the filtered list
      *
      * @param search The string that will be used as a filter
      */
     public void searchString(String search) {
-        filteredList.clear();
-
-        if (search.isEmpty()) //If the string is empty, return all media
+        long generation = ++searchGeneration;
+        searchText = search;
+        if (runningSearch != null) {
+            runningSearch.cancel(true);
+        }
+        changedDuringSearch.clear();
+        changedDuringSearch.putAll(changedDuringBuild);     //Not in the searched index yet
+        MediaQuery query = MediaQuery.parse(search);
+        if (query.isEmpty()) //If there is nothing to search for, return all media
         {
-            filteredList.addAll(allMedia);
+            runningSearch = null;
+            showSearchResult(null, new HashSet<>(), null);
             return;
         }
+        MediaIndex index = mediaIndex;  //A new index might replace it while the search is running
+        runningSearch = searchExecutor.submit(() ->
+        {
+            try {
+                Set<UserMedia> matches = index.search(query);
+                Map<UserMedia, Integer> ranks = null;
+                if (matches.isEmpty() && query.isFreeText()) {
+                    List<UserMedia> found = index.fuzzySearch(search, FUZZY_LIMIT);
+                    ranks = new HashMap<>();
+                    for (UserMedia media : found) {
+                        ranks.put(media, ranks.size());
+                    }
+                    matches = new HashSet<>(found);
+                }
+                Set<UserMedia> foundMatches = matches;
+                Map<UserMedia, Integer> foundRanks = ranks;
+                Platform.runLater(() ->
+                {
+                    if (generation == searchGeneration) {
+                        showSearchResult(query, foundMatches, foundRanks);
+                    }
+                });
+            }
+            catch (CancellationException ex) {
+                //A newer search has started, its result is shown instead
+            }
+            catch (RuntimeException ex) {
+                Logger.getLogger(MediaPlayerModel.class.getName()).log(Level.WARNING, "The search failed", ex);
+            }
+            finally {
+                Platform.runLater(() -> searchFinished(generation));
+            }
+        });
+    }
 
-        search = search.toLowerCase();
+    /**
+     * Clean up after a search has finished, whether it succeeded or not: the index gets the changes kept while it was searched
+     * @param generation The generation of the finished search
+     */
+    private void searchFinished(long generation) {
+        if (generation == searchGeneration) {
+            runningSearch = null;
+        }
+        mediaIndex.applyPending();
+    }
 
-        for (UserMedia userMedia : allMedia) {
-            if (userMedia.getArtist().toLowerCase().contains(search) || userMedia.getTitle().toLowerCase().contains(search)) //If the artis's name or the title of the song contains the string, treat it as a match
-            {
-                filteredList.add(userMedia);
+    /**
+     * Show the songs found by a search. The songs changed while the search was running are checked again first
+     * @param query The parsed filter, null to show every song
+     * @param matches The songs found by the search
+     * @param ranks The places of the songs found by a fuzzy search, null if the songs matched exactly
+     */
+    private void showSearchResult(MediaQuery query, Set<UserMedia> matches, Map<UserMedia, Integer> ranks) {
+        if (query != null) {
+            for (Map.Entry<UserMedia, Boolean> changed : changedDuringSearch.entrySet()) {
+                UserMedia media = changed.getKey();
+                if (!changed.getValue()) {
+                    matches.remove(media);
+                }
+                else if (ranks != null) {   //Fuzzy results are not checked again, only the deleted songs are left out
+                    continue;
+                }
+                else if (MediaIndex.matches(media, query)) {
+                    matches.add(media);
+                }
+                else {
+                    matches.remove(media);
+                }
             }
         }
+        changedDuringSearch.clear();
+        searchQuery = query;
+        searchMatches = matches;
+        searchRanks = ranks;
+        applyFilter();
+        searchOrder.set(ranks == null ? null : Comparator.comparingInt(media -> ranks.getOrDefault(media, Integer.MAX_VALUE)));
+    }
+
+    /**
+     * Show only the songs of one category, together with the current search. The songs of the category are taken from the category index,
+     * and they follow the later changes of the songs
+     *
+     * @param category The category to show, null to show every category
+     */
+    public void filterByCategory(String category) {
+        if (category == null ? categoryFilter.get() == null : category.equals(categoryFilter.get())) {
+            return;
+        }
+        categoryFilter.set(category);
+        applyFilter();
+    }
+
+    /**
+     * Get the category whose songs are shown. It is set back to null when the last song of the category is removed
+     * @return The property holding the shown category, null if every category is shown
+     */
+    public ReadOnlyObjectProperty<String> categoryFilterProperty() {
+        return categoryFilter.getReadOnlyProperty();
+    }
+
+    /**
+     * Show every category again if the shown category is no longer in the list
+     */
+    private void resetCategoryFilter() {
+        if (categoryFilter.get() != null && !categories.contains(categoryFilter.get())) {
+            filterByCategory(null);
+        }
+    }
+
+    /**
+     * Filter the list again with the current search and category. A new predicate is set, so the list is filtered again,
+     * later changes keep the matches up to date
+     */
+    private void applyFilter() {
+        MediaQuery query = searchQuery;
+        Set<UserMedia> matches = searchMatches;
+        String category = categoryFilter.get();
+        if (query == null && category == null) {
+            filteredList.setPredicate(null);
+        }
+        else if (category == null) {
+            filteredList.setPredicate(matches::contains);
+        }
+        else {
+            filteredList.setPredicate(media -> categoryFacets.contains(category, media) && (query == null || matches.contains(media)));
+        }
+    }
+
+    /**
+     * Get the order of the search results. Set while the filter shows fuzzy matches, the best match first.
+     * A table should use it while the user has not sorted the table by a column
+     * @return The property holding the order of the results, null if the results are in the order of the library
+     */
+    public ReadOnlyObjectProperty<Comparator<UserMedia>> searchOrderProperty() {
+        return searchOrder.getReadOnlyProperty();
     }
 
     /**
@@ -480,28 +1359,63 @@ public class MediaPlayerModel {
         if (selected == null) {
             throw new ModelException("No song selected!");
         }
+        moveSongsUp(Collections.singletonList(selected), list);
+    }
 
-        if (list == null) {
-            throw new ModelException("No play list selected!");
+    /**
+     * Move a song down in a play list
+     * @param selected The selected song
+     * @param list The play list which contains the selected song
+     * @throws ModelException If the play list or song is null, or if the song is already at the bottom of the list
+     */
+    public void moveSongDown(UserMedia selected, PlayList list) throws ModelException {
+        if (selected == null) {
+            throw new ModelException("No song selected!");
         }
+        moveSongsDown(Collections.singletonList(selected), list);
+    }
 
-        int index = list.getIndexOfMedia(selected);
+    /**
+     * Move a block of consecutive songs up by one in a play list, and save the new order
+     * @param selected The selected songs
+     * @param list The play list which contains the selected songs
+     * @throws ModelException If nothing is selected, the songs are not next to each other, the block is already at the top of the list, or the order cannot be saved
+     */
+    public void moveSongsUp(List<UserMedia> selected, PlayList list) throws ModelException {
+        int[] block = getBlock(selected, list);
 
-        if (index == 0) {
+        if (block[0] == 0) {
             throw new ModelException("Media is alredy on the top of the list!");
         }
 
-        list.moveSongUp(index);
+        saveOrder(list, list.moveSongsUp(block[0], block[1]));
     }
 
     /**
-     * Move a song down in a play list
-     * @param selected The selected song
-     * @param list The play list which contains the selected song
-     * @throws ModelException If the play list or song is null, or if the song is already at the bottom of the list
+     * Move a block of consecutive songs down by one in a play list, and save the new order
+     * @param selected The selected songs
+     * @param list The play list which contains the selected songs
+     * @throws ModelException If nothing is selected, the songs are not next to each other, the block is already at the bottom of the list, or the order cannot be saved
      */
-    public void moveSongDown(UserMedia selected, PlayList list) throws ModelException {
-        if (selected == null) {
+    public void moveSongsDown(List<UserMedia> selected, PlayList list) throws ModelException {
+        int[] block = getBlock(selected, list);
+
+        if (block[1] == list.getCount() - 1) {
+            throw new ModelException("Media is alredy on the bottom of the list!");
+        }
+
+        saveOrder(list, list.moveSongsDown(block[0], block[1]));
+    }
+
+    /**
+     * Find the first and last index of the selected songs in the play list
+     * @param selected The selected songs
+     * @param list The play list which contains the selected songs
+     * @return The index of the first and the last selected song
+     * @throws ModelException If nothing is selected, or the selected songs are not next to each other
+     */
+    private int[] getBlock(List<UserMedia> selected, PlayList list) throws ModelException {
+        if (selected == null || selected.isEmpty()) {
             throw new ModelException("No song selected!");
         }
 
@@ -509,13 +1423,64 @@ public class MediaPlayerModel {
             throw new ModelException("No play list selected!");
         }
 
-        int index = list.getIndexOfMedia(selected);
+        int first = Integer.MAX_VALUE;
+        int last = -1;
+        for (UserMedia media : selected) {
+            int index = list.getIndexOfMedia(media);
+            if (index == -1) {
+                throw new ModelException("This playlist does not contain the selected media!");
+            }
+            first = Math.min(first, index);
+            last = Math.max(last, index);
+        }
 
-        if (index == list.getCount() - 1) {
-            throw new ModelException("Media is alredy on the bottom of the list!");
+        if (last - first + 1 != selected.size()) {
+            throw new ModelException("Only songs next to each other can be moved together!");
+        }
+        return new int[]{first, last};
+    }
+
+    /**
+     * Save the positions of the songs that have been moved
+     * @param list The play list that has been reordered
+     * @param moved The songs whose position has changed
+     * @throws ModelException If an error occurs in the BLL
+     */
+    private void saveOrder(PlayList list, List<UserMedia> moved) throws ModelException {
+        try {
+            bllManager.updatePlayListOrder(list, moved);
         }
+        catch (BLLException ex) {
+            throw new ModelException(ex);
+        }
+    }
+
+    /**
+     * Get the number of changes that are waiting to be written to the database
+     * @return The number of pending changes
+     */
+    public int getWriteBacklogSize() {
+        return bllManager.getWriteBacklogSize();
+    }
 
-        list.moveSongDown(index);
+    /**
+     * Get how long the oldest change has been waiting to be written to the database
+     * @return The age of the oldest pending change in milliseconds
+     */
+    public long getWriteLagMillis() {
+        return bllManager.getWriteLagMillis();
+    }
+
+    /**
+     * Write every pending change to the database before the program exits
+     */
+    public void close() {
+        if (refreshService != null) {
+            refreshService.cancel();
+        }
+        searchExecutor.shutdownNow();
+        indexExecutor.shutdownNow();
+        bllManager.close(CLOSE_TIMEOUT_MILLIS);
     }
 
     /**
@@ -577,6 +1542,28 @@ public class MediaPlayerModel {
         bllManager.setVolume(vol);
     }
 
+    /**
+     * Set the share of the cores the background loudness analysis can use
+     * @param share A number between 0 (exclusive) and 1
+     * @throws ModelException If the share is out of range
+     */
+    public void setAnalysisCoreShare(double share) throws ModelException {
+        try {
+            bllManager.setAnalysisCoreShare(share);
+        }
+        catch (BLLException ex) {
+            throw new ModelException(ex);
+        }
+    }
+
+    /**
+     * Get the share of the cores the background loudness analysis can use
+     * @return A number between 0 (exclusive) and 1
+     */
+    public double getAnalysisCoreShare() {
+        return bllManager.getAnalysisCoreShare();
+    }
+
     /**
      * Set the currently playing media to the next one in the list
      * @throws ModelException If an error occurs in the BLL
@@ -0,0 +1,273 @@
+package mytunes.gui.Model;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A parsed search query. A query is a list of words, each of them matching a song on its own, and every word has to match (AND).
+ * The word groups can be separated by OR (or |), then a song has to match one of the groups.
+ * <ul>
+ * <li>{@code queen} or {@code "we will"}: the title, artist or category contains the text</li>
+ * <li>{@code artist:queen}, {@code title:"rock you"}, {@code category:rock}: the field contains the text</li>
+ * <li>{@code time:>300}, {@code time:<=4:30}, {@code time:3:15}: the length of the song in seconds or minutes:seconds, compared with &lt;, &lt;=, &gt;, &gt;= or =</li>
+ * <li>{@code -live}, {@code -category:pop}: the song must not match the word</li>
+ * </ul>
+ * A field with no value yet (while it is being typed) is left out, anything else that cannot be parsed is searched as text.
+ * The query is only parsed here, the index decides in which order the words are checked
+ * @author sebok
+ */
+class MediaQuery {
+
+    /**
+     * The parts of a song a clause can check. ANY is the title, the artist and the category together
+     */
+    enum Field {
+        TITLE, ARTIST, CATEGORY, ANY, TIME
+    }
+
+    /**
+     * The comparisons of a time clause
+     */
+    enum Comparison {
+        LESS, LESS_OR_EQUAL, EQUAL, GREATER_OR_EQUAL, GREATER
+    }
+
+    /**
+     * One word of the query
+     */
+    static class Clause {
+
+        private final Field field;
+        private final boolean negated;
+        private final String text;  //The normalised text of a text clause
+        private final Comparison comparison;
+        private final double seconds;
+
+        private Clause(Field field, boolean negated, String text, Comparison comparison, double seconds) {
+            this.field = field;
+            this.negated = negated;
+            this.text = text;
+            this.comparison = comparison;
+            this.seconds = seconds;
+        }
+
+        Field getField() {
+            return field;
+        }
+
+        boolean isNegated() {
+            return negated;
+        }
+
+        String getText() {
+            return text;
+        }
+
+        Comparison getComparison() {
+            return comparison;
+        }
+
+        double getSeconds() {
+            return seconds;
+        }
+
+        /**
+         * Compare the length of a song with the value of a time clause
+         * @param time The length of the song in seconds
+         * @return True if the length satisfies the comparison
+         */
+        boolean compare(double time) {
+            switch (comparison) {
+                case LESS:
+                    return time < seconds;
+                case LESS_OR_EQUAL:
+                    return time <= seconds;
+                case GREATER_OR_EQUAL:
+                    return time >= seconds;
+                case GREATER:
+                    return time > seconds;
+                default:
+                    return Math.floor(time) == Math.floor(seconds);     //The table shows whole seconds
+            }
+        }
+    }
+
+    private final List<List<Clause>> groups;   //A song matches if it matches every clause of one of the groups
+    private final boolean freeText;
+
+    private MediaQuery(List<List<Clause>> groups, boolean freeText) {
+        this.groups = groups;
+        this.freeText = freeText;
+    }
+
+    /**
+     * Parse a query typed into the search field
+     * @param query The query
+     * @return The parsed query, empty if nothing is left to search for
+     */
+    static MediaQuery parse(String query) {
+        List<List<Clause>> groups = new ArrayList<>();
+        List<Clause> group = new ArrayList<>();
+        boolean freeText = true;
+        for (String word : split(query)) {
+            if (word.equals("OR") || word.equals("|")) {
+                if (!group.isEmpty()) {
+                    groups.add(group);
+                    group = new ArrayList<>();
+                }
+                freeText = false;
+                continue;
+            }
+            Clause clause = parseClause(word);
+            if (clause != null) {
+                freeText &= clause.field == Field.ANY && !clause.negated;
+                group.add(clause);
+            }
+        }
+        if (!group.isEmpty()) {
+            groups.add(group);
+        }
+        return new MediaQuery(groups, freeText);
+    }
+
+    /**
+     * Get the groups of the query
+     * @return The groups, a song matches if it matches every clause of one of them
+     */
+    List<List<Clause>> getGroups() {
+        return Collections.unmodifiableList(groups);
+    }
+
+    /**
+     * Check if there is nothing to search for
+     * @return True if every song matches the query
+     */
+    boolean isEmpty() {
+        return groups.isEmpty();
+    }
+
+    /**
+     * Check if the query is only text, without fields, negations and groups. Only these can be searched for with typos
+     * @return True if the query is plain text
+     */
+    boolean isFreeText() {
+        return freeText && groups.size() == 1;
+    }
+
+    /**
+     * Parse one word of the query
+     * @return The clause, or null if it has no value yet
+     */
+    private static Clause parseClause(String word) {
+        boolean negated = word.length() > 1 && word.charAt(0) == '-';
+        if (negated) {
+            word = word.substring(1);
+        }
+        int colon = word.indexOf(':');
+        Field field = colon > 0 ? fieldOf(word.substring(0, colon)) : null;
+        if (field == null) {
+            return textClause(Field.ANY, negated, word);
+        }
+        String value = unquote(word.substring(colon + 1));
+        if (value.isEmpty()) {
+            return null;    //Still being typed
+        }
+        if (field != Field.TIME) {
+            return textClause(field, negated, value);
+        }
+
+        Comparison comparison = Comparison.EQUAL;
+        String[] operators = {"<=", ">=", "<", ">", "="};
+        Comparison[] comparisons = {Comparison.LESS_OR_EQUAL, Comparison.GREATER_OR_EQUAL, Comparison.LESS, Comparison.GREATER, Comparison.EQUAL};
+        for (int i = 0; i < operators.length; i++) {
+            if (value.startsWith(operators[i])) {
+                comparison = comparisons[i];
+                value = value.substring(operators[i].length());
+                break;
+            }
+        }
+        if (value.isEmpty()) {
+            return null;
+        }
+        double seconds = parseTime(value);
+        if (seconds < 0) {
+            return textClause(Field.ANY, negated, word);    //Not a time, maybe the title contains it
+        }
+        return new Clause(Field.TIME, negated, null, comparison, seconds);
+    }
+
+    private static Clause textClause(Field field, boolean negated, String value) {
+        String text = MediaIndex.normalize(unquote(value));
+        return text.isEmpty() ? null : new Clause(field, negated, text, null, 0);
+    }
+
+    private static Field fieldOf(String name) {
+        switch (name.toLowerCase()) {
+            case "title":
+                return Field.TITLE;
+            case "artist":
+                return Field.ARTIST;
+            case "category":
+            case "genre":
+                return Field.CATEGORY;
+            case "time":
+            case "length":
+                return Field.TIME;
+            default:
+                return null;
+        }
+    }
+
+    /**
+     * Parse a length given in seconds, minutes:seconds or hours:minutes:seconds
+     * @return The length in seconds, or -1 if it is not a length
+     */
+    private static double parseTime(String value) {
+        double seconds = 0;
+        for (String part : value.split(":", -1)) {
+            if (part.isEmpty() || !part.chars().allMatch(Character::isDigit)) {
+                return -1;
+            }
+            seconds = seconds * 60 + Integer.parseInt(part);
+        }
+        return seconds;
+    }
+
+    private static String unquote(String value) {
+        if (value.length() >= 1 && value.charAt(0) == '"') {
+            value = value.substring(1);
+            if (value.endsWith("\"")) {
+                value = value.substring(0, value.length() - 1);
+            }
+        }
+        return value;
+    }
+
+    /**
+     * Split the query at the spaces that are not inside quotes
+     */
+    private static List<String> split(String query) {
+        List<String> words = new ArrayList<>();
+        StringBuilder word = new StringBuilder();
+        boolean quoted = false;
+        for (char c : query.toCharArray()) {
+            if (c == '"') {
+                quoted = !quoted;
+            }
+            if (Character.isWhitespace(c) && !quoted) {
+                if (word.length() > 0) {
+                    words.add(word.toString());
+                    word.setLength(0);
+                }
+            }
+            else {
+                word.append(c);
+            }
+        }
+        if (word.length() > 0) {
+            words.add(word.toString());
+        }
+        return words;
+    }
+}
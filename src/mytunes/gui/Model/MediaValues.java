@@ -0,0 +1,74 @@
+package mytunes.gui.Model;
+
+import mytunes.be.UserMedia;
+
+/**
+ * The indexed values of a song, copied on the JavaFX thread, so the indexes can be built from them on a background thread
+ * while the songs keep changing
+ * @author sebok
+ */
+class MediaValues {
+
+    private final UserMedia media;
+    private final String title;
+    private final String artist;
+    private final String category;
+    private final double time;
+
+    private MediaValues(UserMedia media) {
+        this.media = media;
+        this.title = media.getTitle();
+        this.artist = media.getArtist();
+        this.category = media.getCategory();
+        this.time = media.getTime();
+    }
+
+    /**
+     * Copy the current values of a song. Should be called on the JavaFX thread
+     * @param media The song
+     * @return The copy of its values
+     */
+    static MediaValues of(UserMedia media) {
+        return new MediaValues(media);
+    }
+
+    /**
+     * Get the song the values were copied from
+     * @return The song
+     */
+    UserMedia getMedia() {
+        return media;
+    }
+
+    /**
+     * Get the title of the song when it was copied
+     * @return The title, might be null
+     */
+    String getTitle() {
+        return title;
+    }
+
+    /**
+     * Get the artist of the song when it was copied
+     * @return The artist, might be null
+     */
+    String getArtist() {
+        return artist;
+    }
+
+    /**
+     * Get the category of the song when it was copied
+     * @return The category, might be null
+     */
+    String getCategory() {
+        return category;
+    }
+
+    /**
+     * Get the length of the song when it was copied
+     * @return The length in seconds
+     */
+    double getTime() {
+        return time;
+    }
+}
@@ -0,0 +1,183 @@
+package mytunes.gui.Model;
+
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeSet;
+import mytunes.be.UserMedia;
+
+/**
+ * The songs of the library sorted by one column, kept sorted song by song whenever a song is added, edited or removed.
+ * The texts are compared by their sort keys, computed once per edit: the text normalised the same way as for the search
+ * (lower case, without accents and punctuation), so "apple" sorts next to "Apple", and the properties of the songs are not read again.
+ * Every song has a rank: the ranks grow in the order of the index, with gaps between them, so a new song gets a rank between its neighbours
+ * without touching the others, in O(log N). When there is no room left between two neighbours, the whole column is numbered again, in O(N).
+ * The index does not serve the rows of the table: it gives a rank comparator, and the sorted list of the table sorts with it.
+ * Whenever the comparator is replaced (a column is clicked, or a new index is built) the shown rows are sorted again in O(N log N),
+ * looking up the ranks of the two songs for every comparison instead of comparing their texts. An edited row is moved by the sorted list itself.
+ * A new index is filled on a background thread from a copy of the songs (see addAll), after that it is used on the JavaFX thread only
+ * @author sebok
+ */
+class SortIndex {
+
+    private static final long GAP = 1L << 32;  //The distance between the ranks when the column is numbered
+    private static final long STEP = 1L << 16;  //The most a new rank moves away from its lower neighbour, so a run of songs added at the same place fits in one gap
+
+    /**
+     * A song in the index, with its sort key and rank
+     */
+    private static class Node {
+
+        private final String text;  //The key of a text column
+        private final double time;  //The key of the time column
+        private final long sequence;    //Orders the songs with the same key
+        private long rank;
+
+        Node(String text, double time, long sequence) {
+            this.text = text;
+            this.time = time;
+            this.sequence = sequence;
+        }
+    }
+
+    private final MediaColumn column;
+    private final Map<UserMedia, Node> nodes = new HashMap<>();
+    private final TreeSet<Node> sorted;
+    private long nextSequence;
+
+    /**
+     * Create an empty index
+     * @param column The column the songs are sorted by
+     */
+    SortIndex(MediaColumn column) {
+        this.column = column;
+        Comparator<Node> byKey = column == MediaColumn.TIME ? Comparator.comparingDouble(node -> node.time) : Comparator.comparing(node -> node.text);
+        sorted = new TreeSet<>(byKey.thenComparingLong(node -> node.sequence));
+    }
+
+    /**
+     * Add a song to the index. A song that is already indexed is updated instead
+     * @param media The song to add
+     */
+    void add(UserMedia media) {
+        if (nodes.containsKey(media)) {
+            update(media);
+            return;
+        }
+        insert(media);
+    }
+
+    /**
+     * Add the copied songs to an empty index, and number them once at the end. Used to build a new index on a background thread
+     * @param songs The values of the songs, copied on the JavaFX thread
+     */
+    void addAll(Collection<MediaValues> songs) {
+        for (MediaValues values : songs) {
+            Node node = new Node(column == MediaColumn.TIME ? null : MediaIndex.normalize(text(values.getTitle(), values.getArtist(), values.getCategory())),
+                    values.getTime(), nextSequence++);
+            Node old = nodes.put(values.getMedia(), node);
+            if (old != null) {  //Copied twice, the later copy counts
+                sorted.remove(old);
+            }
+            sorted.add(node);
+        }
+        renumber();
+    }
+
+    /**
+     * Remove a song from the index
+     * @param media The song to remove
+     */
+    void remove(UserMedia media) {
+        Node node = nodes.remove(media);
+        if (node != null) {
+            sorted.remove(node);
+        }
+    }
+
+    /**
+     * Move an edited song to its place. Nothing is done if its key has not changed
+     * @param media The edited song
+     */
+    void update(UserMedia media) {
+        Node node = nodes.get(media);
+        if (node == null) {
+            return;
+        }
+        if (column == MediaColumn.TIME ? node.time == media.getTime() : node.text.equals(MediaIndex.normalize(text(media)))) {
+            return;
+        }
+        sorted.remove(node);
+        insert(media);
+    }
+
+    /**
+     * Get the order of the index
+     * @return A rank comparator, ordering the indexed songs by this column by looking up their ranks. The songs that are not indexed come last
+     */
+    Comparator<UserMedia> comparator() {
+        return Comparator.comparingLong(this::rank);
+    }
+
+//******************************************************************************************************************************************************************//
+//Helper methods
+    private void insert(UserMedia media) {
+        Node node = new Node(column == MediaColumn.TIME ? null : MediaIndex.normalize(text(media)), media.getTime(), nextSequence++);
+        nodes.put(media, node);
+        sorted.add(node);
+        Node lower = sorted.lower(node);
+        Node higher = sorted.higher(node);
+        if (lower == null) {
+            node.rank = higher == null ? 0 : higher.rank - GAP;
+        }
+        else if (higher == null) {
+            node.rank = lower.rank + GAP;
+        }
+        else if (higher.rank - lower.rank > 1) {
+            node.rank = lower.rank + Math.min(STEP, (higher.rank - lower.rank) / 2);
+        }
+        else {  //No room between the neighbours
+            renumber();
+        }
+    }
+
+    /**
+     * Give every song a new rank, with the same gap between them
+     */
+    private void renumber() {
+        long rank = 0;
+        for (Node node : sorted) {
+            node.rank = rank;
+            rank += GAP;
+        }
+    }
+
+    private long rank(UserMedia media) {
+        Node node = nodes.get(media);
+        return node == null ? Long.MAX_VALUE : node.rank;
+    }
+
+    private String text(UserMedia media) {
+        return text(media.getTitle(), media.getArtist(), media.getCategory());
+    }
+
+    /**
+     * Get the text of this column from the values of a song
+     * @return The text, empty if the song has none
+     */
+    private String text(String title, String artist, String category) {
+        String text;
+        switch (column) {
+            case TITLE:
+                text = title;
+                break;
+            case ARTIST:
+                text = artist;
+                break;
+            default:
+                text = category;
+        }
+        return text == null ? "" : text;
+    }
+}